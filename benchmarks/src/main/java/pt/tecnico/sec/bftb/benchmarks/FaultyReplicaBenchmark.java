@@ -0,0 +1,83 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.client.Client;
+import pt.tecnico.sec.bftb.server.DurabilityMode;
+import pt.tecnico.sec.bftb.server.ReplicaCluster;
+import pt.tecnico.sec.bftb.server.ReplicaFault;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+// How long the client's quorums take when one of the 3f + 1 replicas is faulty. The fault is there from the start, so
+// the other replicas are the ones that have every account and transfer, as they would be after a real failure.
+// Latencies are sampled rather than averaged, since what a faulty replica changes is mostly the tail
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FaultyReplicaBenchmark {
+	private static final int FAULTS_TO_TOLERATE = 1;
+	private static final int FAULTY_REPLICA = 3 * FAULTS_TO_TOLERATE;
+	private static final int BASE_PORT = 39292;
+
+	@Param({ "none", "slow", "crashed", "stale_timestamps", "forged_signatures" })
+	public String fault;
+
+	// How long a slow replica takes to start each request
+	@Param({ "20" })
+	public long delayMillis;
+
+	@Param({ "in_process", "loopback" })
+	public String transport;
+
+	private ReplicaCluster cluster;
+	private Client alice;
+	private Client bob;
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// The client reports every step of every operation
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		cluster = (transport.equals("loopback")) ? ReplicaCluster.onLoopback(FAULTS_TO_TOLERATE, BASE_PORT, DurabilityMode.WAL)
+				: ReplicaCluster.inProcess(FAULTS_TO_TOLERATE, DurabilityMode.WAL);
+		cluster.setDelay(FAULTY_REPLICA, delayMillis, TimeUnit.MILLISECONDS);
+		cluster.setFault(FAULTY_REPLICA, ReplicaFault.fromString(fault));
+		alice = newClient("alice");
+		bob = newClient("bob");
+		alice.openAccount();
+		bob.openAccount();
+	}
+
+	private Client newClient(String userId) throws Exception {
+		Client client = new Client(cluster::newChannel, cluster.getPublicKeys(), FAULTS_TO_TOLERATE);
+		client.changeUser(userId);
+		return client;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cluster.close();
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public void checkAccount() throws Exception {
+		alice.checkAccount();
+	}
+
+	@Benchmark
+	public void sendAndReceive() throws Exception {
+		alice.sendAmount("bob", 1);
+		bob.checkAccount();
+		bob.receiveAmount(0);
+		bob.sendAmount("alice", 1);
+		alice.checkAccount();
+		alice.receiveAmount(0);
+	}
+}
@@ -0,0 +1,50 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.client.PuzzleSolver;
+import pt.tecnico.sec.bftb.grpc.Server.Puzzle;
+import pt.tecnico.sec.bftb.server.SignatureManager;
+
+import java.util.concurrent.TimeUnit;
+
+// What Client.findPuzzleSolution runs for every replica's puzzle. The puzzles come from a replica's SignatureManager,
+// so the solutions are spread over the whole range like they are for real clients
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PuzzleSolverBenchmark {
+	private static final int NUMBER_OF_PUZZLES = 64;
+
+	// From an idle replica up to a saturated one, see the server's LoadMonitor
+	@Param({ "1024", "65536", "262144" })
+	public long searchRange;
+
+	private PuzzleSolver puzzleSolver;
+	private Puzzle[] puzzles;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		puzzleSolver = new PuzzleSolver(searchRange);
+		SignatureManager signatureManager = new SignatureManager(0);
+		puzzles = new Puzzle[NUMBER_OF_PUZZLES];
+		for (int i = 0; i < NUMBER_OF_PUZZLES; i++) {
+			puzzles[i] = signatureManager.generatePuzzle(ByteString.copyFromUtf8("user-" + i), searchRange);
+		}
+	}
+
+	@Benchmark
+	public long solve() throws Exception {
+		return puzzleSolver.solveAsync(nextPuzzle()).get();
+	}
+
+	private Puzzle nextPuzzle() {
+		Puzzle puzzle = puzzles[next];
+		next = (next + 1) % NUMBER_OF_PUZZLES;
+		return puzzle;
+	}
+}
@@ -0,0 +1,168 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+import pt.tecnico.sec.bftb.server.BalanceRecord;
+import pt.tecnico.sec.bftb.server.DatabaseTransaction;
+import pt.tecnico.sec.bftb.server.DurabilityMode;
+import pt.tecnico.sec.bftb.server.Resources;
+import pt.tecnico.sec.bftb.server.SQLiteDatabase;
+import pt.tecnico.sec.bftb.server.TransfersRecord;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reads and writes of a replica's database holding the given number of transfers between a fixed set of accounts, so
+// the history of each account grows with the table. Every transfer is approved except the last one of each account.
+// Writes add to the table, which is negligible next to the larger sizes but not the smallest one
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SQLiteDatabaseBenchmark {
+	// Far from the ids of real replicas, so their databases are never touched
+	private static final int DATABASE_ID = 100;
+	private static final int NUMBER_OF_ACCOUNTS = 1000;
+	private static final int KEY_LENGTH = 294; // Size of an encoded RSA-2048 public key
+	private static final int SIGNATURE_LENGTH = 256;
+	private static final int ROWS_PER_TRANSACTION = 10000;
+	private static final long FIRST_TIMESTAMP = 1_600_000_000_000L;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "default", "wal", "group_commit" })
+	public String durability;
+
+	private SQLiteDatabase db;
+	private ByteString[] accounts;
+	private ByteString signature;
+	private AtomicLong nextTimestamp;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Resources.init();
+		String databasePath = Resources.getAbsoluteDatabasePath(DATABASE_ID);
+		for (String suffix : new String[]{ "", "-journal", "-wal", "-shm" }) {
+			Files.deleteIfExists(Path.of(databasePath + suffix));
+		}
+		db = new SQLiteDatabase(DATABASE_ID, DurabilityMode.fromString(durability));
+		Random random = new Random(42);
+		accounts = new ByteString[NUMBER_OF_ACCOUNTS];
+		for (int i = 0; i < NUMBER_OF_ACCOUNTS; i++) accounts[i] = randomBytes(random, KEY_LENGTH);
+		signature = randomBytes(random, SIGNATURE_LENGTH);
+		populate();
+		nextTimestamp = new AtomicLong(FIRST_TIMESTAMP + rows);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		db.close();
+	}
+
+	private static ByteString randomBytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return ByteString.copyFrom(bytes);
+	}
+
+	private void populate() throws Exception {
+		try (DatabaseTransaction tx = db.beginTransaction()) {
+			for (ByteString account : accounts) {
+				tx.insertAccount(account, 100, 0, signature, 0, 0, 0, signature, signature);
+			}
+			tx.commit();
+		}
+		for (int start = 0; start < rows; start += ROWS_PER_TRANSACTION) {
+			int end = Math.min(start + ROWS_PER_TRANSACTION, rows);
+			List<Transfer> transfers = new ArrayList<>(end - start);
+			Map<ByteString, List<Transfer>> approvedByReceiver = new HashMap<>();
+			for (int i = start; i < end; i++) {
+				Transfer transfer = transferAt(i);
+				transfers.add(transfer);
+				if (i < rows - NUMBER_OF_ACCOUNTS) {
+					approvedByReceiver.computeIfAbsent(transfer.getReceiverKey(), k -> new ArrayList<>()).add(transfer);
+				}
+			}
+			try (DatabaseTransaction tx = db.beginTransaction()) {
+				tx.insertTransfers(transfers, signatures(transfers.size()));
+				for (Map.Entry<ByteString, List<Transfer>> entry : approvedByReceiver.entrySet()) {
+					tx.updateTransfersToApproved(entry.getKey(), entry.getValue(), signatures(entry.getValue().size()));
+				}
+				tx.commit();
+			}
+		}
+	}
+
+	// Each account sends to every other account in turn
+	private Transfer transferAt(long index) {
+		int sender = (int) (index % NUMBER_OF_ACCOUNTS);
+		int receiver = (int) ((sender + 1 + (index / NUMBER_OF_ACCOUNTS) % (NUMBER_OF_ACCOUNTS - 1)) % NUMBER_OF_ACCOUNTS);
+		return Transfer.newBuilder()
+				.setTimestamp(FIRST_TIMESTAMP + index)
+				.setSenderKey(accounts[sender])
+				.setReceiverKey(accounts[receiver])
+				.setAmount(1)
+				.build();
+	}
+
+	private List<ByteString> signatures(int count) {
+		List<ByteString> signatures = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) signatures.add(signature);
+		return signatures;
+	}
+
+	private ByteString randomAccount() {
+		return accounts[ThreadLocalRandom.current().nextInt(NUMBER_OF_ACCOUNTS)];
+	}
+
+	@Benchmark
+	public BalanceRecord readAccountBalanceRecord() throws Exception {
+		return db.readAccountBalanceRecord(randomAccount());
+	}
+
+	@Benchmark
+	public TransfersRecord getIncomingPendingTransfers() throws Exception {
+		return db.getIncomingPendingTransfersOfAccount(randomAccount());
+	}
+
+	@Benchmark
+	public TransfersRecord getApprovedTransfers() throws Exception {
+		return db.getApprovedTransfersOfAccount(randomAccount(), 0);
+	}
+
+	@Benchmark
+	public Transfer getTransfer() throws Exception {
+		Transfer transfer = transferAt(ThreadLocalRandom.current().nextInt(rows));
+		return db.getTransfer(transfer.getTimestamp(), transfer.getSenderKey(), transfer.getReceiverKey());
+	}
+
+	@Benchmark
+	public void updateAccountBalance() throws Exception {
+		try (DatabaseTransaction tx = db.beginTransaction()) {
+			tx.updateAccountBalance(randomAccount(), 100, 0, signature);
+			tx.commit();
+		}
+	}
+
+	@Benchmark
+	public void insertTransfer() throws Exception {
+		Transfer transfer = transferAt(nextTimestamp.getAndIncrement() - FIRST_TIMESTAMP);
+		try (DatabaseTransaction tx = db.beginTransaction()) {
+			tx.insertTransfer(transfer.getTimestamp(), transfer.getSenderKey(), transfer.getReceiverKey(),
+					transfer.getAmount(), signature);
+			tx.commit();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.server.Resources;
+import pt.tecnico.sec.bftb.server.SignatureManager;
+import pt.tecnico.sec.bftb.server.SignatureScheme;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The replica's side of every request: verifying the client's signature, signing the response and the nonce ciphers.
+// The peer's key algorithm only matters for verifying and sealing, the replica always signs with its own key
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureManagerBenchmark {
+	private static final int REPLICA_ID = 0;
+
+	@Param({ "rsa", "ed25519", "ecdsa_p256" })
+	public String peerKeyAlgorithm;
+
+	@Param({ "256" })
+	public int contentSize;
+
+	private SignatureManager signatureManager;
+	private PublicKey peerPublicKey;
+	private byte[] content;
+	private byte[] peerSignature;
+	private byte[] cypheredNonce;
+	private long nonce;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		signatureManager = new SignatureManager(REPLICA_ID);
+		KeyPair peerKeyPair = generateKeyPair(peerKeyAlgorithm);
+		peerPublicKey = peerKeyPair.getPublic();
+		Random random = new Random(42);
+		content = new byte[contentSize];
+		random.nextBytes(content);
+		nonce = random.nextLong();
+		peerSignature = SignatureScheme.forKey(peerKeyPair.getPrivate()).sign(peerKeyPair.getPrivate(), new byte[0], content);
+		cypheredNonce = signatureManager.cypherNonce(Resources.getServerReplicaPublicKey(REPLICA_ID), nonce);
+	}
+
+	static KeyPair generateKeyPair(String algorithm) throws Exception {
+		KeyPairGenerator generator;
+		switch (algorithm) {
+			case "rsa" -> {
+				generator = KeyPairGenerator.getInstance("RSA");
+				generator.initialize(2048);
+			}
+			case "ed25519" -> generator = KeyPairGenerator.getInstance("Ed25519");
+			case "ecdsa_p256" -> {
+				generator = KeyPairGenerator.getInstance("EC");
+				generator.initialize(new ECGenParameterSpec("secp256r1"));
+			}
+			default -> throw new IllegalArgumentException("Unknown key algorithm: " + algorithm);
+		}
+		return generator.generateKeyPair();
+	}
+
+	@Benchmark
+	public byte[] sign() throws Exception {
+		return signatureManager.sign(nonce, content);
+	}
+
+	@Benchmark
+	public boolean isSignatureValid() throws Exception {
+		return signatureManager.isSignatureValid(peerPublicKey, peerSignature, content);
+	}
+
+	@Benchmark
+	public byte[] cypherNonce() throws Exception {
+		return signatureManager.cypherNonce(peerPublicKey, nonce);
+	}
+
+	@Benchmark
+	public long decypherNonce() throws Exception {
+		return signatureManager.decypherNonce(cypheredNonce);
+	}
+}
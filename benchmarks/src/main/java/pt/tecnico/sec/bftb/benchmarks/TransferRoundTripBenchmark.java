@@ -0,0 +1,65 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.client.Client;
+import pt.tecnico.sec.bftb.server.DurabilityMode;
+import pt.tecnico.sec.bftb.server.ReplicaCluster;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+// A whole transfer through every layer: the client's quorum calls, puzzles, signatures and the replicas' databases,
+// with all of the 3f + 1 replicas in this JVM behind gRPC's in-process transport, so the network is left out.
+// Each operation sends an amount from alice to bob and back, each receiver checking its account and accepting it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferRoundTripBenchmark {
+	private static final int FAULTS_TO_TOLERATE = 1;
+
+	@Param({ "default", "wal", "group_commit" })
+	public String durability;
+
+	private ReplicaCluster cluster;
+	private Client alice;
+	private Client bob;
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// The client reports every step of every operation
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		cluster = ReplicaCluster.inProcess(FAULTS_TO_TOLERATE, DurabilityMode.fromString(durability));
+		alice = newClient("alice");
+		bob = newClient("bob");
+		alice.openAccount();
+		bob.openAccount();
+	}
+
+	private Client newClient(String userId) throws Exception {
+		Client client = new Client(cluster::newChannel, cluster.getPublicKeys(), FAULTS_TO_TOLERATE);
+		client.changeUser(userId);
+		return client;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cluster.close();
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public void sendAndReceive() throws Exception {
+		alice.sendAmount("bob", 1);
+		bob.checkAccount();
+		bob.receiveAmount(0);
+		bob.sendAmount("alice", 1);
+		alice.checkAccount();
+		alice.receiveAmount(0);
+	}
+}
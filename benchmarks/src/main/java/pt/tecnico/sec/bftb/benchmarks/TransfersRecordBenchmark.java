@@ -0,0 +1,74 @@
+package pt.tecnico.sec.bftb.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.sec.bftb.server.TransfersRecord;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Turning query results into transfers, apart from the queries of the database itself. The rows come from an in-memory
+// table with the columns TransfersRecord reads, so the cost is stepping through the results and building the messages
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransfersRecordBenchmark {
+	private static final int KEY_LENGTH = 294;
+	private static final int SIGNATURE_LENGTH = 256;
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int rows;
+
+	private Connection connection;
+	private PreparedStatement query;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("CREATE TABLE transfers(timestamp INTEGER, sender_pubkey BLOB, receiver_pubkey BLOB, " +
+					"amount INTEGER, sender_signature BLOB, receiver_signature BLOB)");
+		}
+		Random random = new Random(42);
+		try (PreparedStatement insert = connection.prepareStatement("INSERT INTO transfers VALUES (?, ?, ?, ?, ?, ?)")) {
+			for (int i = 0; i < rows; i++) {
+				insert.setLong(1, i);
+				insert.setBytes(2, randomBytes(random, KEY_LENGTH));
+				insert.setBytes(3, randomBytes(random, KEY_LENGTH));
+				insert.setInt(4, 1 + random.nextInt(100));
+				insert.setBytes(5, randomBytes(random, SIGNATURE_LENGTH));
+				// Half of them still pending, as in a check_account
+				insert.setBytes(6, (i % 2 == 0) ? randomBytes(random, SIGNATURE_LENGTH) : null);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+		query = connection.prepareStatement("SELECT * FROM transfers ORDER BY timestamp");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		query.close();
+		connection.close();
+	}
+
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	@Benchmark
+	public TransfersRecord materialize() throws Exception {
+		try (ResultSet rs = query.executeQuery()) {
+			return new TransfersRecord(rs);
+		}
+	}
+}
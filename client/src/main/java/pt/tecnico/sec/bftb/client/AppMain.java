@@ -7,6 +7,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.regex.PatternSyntaxException;
 
@@ -19,8 +21,11 @@ public class AppMain {
 			"- chuser <username>              Change to another user%n" +
 			"- open                           Open a new account%n" +
 			"- send <destination> <amount>    Send to the destination account the specified amount%n" +
+			"- sendbatch <destination> <amount> [<destination> <amount> ...]%n" +
+			"                                 Send all the transfers at once, as a single operation%n" +
 			"- recv                           Confirm the earliest pending incoming transfer%n" +
 			"- recv <transfer number>         Confirm the pending incoming transfer with the specified number%n" +
+			"- recvall                        Confirm all the pending incoming transfers at once%n" +
 			"- check                          Obtain the balance of the account, and the list of pending transfers%n" +
 			"- audit                          Obtain the full transaction history of the account%n" +
 			"- exit                           Exit the App%n";
@@ -38,13 +43,22 @@ public class AppMain {
 		}
 
 		// Check number of arguments
-		if (args.length != 3 && args.length != 4) {
+		if (args.length < 3 || args.length > 5) {
 			System.out.println("Invalid number of arguments. Aborting!");
-			System.out.println("Usage: AppMain <serverHostname> <serverPort> <faultsToTolerate> [inputFile]");
+			System.out.println("Usage: AppMain <serverHostname> <serverPort> <faultsToTolerate> [inputFile] [keyAlgorithm]");
 			return;
 		}
 		// Checks if file was redirected
-		boolean hasInputFileArg = (args.length == 4 && args[3] != null && !args[3].isEmpty());
+		boolean hasInputFileArg = (args.length >= 4 && args[3] != null && !args[3].isEmpty());
+		if (args.length == 5 && args[4] != null && !args[4].isEmpty()) {
+			try {
+				Resources.setKeyAlgorithm(KeyAlgorithm.fromString(args[4]));
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println("Invalid key algorithm: " + args[4]);
+				return;
+			}
+		}
 
 		String serverHostname = args[0];
 		int serverPort = Integer.parseInt(args[1]);
@@ -112,6 +126,18 @@ public class AppMain {
 					if (tokens.length == 3) client.sendAmount(tokens[1], Integer.parseInt(tokens[2]));
 					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
 					break;
+				case "sendbatch":
+					if (tokens.length >= 3 && tokens.length % 2 == 1) {
+						List<String> destinations = new ArrayList<>();
+						List<Integer> amounts = new ArrayList<>();
+						for (int i = 1; i < tokens.length; i += 2) {
+							destinations.add(tokens[i]);
+							amounts.add(Integer.parseInt(tokens[i + 1]));
+						}
+						client.sendAmountBatch(destinations, amounts);
+					}
+					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
+					break;
 				case "check":
 					if (tokens.length == 1) client.checkAccount();
 					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
@@ -121,6 +147,10 @@ public class AppMain {
 					else if (tokens.length == 2) client.receiveAmount(Integer.parseInt(tokens[1]));
 					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
 					break;
+				case "recvall":
+					if (tokens.length == 1) client.receiveAmountAll();
+					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
+					break;
 				case "audit":
 					if (tokens.length == 1) client.audit();
 					else System.out.println(ERROR_NUMBER_OF_ARGUMENTS);
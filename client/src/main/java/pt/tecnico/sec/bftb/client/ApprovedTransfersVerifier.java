@@ -0,0 +1,99 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.client.exceptions.SignatureVerificationFailedException;
+import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Verifies an approved transfer list a part at a time, so a long history doesn't have to be held all at once.
+// The list holds the transfers the owner sent and those it received and approved, chained into a head which the
+// owner signs every time it changes, so checking that single signature is enough to trust every transfer in it.
+// Checking each transfer's own signatures is needed for lists whose head the owner hasn't signed yet, i.e. accounts
+// that predate head signatures
+public class ApprovedTransfersVerifier {
+	private final SignatureManager signatureManager;
+	private final PublicKeyCache publicKeyCache;
+	private final MessageDigest digest;
+	private final ByteString accountPublicKeyBS;
+	private final boolean checkTransferSignatures;
+	private final Set<ByteString> checkpointHashes;
+	private final Set<ByteString> transferHashes;
+	private ByteString head;
+	private int numberOfTransfers;
+
+	public ApprovedTransfersVerifier(SignatureManager signatureManager, PublicKeyCache publicKeyCache,
+			ByteString accountPublicKeyBS) throws NoSuchAlgorithmException {
+		this(signatureManager, publicKeyCache, accountPublicKeyBS, AuditCheckpoint.empty(), true);
+	}
+
+	// Continues after the transfers of the checkpoint, which were already verified by an earlier audit
+	public ApprovedTransfersVerifier(SignatureManager signatureManager, PublicKeyCache publicKeyCache,
+			ByteString accountPublicKeyBS, AuditCheckpoint checkpoint, boolean checkTransferSignatures)
+			throws NoSuchAlgorithmException {
+		this.signatureManager = signatureManager;
+		this.publicKeyCache = publicKeyCache;
+		this.accountPublicKeyBS = accountPublicKeyBS;
+		this.digest = MessageDigest.getInstance("SHA-256");
+		this.checkTransferSignatures = checkTransferSignatures;
+		this.checkpointHashes = (checkTransferSignatures) ? checkpoint.getTransferHashes() : Set.of();
+		this.transferHashes = new HashSet<>();
+		this.head = checkpoint.getPrefixHash();
+		this.numberOfTransfers = checkpoint.size();
+	}
+
+	public boolean verifyNext(List<Transfer> transfers, List<ByteString> senderSignatures, List<ByteString> receiverSignatures)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException {
+		head = TransferChain.extend(head, transfers);
+		numberOfTransfers += transfers.size();
+		if (!checkTransferSignatures) return true;
+		if (senderSignatures.size() != transfers.size()) return false;
+		if (receiverSignatures.size() != transfers.size()) return false;
+
+		for (int i = 0; i < transfers.size(); i++) {
+			Transfer transfer = transfers.get(i);
+			byte[] senderSignature = senderSignatures.get(i).toByteArray();
+			byte[] receiverSignature = receiverSignatures.get(i).toByteArray();
+			if (!this.signatureManager.isTransferSignatureValid(publicKeyCache.get(transfer.getSenderKey()), senderSignature, transfer))
+				return false;
+			// The owner's own transfers join its list as they are sent, so the receiver may not have approved them yet
+			boolean pendingOwnTransfer = receiverSignature.length == 0 && transfer.getSenderKey().equals(accountPublicKeyBS);
+			if (!pendingOwnTransfer && !this.signatureManager.isTransferSignatureValid(publicKeyCache.get(transfer.getReceiverKey()), receiverSignature, transfer))
+				return false;
+			ByteString transferHash = ByteString.copyFrom(digest.digest(transfer.toByteArray()));
+			if (checkpointHashes.contains(transferHash) || !transferHashes.add(transferHash)) return false;
+		}
+		return true;
+	}
+
+	// The signed list sizes say how many approved transfers there are and what their head is, so a list cut short
+	// or with any transfer changed, added or reordered is caught here. Whoever changed the list sizes last signed
+	// them, which may be anyone who sent the owner a transfer, so only the owner's signature vouches for the head
+	public boolean isComplete(ListSizes listSizes, ByteString listSizesSignature, ByteString listSizesSigner,
+			ByteString approvedHeadSignature)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException {
+		byte[] signature = listSizesSignature.toByteArray();
+		if (this.signatureManager.isListSizesSignatureValid(publicKeyCache.get(listSizesSigner), signature, listSizes)) {
+			if (!isComplete(listSizes.getApprovedSize()) || !head.equals(listSizes.getApprovedHead())) return false;
+			if (checkTransferSignatures) return true;
+			// Empty for accounts whose owner hasn't changed their approved part since before head signatures
+			return !approvedHeadSignature.isEmpty() && this.signatureManager.isApprovedHeadSignatureValid(
+					publicKeyCache.get(accountPublicKeyBS), approvedHeadSignature.toByteArray(), listSizes);
+		}
+		// Sizes signed before lists had a head only vouch for the size, the transfers must have been checked one by one
+		if (!checkTransferSignatures) return false;
+		if (!this.signatureManager.isLegacyListSizesSignatureValid(publicKeyCache.get(listSizesSigner), signature, listSizes))
+			return false;
+		return isComplete(listSizes.getApprovedSize());
+	}
+
+	public boolean isComplete(int expectedSize) {
+		return numberOfTransfers == expectedSize;
+	}
+}
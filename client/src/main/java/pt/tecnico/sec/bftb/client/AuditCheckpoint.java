@@ -0,0 +1,100 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.grpc.Server.AuditCursor;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The approved transfers of an account the client already verified, kept on disk so the next audit only has to
+// fetch and verify the ones approved after them
+public class AuditCheckpoint {
+	private final List<Transfer> approvedTransfers;
+	private final ByteString prefixHash;
+	private Set<ByteString> transferHashes;
+
+	private AuditCheckpoint(List<Transfer> approvedTransfers, ByteString prefixHash) {
+		this.approvedTransfers = approvedTransfers;
+		this.prefixHash = prefixHash;
+	}
+
+	public static AuditCheckpoint empty() {
+		return new AuditCheckpoint(List.of(), ByteString.EMPTY);
+	}
+
+	// A missing or damaged checkpoint is not an error, the audit just starts from the beginning
+	public static AuditCheckpoint load(Path path) {
+		if (!Files.exists(path)) return empty();
+		try (InputStream in = Files.newInputStream(path)) {
+			AuditCursor cursor = AuditCursor.parseDelimitedFrom(in);
+			if (cursor == null) return empty();
+			List<Transfer> transfers = new ArrayList<>(cursor.getApprovedSize());
+			Transfer transfer;
+			while ((transfer = Transfer.parseDelimitedFrom(in)) != null) transfers.add(transfer);
+			// The prefix hash is the head of the transfer chain at the end of the prefix
+			ByteString hash = TransferChain.extend(ByteString.EMPTY, transfers);
+			if (transfers.size() != cursor.getApprovedSize() || !hash.equals(cursor.getPrefixHash())) return empty();
+			return new AuditCheckpoint(transfers, hash);
+		}
+		catch (IOException e) {
+			return empty();
+		}
+	}
+
+	// Written to a temporary file first, so a crash halfway never leaves a truncated checkpoint behind
+	public void save(Path path) throws IOException {
+		Files.createDirectories(path.getParent());
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tempPath)) {
+			getCursor().writeDelimitedTo(out);
+			for (Transfer transfer : approvedTransfers) transfer.writeDelimitedTo(out);
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public AuditCheckpoint extend(List<Transfer> newTransfers) {
+		if (newTransfers.isEmpty()) return this;
+		List<Transfer> transfers = new ArrayList<>(approvedTransfers.size() + newTransfers.size());
+		transfers.addAll(approvedTransfers);
+		transfers.addAll(newTransfers);
+		return new AuditCheckpoint(transfers, TransferChain.extend(prefixHash, newTransfers));
+	}
+
+	// Lets the next audit reject a replica that sends one of these transfers again as if it were new
+	public synchronized Set<ByteString> getTransferHashes() throws NoSuchAlgorithmException {
+		if (transferHashes == null) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			Set<ByteString> hashes = new HashSet<>();
+			for (Transfer transfer : approvedTransfers) hashes.add(ByteString.copyFrom(digest.digest(transfer.toByteArray())));
+			transferHashes = hashes;
+		}
+		return transferHashes;
+	}
+
+	public AuditCursor getCursor() {
+		return AuditCursor.newBuilder().setApprovedSize(approvedTransfers.size()).setPrefixHash(prefixHash).build();
+	}
+
+	public ByteString getPrefixHash() {
+		return prefixHash;
+	}
+
+	public List<Transfer> getApprovedTransfers() {
+		return approvedTransfers;
+	}
+
+	public int size() {
+		return approvedTransfers.size();
+	}
+}
@@ -0,0 +1,117 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.tecnico.sec.bftb.client.exceptions.InvalidSignatureException;
+import pt.tecnico.sec.bftb.grpc.Server.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Receives the pages of an audit_stream from one replica, verifying each page as it arrives
+public class AuditStream implements ClientResponseObserver<SignedAuditStreamRequest, SignedAuditPage> {
+	private final PageSignatureValidator pageSignatureValidator;
+	private final ApprovedTransfersVerifier verifier;
+	private final AuditCursor since;
+	private final MessageDigest digest;
+	private final SettableFuture<AuditStream> result;
+	private final List<Transfer> approvedTransfers;
+	private ByteString previousPageHash;
+	private ListSizes listSizes;
+	private Challenge nextChallenge;
+	private ClientCallStreamObserver<SignedAuditStreamRequest> call;
+
+	@FunctionalInterface
+	public interface PageSignatureValidator {
+		boolean isValid(byte[] signature, byte[] content) throws Exception;
+	}
+
+	// Only the transfers after the given cursor are expected, the verifier already accounts for the ones before it
+	public AuditStream(PageSignatureValidator pageSignatureValidator, ApprovedTransfersVerifier verifier, AuditCursor since)
+			throws NoSuchAlgorithmException {
+		this.pageSignatureValidator = pageSignatureValidator;
+		this.verifier = verifier;
+		this.since = since;
+		this.digest = MessageDigest.getInstance("SHA-256");
+		this.result = SettableFuture.create();
+		this.approvedTransfers = new ArrayList<>();
+		this.previousPageHash = ByteString.EMPTY;
+	}
+
+	// Completes once the last page was verified
+	public ListenableFuture<AuditStream> getResult() {
+		return result;
+	}
+
+	@Override
+	public void beforeStart(ClientCallStreamObserver<SignedAuditStreamRequest> requestStream) {
+		this.call = requestStream;
+		// The quorum cancels the calls it no longer needs, which must also stop the replica from sending more pages
+		result.addListener(() -> {
+			if (result.isCancelled()) call.cancel("Audit no longer needed", null);
+		}, MoreExecutors.directExecutor());
+	}
+
+	@Override
+	public void onNext(SignedAuditPage signedPage) {
+		if (result.isDone()) return;
+		try {
+			verifyPage(signedPage);
+		}
+		catch (Exception e) {
+			result.setException(e);
+			call.cancel("Invalid audit page", e);
+		}
+	}
+
+	private void verifyPage(SignedAuditPage signedPage) throws Exception {
+		AuditPage page = signedPage.getContent();
+		byte[] pageBytes = page.toByteArray();
+		if (!pageSignatureValidator.isValid(signedPage.getSignature().toByteArray(), pageBytes))
+			throw new InvalidSignatureException("Nonce signature is invalid");
+		if (!page.getPreviousPageHash().equals(previousPageHash))
+			throw new InvalidSignatureException("Audit page does not follow the previous one");
+		if (!page.getSince().equals(since))
+			throw new InvalidSignatureException("Audit page does not answer the requested cursor");
+		if (!verifier.verifyNext(page.getApprovedTransfersList(), page.getSenderTransferSignaturesList(), page.getReceiverTransferSignaturesList()))
+			throw new InvalidSignatureException("Approved transfer list has invalid signatures");
+		approvedTransfers.addAll(page.getApprovedTransfersList());
+		previousPageHash = ByteString.copyFrom(digest.digest(pageBytes));
+		if (!page.getLastPage()) return;
+		if (!verifier.isComplete(page.getListSizes(), page.getListSizesSignature(), page.getListSizesSigner(),
+				page.getApprovedHeadSignature()))
+			throw new InvalidSignatureException("Approved transfer list does not match the list sizes");
+		listSizes = page.getListSizes();
+		nextChallenge = signedPage.getNextChallenge();
+		result.set(this);
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		result.setException(t);
+	}
+
+	@Override
+	public void onCompleted() {
+		result.setException(new InvalidSignatureException("Audit stream ended before its last page"));
+	}
+
+	// Only the transfers after the cursor
+	public List<Transfer> getApprovedTransfers() {
+		return approvedTransfers;
+	}
+
+	public ListSizes getListSizes() {
+		return listSizes;
+	}
+
+	public Challenge getNextChallenge() {
+		return nextChallenge;
+	}
+}
@@ -1,22 +1,33 @@
 package pt.tecnico.sec.bftb.client;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.sec.bftb.client.exceptions.*;
 import pt.tecnico.sec.bftb.grpc.Server.*;
 import pt.tecnico.sec.bftb.grpc.ServerServiceGrpc;
-import pt.tecnico.sec.bftb.grpc.ServerServiceGrpc.ServerServiceBlockingStub;
+import pt.tecnico.sec.bftb.grpc.ServerServiceGrpc.ServerServiceFutureStub;
+import pt.tecnico.sec.bftb.grpc.ServerServiceGrpc.ServerServiceStub;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class Client {
 
@@ -28,36 +39,89 @@ public class Client {
 	private static final long DEADLINE_SEC = 10;    // Timeout deadline in seconds
 	private static final int INITIAL_BALANCE = 100; // Initial balance of an account (must be the same as in the server)
 	private static final long PUZZLE_SEARCH_RANGE = 100000;
-	private final ConcurrentHashMap<Integer, ServerServiceBlockingStub> stubs;
+	private static final int PUBLIC_KEY_CACHE_CAPACITY = 1024;
+	private static final byte[] EMPTY = new byte[0];
+	private static final int AUDIT_PAGE_SIZE = 256;
+	// Small enough for a part's transfers to be signed and sent well within the replicas' timestamp tolerance
+	private static final int MAX_BATCH_PART_SIZE = 512;
+	private final ConcurrentHashMap<Integer, ServerServiceFutureStub> stubs;
+	private final ConcurrentHashMap<Integer, ServerServiceStub> streamingStubs;
+	private final ConcurrentHashMap<Integer, ReplicaNonce> chainedNonces;
+	private final Set<ListenableFuture<Void>> writesInFlight;
+	private final Map<PublicKey, ConcurrentHashMap<Integer, ReplicaSession>> sessionsByUser;
+	private volatile ConcurrentHashMap<Integer, ReplicaSession> sessions;
+	private final ConcurrentHashMap<Integer, ListenableFuture<ReplicaSession>> sessionsOpening;
 	private final SignatureManager signatureManager;
 	private final Map<Integer, PublicKey> serverPublicKeys;
+	private final PublicKeyCache publicKeyCache;
+	private final PuzzleSolver puzzleSolver;
 	private PublicKey userPublicKey;
 	private PrivateKey userPrivateKey;
 	private List<Transfer> lastCheckAccountTransfers = null;
 	private final int faultsToTolerate;
 	private final int numberOfServerReplicas;
-	private Puzzle currentPuzzle = null;
+	private volatile ReplicaCallListener replicaCallListener;
+
+	// Told how every call to a replica ended, including those cancelled once a quorum had answered
+	@FunctionalInterface
+	public interface ReplicaCallListener {
+		void callFinished(int replicaID, long elapsedNanos, Throwable failure);
+	}
 
 	public Client(String serverHostname, int serverBasePort, int faultsToTolerate)
 			throws CertificateException, KeyPairLoadingFailedException, KeyPairGenerationFailedException {
+		this(replicaID -> ManagedChannelBuilder.forTarget(String.format("%s:%d", serverHostname, serverBasePort + replicaID))
+				.usePlaintext().build(), faultsToTolerate);
+	}
+
+	// Lets the replicas be reached through any transport, e.g. in-process channels to replicas in the same JVM
+	public Client(IntFunction<ManagedChannel> channelToReplica, int faultsToTolerate)
+			throws CertificateException, KeyPairLoadingFailedException, KeyPairGenerationFailedException {
+		this(channelToReplica, loadServerPublicKeys((3 * faultsToTolerate) + 1), faultsToTolerate);
+	}
+
+	// For replicas whose keys are not in the certificates, e.g. the ones of a ReplicaCluster
+	public Client(IntFunction<ManagedChannel> channelToReplica, Map<Integer, PublicKey> serverPublicKeys, int faultsToTolerate)
+			throws KeyPairLoadingFailedException, KeyPairGenerationFailedException {
 		this.stubs = new ConcurrentHashMap<>();
+		this.streamingStubs = new ConcurrentHashMap<>();
+		this.chainedNonces = new ConcurrentHashMap<>();
+		this.writesInFlight = ConcurrentHashMap.newKeySet();
+		this.sessionsByUser = new HashMap<>();
+		this.sessionsOpening = new ConcurrentHashMap<>();
 		this.faultsToTolerate = faultsToTolerate;
 		this.numberOfServerReplicas = (3 * faultsToTolerate) + 1;
 		for (int i = 0; i < numberOfServerReplicas; i++) {
-			int replicaPort = serverBasePort + i;
-			String replicaURI = String.format("%s:%d", serverHostname, replicaPort);
-			ManagedChannel channel = ManagedChannelBuilder.forTarget(replicaURI).usePlaintext().build();
-			this.stubs.put(i, ServerServiceGrpc.newBlockingStub(channel));
+			ManagedChannel channel = channelToReplica.apply(i);
+			this.stubs.put(i, ServerServiceGrpc.newFutureStub(channel));
+			this.streamingStubs.put(i, ServerServiceGrpc.newStub(channel));
 		}
 		// Default user ID is "user", just for simplicity
 		Resources.init();
 		this.userPublicKey = Resources.getPublicKeyByUserId("user");
 		this.userPrivateKey = Resources.getPrivateKeyByUserId("user");
-		this.signatureManager = new SignatureManager(this.userPrivateKey, this.userPublicKey);
-		this.serverPublicKeys = new HashMap<>();
+		this.sessions = sessionsByUser.computeIfAbsent(this.userPublicKey, k -> new ConcurrentHashMap<>());
+		try {
+			this.signatureManager = new SignatureManager(this.userPrivateKey, this.userPublicKey);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new KeyPairLoadingFailedException(e);
+		}
+		this.publicKeyCache = new PublicKeyCache(PUBLIC_KEY_CACHE_CAPACITY);
+		this.puzzleSolver = new PuzzleSolver(PUZZLE_SEARCH_RANGE);
+		this.serverPublicKeys = new HashMap<>(serverPublicKeys);
+	}
+
+	private static Map<Integer, PublicKey> loadServerPublicKeys(int numberOfServerReplicas) throws CertificateException {
+		Map<Integer, PublicKey> serverPublicKeys = new HashMap<>();
 		for (int i = 0; i < numberOfServerReplicas; i++) {
 			serverPublicKeys.put(i, Resources.getServerReplicaPublicKey(i));
 		}
+		return serverPublicKeys;
+	}
+
+	public void setReplicaCallListener(ReplicaCallListener listener) {
+		this.replicaCallListener = listener;
 	}
 
 	private void printNumAcks(int numAcks) {
@@ -65,27 +129,206 @@ public class Client {
 	}
 
 	public void changeUser(String userId) throws KeyPairLoadingFailedException, KeyPairGenerationFailedException {
+		awaitWritesInFlight();
 		userPrivateKey = Resources.getPrivateKeyByUserId(userId);
 		userPublicKey = Resources.getPublicKeyByUserId(userId);
-		signatureManager.setKeyPair(userPrivateKey, userPublicKey);
+		try {
+			signatureManager.setKeyPair(userPrivateKey, userPublicKey);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new KeyPairLoadingFailedException(e);
+		}
 		lastCheckAccountTransfers = null;
+		// The chained nonces belong to the previous user's key, while sessions are kept to be used again if they come back
+		chainedNonces.clear();
+		sessionsOpening.clear();
+		sessions = sessionsByUser.computeIfAbsent(userPublicKey, k -> new ConcurrentHashMap<>());
 		System.out.printf("User changed to '%s'%n", userId);
 	}
 
-	public long requestNonce(ServerServiceBlockingStub stub) throws NonceRequestFailedException {
+	public ListenableFuture<ReplicaNonce> requestNonce(ServerServiceFutureStub stub) {
+		GetNonceRequest request = GetNonceRequest.newBuilder().setPublicKey(ByteString.copyFrom(userPublicKey.getEncoded())).build();
+		return Futures.transformAsync(stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).getNonce(request), response -> {
+			try {
+				byte[] cypheredNonce = response.getCypheredNonce().toByteArray();
+				long nonce = signatureManager.decypherNonce(cypheredNonce);
+				return Futures.immediateFuture(new ReplicaNonce(nonce, response.getPuzzle()));
+			}
+			catch (CypherFailedException e) {
+				throw new NonceRequestFailedException(e);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	// Makes the call authenticated by the session with the replica, opening one first if there is none, and falls
+	// back to a signed call when no session can be used. Then keeps the replica's next challenge and validates the response
+	private <R, T> ListenableFuture<T> callReplica(int replicaID, AsyncFunction<ReplicaNonce, R> call,
+			Function<R, Challenge> nextChallenge, QuorumCall.Validator<R, T> validator) {
+		ReplicaSession currentSession = sessions.get(replicaID);
+		ListenableFuture<ReplicaSession> session = (currentSession != null) ? Futures.immediateFuture(currentSession) : awaitSession(replicaID);
+		AsyncFunction<ReplicaNonce, T> validatedCall = nonceToClient -> Futures.transformAsync(call.apply(nonceToClient), r -> {
+			keepChallenge(replicaID, nextChallenge.apply(r));
+			return Futures.immediateFuture(validator.validate(r, nonceToClient));
+		}, MoreExecutors.directExecutor());
+		ListenableFuture<T> result = Futures.transformAsync(session, s -> (s != null) ? callWithSession(replicaID, s, validatedCall)
+				: callWithSignature(replicaID, validatedCall), MoreExecutors.directExecutor());
+		ReplicaCallListener listener = replicaCallListener;
+		if (listener != null) reportReplicaCall(listener, replicaID, result);
+		return result;
+	}
+
+	private static <T> void reportReplicaCall(ReplicaCallListener listener, int replicaID, ListenableFuture<T> call) {
+		long start = System.nanoTime();
+		Futures.addCallback(call, new FutureCallback<>() {
+			@Override
+			public void onSuccess(T response) {
+				listener.callFinished(replicaID, System.nanoTime() - start, null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				listener.callFinished(replicaID, System.nanoTime() - start, t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private <R> ListenableFuture<R> callWithSession(int replicaID, ReplicaSession session, AsyncFunction<ReplicaNonce, R> call) {
+		ReplicaNonce sessionNonce = session.nextNonce();
+		// The replica may have lost the session, e.g. after restarting, so drop it and sign the request instead
+		return Futures.catchingAsync(Futures.submitAsync(() -> call.apply(sessionNonce), MoreExecutors.directExecutor()),
+				StatusRuntimeException.class, e -> {
+					if (e.getStatus().getCode() != Status.Code.FAILED_PRECONDITION) throw e;
+					sessions.remove(replicaID, session);
+					return callWithSignature(replicaID, call);
+				}, MoreExecutors.directExecutor());
+	}
+
+	// Signs the call with the nonce the replica sent in its last response, or with a fresh one from get_nonce
+	private <R> ListenableFuture<R> callWithSignature(int replicaID, AsyncFunction<ReplicaNonce, R> call) {
+		ServerServiceFutureStub stub = stubs.get(replicaID);
+		ReplicaNonce chainedNonce = chainedNonces.remove(replicaID);
+		if (chainedNonce == null) {
+			return Futures.transformAsync(requestNonce(stub), call, MoreExecutors.directExecutor());
+		}
+		// The chained nonce is stale if the replica issued another one meanwhile, so retry once with a fresh one
+		return Futures.catchingAsync(Futures.submitAsync(() -> call.apply(chainedNonce), MoreExecutors.directExecutor()),
+				StatusRuntimeException.class, e -> {
+					if (e.getStatus().getCode() != Status.Code.FAILED_PRECONDITION) throw e;
+					return Futures.transformAsync(requestNonce(stub), call, MoreExecutors.directExecutor());
+				}, MoreExecutors.directExecutor());
+	}
+
+	// A replica keeps a single session per account, so a second one opened meanwhile, e.g. by a write while the read
+	// before it is still waiting for this replica, would replace the first under the calls using it
+	private ListenableFuture<ReplicaSession> awaitSession(int replicaID) {
+		ListenableFuture<ReplicaSession> opening = sessionsOpening.computeIfAbsent(replicaID, this::openSession);
+		opening.addListener(() -> sessionsOpening.remove(replicaID, opening), MoreExecutors.directExecutor());
+		// Shared, so a call cancelled once its quorum answered must not cancel it for the others
+		return Futures.nonCancellationPropagating(opening);
+	}
+
+	// Completes with null if the session couldn't be opened, in which case requests are just signed as before
+	private ListenableFuture<ReplicaSession> openSession(int replicaID) {
+		KeyPair ephemeralKeyPair;
 		try {
-			GetNonceRequest request = GetNonceRequest.newBuilder().setPublicKey(ByteString.copyFrom(userPublicKey.getEncoded())).build();
-			GetNonceResponse response = stub.getNonce(request);
-			byte[] cypheredNonce = response.getCypheredNonce().toByteArray();
-			currentPuzzle = response.getPuzzle();
-			return signatureManager.decypherNonce(cypheredNonce);
+			ephemeralKeyPair = ReplicaSession.generateEphemeralKeyPair();
 		}
-		catch (StatusRuntimeException e) {
-			System.out.println(SERVER_ERROR_PREFIX + e.getMessage());
-			throw new NonceRequestFailedException(e);
+		catch (NoSuchAlgorithmException e) {
+			return Futures.immediateFuture(null);
+		}
+		// Answered with a signature over the operation's nonce, like every other signed request
+		long nonceToServer = this.signatureManager.getCurrentNonce();
+		ListenableFuture<SignedOpenSessionResponse> response = callWithSignature(replicaID, nonceToClient -> {
+			OpenSessionRequest request = buildOpenSessionRequest(nonceToServer, replicaID, nonceToClient, ephemeralKeyPair.getPublic());
+			return openSession(stubs.get(replicaID), request, nonceToClient);
+		});
+		ListenableFuture<ReplicaSession> session = Futures.transformAsync(response, r -> {
+			keepChallenge(replicaID, r.getNextChallenge());
+			byte[] serverSignature = r.getSignature().toByteArray();
+			var content = r.getContent();
+			if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), nonceToServer, serverSignature, content.toByteArray()))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			ReplicaSession newSession = ReplicaSession.establish(ephemeralKeyPair, content.getEphemeralKey(), r.getNextChallenge().getPuzzle());
+			sessions.put(replicaID, newSession);
+			return Futures.immediateFuture(newSession);
+		}, MoreExecutors.directExecutor());
+		return Futures.catching(session, Exception.class, e -> null, MoreExecutors.directExecutor());
+	}
+
+	public OpenSessionRequest buildOpenSessionRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, PublicKey ephemeralKey)
+			throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
+		OpenSessionRequest.Builder builder = OpenSessionRequest.newBuilder();
+		builder.setPublicKey(ByteString.copyFrom(this.userPublicKey.getEncoded()));
+		builder.setEphemeralKey(ByteString.copyFrom(ephemeralKey.getEncoded()));
+		builder.setCypheredNonce(cypheredNonceToServer);
+		OpenSessionRequest content = builder.build();
+		return content;
+	}
+
+	public ListenableFuture<SignedOpenSessionResponse> openSession(ServerServiceFutureStub stub, OpenSessionRequest content, ReplicaNonce nonceToClient)
+			throws CypherFailedException {
+		byte[] signature = this.signatureManager.sign(nonceToClient.getNonce(), content.toByteArray());
+		SignedOpenSessionRequest.Builder signedBuilder = SignedOpenSessionRequest.newBuilder();
+		signedBuilder.setContent(content);
+		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		SignedOpenSessionRequest signedRequest = signedBuilder.build();
+		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).openSession(signedRequest);
+	}
+
+	private byte[] authenticate(ReplicaNonce nonceToClient, byte[] content) throws CypherFailedException {
+		ReplicaSession session = nonceToClient.getSession();
+		if (session != null) return session.macRequest(nonceToClient.getNonce(), content);
+		return this.signatureManager.sign(nonceToClient.getNonce(), content);
+	}
+
+	// Checked the way the request was authenticated and against its own nonce or counter, as writes may still be
+	// answered after the next operation started
+	private boolean isResponseSignatureValid(int replicaID, ReplicaNonce nonceToClient, long nonceToServer, byte[] signature,
+			byte[] content) throws SignatureVerificationFailedException {
+		ReplicaSession session = nonceToClient.getSession();
+		if (session != null) return session.isResponseMacValid(nonceToClient.getSessionCounter(), signature, content);
+		return this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), nonceToServer, signature, content);
+	}
+
+	private void keepChallenge(int replicaID, Challenge challenge) {
+		ReplicaSession session = sessions.get(replicaID);
+		if (session != null && challenge.hasPuzzle()) session.setPuzzle(challenge.getPuzzle());
+		if (challenge.getCypheredNonce().isEmpty()) return;
+		try {
+			long nonce = signatureManager.decypherNonce(challenge.getCypheredNonce().toByteArray());
+			chainedNonces.put(replicaID, new ReplicaNonce(nonce, challenge.getPuzzle()));
 		}
 		catch (CypherFailedException e) {
-			throw new NonceRequestFailedException(e);
+			// Not fatal, the next request to this replica will just ask for a new nonce
+			chainedNonces.remove(replicaID);
+		}
+	}
+
+	private <T> List<T> callQuorum(IntFunction<ListenableFuture<T>> replicaCall) {
+		return new QuorumCall<T>(numberOfServerReplicas, numberOfNeededResponses()).execute(replicaCall);
+	}
+
+	private <T> List<T> callWriteQuorum(IntFunction<ListenableFuture<T>> replicaCall) {
+		QuorumCall<T> quorumCall = new QuorumCall<>(numberOfServerReplicas, numberOfNeededResponses());
+		List<T> quorum = quorumCall.executeWrite(replicaCall);
+		ListenableFuture<Void> done = quorumCall.allCallsDone();
+		writesInFlight.add(done);
+		done.addListener(() -> writesInFlight.remove(done), MoreExecutors.directExecutor());
+		return quorum;
+	}
+
+	// The writes left to the slower replicas are signed and validated with the current user's keys, nonces and
+	// sessions, so they must be done before those change. Every call has a deadline, so this doesn't wait forever
+	private void awaitWritesInFlight() {
+		try {
+			Futures.whenAllComplete(writesInFlight).call(() -> null, MoreExecutors.directExecutor()).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			// Failures of these writes were already reported
 		}
 	}
 
@@ -103,29 +346,25 @@ public class Client {
 		}
 	}
 
-	public long findPuzzleSolution()
-			throws NoCurrentPuzzleException, NoSuchAlgorithmException, NoPuzzleSolutionFoundException {
+	public ListenableFuture<Long> findPuzzleSolution(Puzzle currentPuzzle) throws NoCurrentPuzzleException {
 		if (currentPuzzle == null) throw new NoCurrentPuzzleException();
-		byte[] puzzle = currentPuzzle.getPuzzle().toByteArray();
-		byte[] salt = currentPuzzle.getPuzzleSalt().toByteArray();
-		for (long i = 0; i < PUZZLE_SEARCH_RANGE; i++) {
-			byte[] rawPuzzle = ByteBuffer.allocate(Long.BYTES + salt.length).putLong(i).put(salt).array();
-			byte[] attempt = MessageDigest.getInstance("SHA-256").digest(rawPuzzle);
-			if (Arrays.equals(puzzle, attempt)) return i;
-		}
-		throw new NoPuzzleSolutionFoundException();
+		return puzzleSolver.solveAsync(currentPuzzle);
 	}
 
 	private PublicKey publicKeyFromByteString(ByteString publicKeyBS)
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
-		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyBS.toByteArray()));
+		return publicKeyCache.get(publicKeyBS);
 	}
 
-	private ByteString getCypheredNonceToServer(long nonceToServer, int replicaID) throws CypherFailedException {
+	private ByteString getCypheredNonceToServer(long nonceToServer, int replicaID, ReplicaNonce nonceToClient)
+			throws CypherFailedException {
+		// Requests in a session are answered with a MAC over the session counter, so the nonce isn't needed. Whether
+		// there is a session now doesn't matter, another call may have just opened one after this request was signed
+		if (nonceToClient.getSession() != null) return ByteString.EMPTY;
 		return ByteString.copyFrom(signatureManager.cypherNonce(this.serverPublicKeys.get(replicaID), nonceToServer));
 	}
 
-	private int numberOfNeededResponses() {
+	int numberOfNeededResponses() {
 		return (this.numberOfServerReplicas + this.faultsToTolerate) / 2;
 	}
 
@@ -147,9 +386,9 @@ public class Client {
 	}
 
 	// Open Account
-	public OpenAccountRequest buildOpenAccountRequest(long nonceToServer, int replicaID, Balance initialBalance, byte[] balanceSignature, ListSizes listSizes, byte[] sizesSignature)
-			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+	public OpenAccountRequest buildOpenAccountRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, Balance initialBalance, byte[] balanceSignature, ListSizes listSizes, byte[] sizesSignature,
+			byte[] headSignature) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		OpenAccountRequest.Builder builder = OpenAccountRequest.newBuilder();
 		builder.setPublicKey(ByteString.copyFrom(this.userPublicKey.getEncoded()));
 		builder.setCypheredNonce(cypheredNonceToServer);
@@ -157,16 +396,18 @@ public class Client {
 		builder.setBalanceSignature(ByteString.copyFrom(balanceSignature));
 		builder.setListSizes(listSizes);
 		builder.setListSizesSignature(ByteString.copyFrom(sizesSignature));
+		builder.setApprovedHeadSignature(ByteString.copyFrom(headSignature));
 		OpenAccountRequest content = builder.build();
 		return content;
 	}
 
-	public SignedOpenAccountResponse openAccount(ServerServiceBlockingStub stub, OpenAccountRequest content, long nonceToClient)
+	public ListenableFuture<SignedOpenAccountResponse> openAccount(ServerServiceFutureStub stub, OpenAccountRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedOpenAccountRequest.Builder signedBuilder = SignedOpenAccountRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedOpenAccountRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).openAccount(signedRequest);
 	}
@@ -176,25 +417,19 @@ public class Client {
 		byte[] balanceSignature = this.signatureManager.signBalance(initialBalance);
 		ListSizes listSizes = buildListSizes(0, 0, 0);
 		byte[] sizesSignature = this.signatureManager.signListSizes(listSizes);
+		byte[] headSignature = this.signatureManager.signApprovedHead(listSizes);
 		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		int numAcks = 0;
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
-			try {
-				var nonceToClient = requestNonce(stub);
-				OpenAccountRequest request = buildOpenAccountRequest(nonceToServer, replicaID, initialBalance, balanceSignature, listSizes, sizesSignature);
-				var response = openAccount(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				if (this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature)) {
-					numAcks++;
-				}
-			}
-			catch (StatusRuntimeException | NonceRequestFailedException | CypherFailedException |
-			       SignatureVerificationFailedException e) {
-				handleException(e);
-			}
-		}
-		printNumAcks(numAcks);
+		List<SignedOpenAccountResponse> acks = callWriteQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			OpenAccountRequest request = buildOpenAccountRequest(nonceToServer, replicaID, nonceToClient, initialBalance, balanceSignature, listSizes, sizesSignature,
+					headSignature);
+			return openAccount(stubs.get(replicaID), request, nonceToClient);
+		}, SignedOpenAccountResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, EMPTY))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			return response;
+		}));
+		printNumAcks(acks.size());
 	}
 
 	private Balance buildInitialBalance() {
@@ -204,63 +439,88 @@ public class Client {
 		return builder.build();
 	}
 
-	public ReadForWriteRequest buildReadForWriteRequest(long nonceToServer, int replicaID, ByteString senderKey, ByteString receiverKey, boolean isSender)
+	public ReadForWriteRequest buildReadForWriteRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, ByteString senderKey, ByteString receiverKey, boolean isSender)
 			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+		return buildReadForWriteRequest(nonceToServer, replicaID, nonceToClient, senderKey, receiverKey, isSender, List.of());
+	}
+
+	public ReadForWriteRequest buildReadForWriteRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, ByteString senderKey, ByteString receiverKey, boolean isSender,
+			List<ByteString> batchAccountKeys) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		ReadForWriteRequest.Builder builder = ReadForWriteRequest.newBuilder();
 		builder.setSenderKey(senderKey);
 		builder.setReceiverKey(receiverKey);
 		builder.setIsSender(isSender);
 		builder.setCypheredNonce(cypheredNonceToServer);
+		builder.addAllBatchAccountKeys(batchAccountKeys);
 		ReadForWriteRequest content = builder.build();
 		return content;
 	}
 
-	public SignedReadForWriteResponse readForWrite(ServerServiceBlockingStub stub, ReadForWriteRequest content, long nonceToClient)
+	public ListenableFuture<SignedReadForWriteResponse> readForWrite(ServerServiceFutureStub stub, ReadForWriteRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedReadForWriteRequest.Builder signedBuilder = SignedReadForWriteRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedReadForWriteRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).readForWrite(signedRequest);
 	}
 
 	public InfoForWrite readForWrite(ByteString senderKey, ByteString receiverKey, boolean isSender)
 			throws NotEnoughValidResponsesException {
+		return readForWrite(senderKey, receiverKey, isSender, List.of());
+	}
+
+	// The list sizes of every account in the batch come back in the same round as the rest
+	public InfoForWrite readForWrite(ByteString senderKey, ByteString receiverKey, boolean isSender, List<ByteString> batchAccountKeys)
+			throws NotEnoughValidResponsesException {
 		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		List<ReadForWriteResponse> readList = new ArrayList<>();
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
-			try {
-				var nonceToClient = requestNonce(stub);
-				ReadForWriteRequest request = buildReadForWriteRequest(nonceToServer, replicaID, senderKey, receiverKey, isSender);
-				var response = readForWrite(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				var content = response.getContent();
-				if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature, content.toByteArray()))
-					throw new InvalidSignatureException("Invalid nonce signature");
-				if (!this.signatureManager.isBalanceSignatureValid(content.getBalanceSignature().toByteArray(), content.getBalance()))
-					throw new InvalidSignatureException("Invalid balance signature");
-				if (!this.signatureManager.isListSizesSignatureValid(publicKeyFromByteString(content.getReceiverListSizesSigner()), content.getReceiverListSizesSignature().toByteArray(), content.getReceiverListSizes()))
-					throw new InvalidSignatureException("Invalid receiver list sizes signature");
-				if (!this.signatureManager.isListSizesSignatureValid(publicKeyFromByteString(content.getSenderListSizesSigner()), content.getSenderListSizesSignature().toByteArray(), content.getSenderListSizes()))
-					throw new InvalidSignatureException("Invalid sender list sizes signature");
-				readList.add(content);
-			}
-			catch (Exception e) {
-				handleException(e);
+		List<ReadForWriteResponse> readList = callQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			ReadForWriteRequest request = buildReadForWriteRequest(nonceToServer, replicaID, nonceToClient, senderKey, receiverKey, isSender, batchAccountKeys);
+			return readForWrite(stubs.get(replicaID), request, nonceToClient);
+		}, SignedReadForWriteResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			var content = response.getContent();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, content.toByteArray()))
+				throw new InvalidSignatureException("Invalid nonce signature");
+			if (!this.signatureManager.isBalanceSignatureValid(content.getBalanceSignature().toByteArray(), content.getBalance()))
+				throw new InvalidSignatureException("Invalid balance signature");
+			if (!isStoredListSizesSignatureValid(content.getReceiverListSizesSigner(), content.getReceiverListSizesSignature(), content.getReceiverListSizes()))
+				throw new InvalidSignatureException("Invalid receiver list sizes signature");
+			if (!isStoredListSizesSignatureValid(content.getSenderListSizesSigner(), content.getSenderListSizesSignature(), content.getSenderListSizes()))
+				throw new InvalidSignatureException("Invalid sender list sizes signature");
+			if (content.getBatchListSizesCount() != batchAccountKeys.size())
+				throw new InvalidSignatureException("Missing batch list sizes");
+			for (int i = 0; i < batchAccountKeys.size(); i++) {
+				if (!isStoredListSizesSignatureValid(content.getBatchListSizesSigners(i), content.getBatchListSizesSignatures(i), content.getBatchListSizes(i)))
+					throw new InvalidSignatureException("Invalid batch list sizes signature");
 			}
-		}
+			return content;
+		}));
 		printNumAcks(readList.size());
 		if (readList.size() >= numberOfNeededResponses()) {
-			return new InfoForWrite(getMostRecentBalance(readList), getMostRecentListSizes(readList, 0), getMostRecentListSizes(readList, 1));
+			List<ListSizes> batchListSizes = new ArrayList<>(batchAccountKeys.size());
+			for (int i = 0; i < batchAccountKeys.size(); i++) {
+				batchListSizes.add(getMostRecentBatchListSizes(readList, i));
+			}
+			return new InfoForWrite(getMostRecentBalance(readList), getMostRecentListSizes(readList, 0), getMostRecentListSizes(readList, 1),
+					batchListSizes);
 		}
 		else {
 			throw new NotEnoughValidResponsesException();
 		}
 	}
 
+	// Accounts migrated from before lists had a head keep their old signature until the next write re-signs them
+	private boolean isStoredListSizesSignatureValid(ByteString signerBS, ByteString signature, ListSizes listSizes)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException {
+		PublicKey signer = publicKeyFromByteString(signerBS);
+		return this.signatureManager.isListSizesSignatureValid(signer, signature.toByteArray(), listSizes)
+				|| this.signatureManager.isLegacyListSizesSignatureValid(signer, signature.toByteArray(), listSizes);
+	}
+
 	private Balance getMostRecentBalance(List<ReadForWriteResponse> readList) throws NotEnoughValidResponsesException {
 		int highestWts = -1;
 		Balance mostRecentBalance = null;
@@ -290,15 +550,33 @@ public class Client {
 		return mostRecentListSizes;
 	}
 
-	public SendAmountRequest buildSendAmountRequest(long nonceToServer, int replicaID, Transfer transfer, byte[] senderSignature,
-			Balance balance, byte[] balanceSignature, ListSizes receiverListSizes, byte[] receiverSizesSignature)
-			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+	private ListSizes getMostRecentBatchListSizes(List<ReadForWriteResponse> readList, int index)
+			throws NotEnoughValidResponsesException {
+		int highestWts = -1;
+		ListSizes mostRecentListSizes = null;
+		for (ReadForWriteResponse response : readList) {
+			ListSizes listSizes = response.getBatchListSizes(index);
+			if (listSizes.getWts() > highestWts) {
+				highestWts = listSizes.getWts();
+				mostRecentListSizes = listSizes;
+			}
+		}
+		if (mostRecentListSizes == null) throw new NotEnoughValidResponsesException();
+		return mostRecentListSizes;
+	}
+
+	public SendAmountRequest buildSendAmountRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, Transfer transfer, byte[] senderSignature,
+			Balance balance, byte[] balanceSignature, ListSizes senderListSizes, byte[] senderSizesSignature, byte[] senderHeadSignature,
+			ListSizes receiverListSizes, byte[] receiverSizesSignature) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		SendAmountRequest.Builder builder = SendAmountRequest.newBuilder();
 		builder.setTransfer(transfer);
 		builder.setSenderTransferSignature(ByteString.copyFrom(senderSignature));
 		builder.setNewBalance(balance);
 		builder.setBalanceSignature(ByteString.copyFrom(balanceSignature));
+		builder.setSenderListSizes(senderListSizes);
+		builder.setSenderSizesSignature(ByteString.copyFrom(senderSizesSignature));
+		builder.setSenderHeadSignature(ByteString.copyFrom(senderHeadSignature));
 		builder.setReceiverListSizes(receiverListSizes);
 		builder.setReceiverSizesSignature(ByteString.copyFrom(receiverSizesSignature));
 		builder.setCypheredNonce(cypheredNonceToServer);
@@ -306,12 +584,13 @@ public class Client {
 		return content;
 	}
 
-	public SignedSendAmountResponse sendAmount(ServerServiceBlockingStub stub, SendAmountRequest content, long nonceToClient)
+	public ListenableFuture<SignedSendAmountResponse> sendAmount(ServerServiceFutureStub stub, SendAmountRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedSendAmountRequest.Builder signedBuilder = SignedSendAmountRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedSendAmountRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).sendAmount(signedRequest);
 	}
@@ -321,29 +600,151 @@ public class Client {
 			NotEnoughValidResponsesException {
 		Transfer newTransfer = buildTransfer(System.currentTimeMillis(), this.userPublicKey, Resources.getPublicKeyByUserId(destinationUserId), amount);
 		byte[] senderSignature = this.signatureManager.sign(newTransfer.toByteArray());
-		InfoForWrite infoForWrite = readForWrite(ByteString.copyFrom(this.userPublicKey.getEncoded()), ByteString.copyFrom(Resources.getPublicKeyByUserId(destinationUserId).getEncoded()), true);
+		boolean toSelf = newTransfer.getSenderKey().equals(newTransfer.getReceiverKey());
+		InfoForWrite infoForWrite = readForWrite(newTransfer.getSenderKey(), newTransfer.getReceiverKey(), true);
 		Balance newBalance = getDecrementedBalance(infoForWrite.getBalance(), amount);
 		byte[] balanceSignature = this.signatureManager.signBalance(newBalance);
-		ListSizes newReceiverListSizes = getListSizesNewPending(infoForWrite.getSenderListSizes());
-		byte[] receiverSizesSignature = this.signatureManager.signListSizes(newReceiverListSizes);
+		// The transfer joins the sender's approved list as it is sent, a transfer to oneself is also pending in it
+		ListSizes newSenderListSizes = getNewListSizes(infoForWrite.getSenderListSizes(), (toSelf) ? 1 : 0, List.of(newTransfer));
+		byte[] senderSizesSignature = this.signatureManager.signListSizes(newSenderListSizes);
+		byte[] senderHeadSignature = this.signatureManager.signApprovedHead(newSenderListSizes);
+		ListSizes newReceiverListSizes = (toSelf) ? newSenderListSizes : getNewListSizes(infoForWrite.getReceiverListSizes(), 1, List.of());
+		byte[] receiverSizesSignature = (toSelf) ? senderSizesSignature : this.signatureManager.signListSizes(newReceiverListSizes);
 		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		int numAcks = 0;
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
+		List<SignedSendAmountResponse> acks = callWriteQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			SendAmountRequest request = buildSendAmountRequest(nonceToServer, replicaID, nonceToClient, newTransfer, senderSignature,
+					newBalance, balanceSignature, newSenderListSizes, senderSizesSignature, senderHeadSignature, newReceiverListSizes,
+					receiverSizesSignature);
+			return sendAmount(stubs.get(replicaID), request, nonceToClient);
+		}, SignedSendAmountResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, EMPTY))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			return response;
+		}));
+		int numAcks = acks.size();
+		printNumAcks(numAcks);
+		if (numAcks >= numberOfNeededResponses()) {
+			System.out.println(FULL_OPERATION_SUCCESSFUL);
+		}
+		else {
+			throw new NotEnoughValidResponsesException();
+		}
+	}
+
+	public SendAmountBatchRequest buildSendAmountBatchRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, List<Transfer> transfers,
+			List<ByteString> senderSignatures, Balance balance, byte[] balanceSignature, ListSizes senderListSizes,
+			byte[] senderSizesSignature, byte[] senderHeadSignature, List<ByteString> receiverKeys, List<ListSizes> receiverListSizes,
+			List<ByteString> receiverSizesSignatures) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
+		SendAmountBatchRequest.Builder builder = SendAmountBatchRequest.newBuilder();
+		builder.addAllTransfers(transfers);
+		builder.addAllSenderTransferSignatures(senderSignatures);
+		builder.setNewBalance(balance);
+		builder.setBalanceSignature(ByteString.copyFrom(balanceSignature));
+		builder.setSenderListSizes(senderListSizes);
+		builder.setSenderSizesSignature(ByteString.copyFrom(senderSizesSignature));
+		builder.setSenderHeadSignature(ByteString.copyFrom(senderHeadSignature));
+		builder.addAllReceiverKeys(receiverKeys);
+		builder.addAllReceiverListSizes(receiverListSizes);
+		builder.addAllReceiverSizesSignatures(receiverSizesSignatures);
+		builder.setCypheredNonce(cypheredNonceToServer);
+		SendAmountBatchRequest content = builder.build();
+		return content;
+	}
+
+	public ListenableFuture<SignedSendAmountBatchResponse> sendAmountBatch(ServerServiceFutureStub stub, SendAmountBatchRequest content, ReplicaNonce nonceToClient)
+			throws CypherFailedException {
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
+		SignedSendAmountBatchRequest.Builder signedBuilder = SignedSendAmountBatchRequest.newBuilder();
+		signedBuilder.setContent(content);
+		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
+		SignedSendAmountBatchRequest signedRequest = signedBuilder.build();
+		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).sendAmountBatch(signedRequest);
+	}
+
+	// Sends the transfers with a single read for write and a single write per part of the batch, so the new balance
+	// and each receiver's list sizes are only signed once per part. Replicas reject transfers whose timestamp is more
+	// than a few seconds old, and the timestamps are taken before the transfers are signed, so batches larger than
+	// MAX_BATCH_PART_SIZE are sent in several parts, each applied on its own. If a part fails after others were
+	// applied, the exception says how many transfers were sent, so the caller can resume with the rest.
+	// Returns the number of transfers sent, which is all of them
+	public int sendAmountBatch(List<String> destinationUserIds, List<Integer> amounts)
+			throws KeyPairLoadingFailedException, KeyPairGenerationFailedException, CypherFailedException,
+			NotEnoughValidResponsesException, BatchPartiallySentException {
+		long lastTimestamp = Long.MIN_VALUE;
+		for (int start = 0; start < destinationUserIds.size(); start += MAX_BATCH_PART_SIZE) {
+			int end = Math.min(start + MAX_BATCH_PART_SIZE, destinationUserIds.size());
 			try {
-				var nonceToClient = requestNonce(stub);
-				SendAmountRequest request = buildSendAmountRequest(nonceToServer, replicaID, newTransfer, senderSignature,
-						newBalance, balanceSignature, newReceiverListSizes, receiverSizesSignature);
-				var response = sendAmount(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature))
-					throw new InvalidSignatureException("Nonce signature is invalid");
-				numAcks++;
+				lastTimestamp = sendAmountBatchPart(destinationUserIds.subList(start, end), amounts.subList(start, end), lastTimestamp);
 			}
-			catch (Exception e) {
-				handleException(e);
+			catch (KeyPairLoadingFailedException | KeyPairGenerationFailedException | CypherFailedException |
+			       NotEnoughValidResponsesException | RuntimeException e) {
+				if (start == 0) throw e;
+				throw new BatchPartiallySentException(start, destinationUserIds.size(), e);
 			}
 		}
+		return destinationUserIds.size();
+	}
+
+	// Returns the latest timestamp used, which the transfers of the next part must all come after
+	private long sendAmountBatchPart(List<String> destinationUserIds, List<Integer> amounts, long lastTimestamp)
+			throws KeyPairLoadingFailedException, KeyPairGenerationFailedException, CypherFailedException,
+			NotEnoughValidResponsesException {
+		ByteString senderKey = ByteString.copyFrom(this.userPublicKey.getEncoded());
+		List<PublicKey> receiverPublicKeys = new ArrayList<>(destinationUserIds.size());
+		Map<ByteString, Integer> newPendingPerReceiver = new LinkedHashMap<>();
+		for (String destinationUserId : destinationUserIds) {
+			PublicKey receiverPublicKey = Resources.getPublicKeyByUserId(destinationUserId);
+			receiverPublicKeys.add(receiverPublicKey);
+			newPendingPerReceiver.merge(ByteString.copyFrom(receiverPublicKey.getEncoded()), 1, Integer::sum);
+		}
+		// Transfers to the same receiver are told apart by their timestamp, so each one to a receiver gets its own
+		// millisecond, the last of them being now as replicas also reject timestamps in the future
+		long now = waitUntil(lastTimestamp + Collections.max(newPendingPerReceiver.values()));
+		Map<ByteString, Integer> sentPerReceiver = new HashMap<>();
+		List<Transfer> transfers = new ArrayList<>(destinationUserIds.size());
+		List<ByteString> senderSignatures = new ArrayList<>(destinationUserIds.size());
+		int totalAmount = 0;
+		for (int i = 0; i < destinationUserIds.size(); i++) {
+			PublicKey receiverPublicKey = receiverPublicKeys.get(i);
+			ByteString receiverKey = ByteString.copyFrom(receiverPublicKey.getEncoded());
+			long timestamp = now - newPendingPerReceiver.get(receiverKey) + sentPerReceiver.merge(receiverKey, 1, Integer::sum);
+			Transfer transfer = buildTransfer(timestamp, this.userPublicKey, receiverPublicKey, amounts.get(i));
+			transfers.add(transfer);
+			senderSignatures.add(ByteString.copyFrom(this.signatureManager.sign(transfer.toByteArray())));
+			totalAmount += amounts.get(i);
+		}
+		// Transfers to oneself are pending in the sender's own list sizes, which chain every transfer of the part
+		List<ByteString> receiverKeys = new ArrayList<>(newPendingPerReceiver.keySet());
+		receiverKeys.remove(senderKey);
+		InfoForWrite infoForWrite = readForWrite(senderKey, senderKey, true, receiverKeys);
+		Balance newBalance = getDecrementedBalance(infoForWrite.getBalance(), totalAmount);
+		byte[] balanceSignature = this.signatureManager.signBalance(newBalance);
+		ListSizes newSenderListSizes = getNewListSizes(infoForWrite.getSenderListSizes(), newPendingPerReceiver.getOrDefault(senderKey, 0), transfers);
+		byte[] senderSizesSignature = this.signatureManager.signListSizes(newSenderListSizes);
+		byte[] senderHeadSignature = this.signatureManager.signApprovedHead(newSenderListSizes);
+		List<ListSizes> newReceiverListSizes = new ArrayList<>(receiverKeys.size());
+		List<ByteString> receiverSizesSignatures = new ArrayList<>(receiverKeys.size());
+		for (int i = 0; i < receiverKeys.size(); i++) {
+			ListSizes listSizes = getNewListSizes(infoForWrite.getBatchListSizes().get(i), newPendingPerReceiver.get(receiverKeys.get(i)), List.of());
+			newReceiverListSizes.add(listSizes);
+			receiverSizesSignatures.add(ByteString.copyFrom(this.signatureManager.signListSizes(listSizes)));
+		}
+		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
+		List<SignedSendAmountBatchResponse> acks = callWriteQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			SendAmountBatchRequest request = buildSendAmountBatchRequest(nonceToServer, replicaID, nonceToClient, transfers, senderSignatures,
+					newBalance, balanceSignature, newSenderListSizes, senderSizesSignature, senderHeadSignature, receiverKeys,
+					newReceiverListSizes, receiverSizesSignatures);
+			return sendAmountBatch(stubs.get(replicaID), request, nonceToClient);
+		}, SignedSendAmountBatchResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, EMPTY))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			return response;
+		}));
+		int numAcks = acks.size();
 		printNumAcks(numAcks);
 		if (numAcks >= numberOfNeededResponses()) {
 			System.out.println(FULL_OPERATION_SUCCESSFUL);
@@ -351,28 +752,31 @@ public class Client {
 		else {
 			throw new NotEnoughValidResponsesException();
 		}
+		return now;
 	}
 
-	private ListSizes getListSizesNewPending(ListSizes listSizes) {
-		ListSizes.Builder builder = ListSizes.newBuilder();
-		builder.setPendingSize(listSizes.getPendingSize() + 1);
-		builder.setApprovedSize(listSizes.getApprovedSize());
-		builder.setWts(listSizes.getWts() + 1);
-		return builder.build();
-	}
-
-	private ListSizes getListSizesNewApproved(ListSizes listSizes) {
-		ListSizes.Builder builder = ListSizes.newBuilder();
-		builder.setPendingSize(listSizes.getPendingSize());
-		builder.setApprovedSize(listSizes.getApprovedSize() + 1);
-		builder.setWts(listSizes.getWts() + 1);
-		return builder.build();
+	// Returns the current time, once it is at least the given one
+	private static long waitUntil(long timestamp) {
+		long now = System.currentTimeMillis();
+		while (now < timestamp) {
+			try {
+				Thread.sleep(timestamp - now);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			now = System.currentTimeMillis();
+		}
+		return now;
 	}
 
-	private ListSizes getListSizesPendingToApproved(ListSizes listSizes) {
+	// The new head is chained over the newly approved transfers in the order they are approved in
+	private ListSizes getNewListSizes(ListSizes listSizes, int pendingDiff, List<Transfer> newApproved) {
 		ListSizes.Builder builder = ListSizes.newBuilder();
-		builder.setPendingSize(listSizes.getPendingSize() - 1);
-		builder.setApprovedSize(listSizes.getApprovedSize() + 1);
+		builder.setPendingSize(listSizes.getPendingSize() + pendingDiff);
+		builder.setApprovedSize(listSizes.getApprovedSize() + newApproved.size());
+		builder.setApprovedHead(TransferChain.extend(listSizes.getApprovedHead(), newApproved));
 		builder.setWts(listSizes.getWts() + 1);
 		return builder.build();
 	}
@@ -393,11 +797,9 @@ public class Client {
 		StringBuilder builder = new StringBuilder();
 		for (int i = 0; i < transferFieldsList.size(); i++) {
 			Transfer transferFields = transferFieldsList.get(i);
-			byte[] sourceKeyBytes = transferFields.getSenderKey().toByteArray();
-			PublicKey sourceKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(sourceKeyBytes));
+			PublicKey sourceKey = publicKeyFromByteString(transferFields.getSenderKey());
 			String sourceKeyString = Base64.getEncoder().encodeToString(sourceKey.getEncoded());
-			byte[] destinationKeyBytes = transferFields.getReceiverKey().toByteArray();
-			PublicKey destinationKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(destinationKeyBytes));
+			PublicKey destinationKey = publicKeyFromByteString(transferFields.getReceiverKey());
 			String destinationKeyString = Base64.getEncoder().encodeToString(destinationKey.getEncoded());
 			int amount = transferFields.getAmount();
 			String direction = (userPublicKey.equals(sourceKey)) ? "OUTGOING" : "INCOMING";
@@ -406,9 +808,9 @@ public class Client {
 		return builder.toString();
 	}
 
-	public CheckAccountRequest buildCheckAccountRequest(long nonceToServer, int replicaID, long puzzleSolution)
+	public CheckAccountRequest buildCheckAccountRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, long puzzleSolution)
 			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		CheckAccountRequest.Builder builder = CheckAccountRequest.newBuilder();
 		builder.setPublicKey(ByteString.copyFrom(this.userPublicKey.getEncoded()));
 		builder.setCypheredNonce(cypheredNonceToServer);
@@ -417,12 +819,13 @@ public class Client {
 		return content;
 	}
 
-	public SignedCheckAccountResponse checkAccount(ServerServiceBlockingStub stub, CheckAccountRequest content, long nonceToClient)
+	public ListenableFuture<SignedCheckAccountResponse> checkAccount(ServerServiceFutureStub stub, CheckAccountRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedCheckAccountRequest.Builder signedBuilder = SignedCheckAccountRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedCheckAccountRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).checkAccount(signedRequest);
 	}
@@ -430,24 +833,19 @@ public class Client {
 	public void checkAccount()
 			throws NoSuchAlgorithmException, InvalidKeySpecException, NotEnoughValidResponsesException {
 		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		List<CheckAccountResponse> readList = new ArrayList<>();
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
-			try {
-				var nonceToClient = requestNonce(stub);
-				CheckAccountRequest request = buildCheckAccountRequest(nonceToServer, replicaID, findPuzzleSolution());
-				var response = checkAccount(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				var content = response.getContent();
-				if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature, content.toByteArray()))
-					throw new InvalidSignatureException("Nonce signature is invalid");
-				readList.add(content);
-				System.out.println(OPERATION_SUCCESSFUL);
-			}
-			catch (Exception e) {
-				handleException(e);
-			}
-		}
+		// Each replica's call waits for its own puzzle, and every puzzle is being solved at the same time
+		List<CheckAccountResponse> readList = callQuorum(replicaID -> callReplica(replicaID, nonceToClient ->
+				Futures.transformAsync(findPuzzleSolution(nonceToClient.getPuzzle()), puzzleSolution -> {
+					CheckAccountRequest request = buildCheckAccountRequest(nonceToServer, replicaID, nonceToClient, puzzleSolution);
+					return checkAccount(stubs.get(replicaID), request, nonceToClient);
+				}, MoreExecutors.directExecutor()), SignedCheckAccountResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			var content = response.getContent();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, content.toByteArray()))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			System.out.println(OPERATION_SUCCESSFUL);
+			return content;
+		}));
 		printNumAcks(readList.size());
 		if (readList.size() >= numberOfNeededResponses()) {
 			int balance = getMostRecentBalanceValue(readList);
@@ -501,31 +899,30 @@ public class Client {
 		return lastCheckAccountTransfers.get(transferNum);
 	}
 
-	public ReceiveAmountRequest buildReceiveAmountRequest(long nonceToServer, int replicaID, Transfer transfer,
-			byte[] receiverSignature, Balance balance, byte[] balanceSignature, ListSizes senderListSizes,
-			byte[] senderSizesSignature, ListSizes receiverListSizes, byte[] receiverSizesSignature)
-			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+	public ReceiveAmountRequest buildReceiveAmountRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, Transfer transfer,
+			byte[] receiverSignature, Balance balance, byte[] balanceSignature, ListSizes receiverListSizes,
+			byte[] receiverSizesSignature, byte[] receiverHeadSignature) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		ReceiveAmountRequest.Builder builder = ReceiveAmountRequest.newBuilder();
 		builder.setTransfer(transfer);
 		builder.setReceiverTransferSignature(ByteString.copyFrom(receiverSignature));
 		builder.setNewBalance(balance);
 		builder.setBalanceSignature(ByteString.copyFrom(balanceSignature));
-		builder.setSenderListSizes(senderListSizes);
-		builder.setSenderSizesSignature(ByteString.copyFrom(senderSizesSignature));
 		builder.setReceiverListSizes(receiverListSizes);
 		builder.setReceiverSizesSignature(ByteString.copyFrom(receiverSizesSignature));
+		builder.setReceiverHeadSignature(ByteString.copyFrom(receiverHeadSignature));
 		builder.setCypheredNonce(cypheredNonceToServer);
 		ReceiveAmountRequest content = builder.build();
 		return content;
 	}
 
-	public SignedReceiveAmountResponse receiveAmount(ServerServiceBlockingStub stub, ReceiveAmountRequest content, long nonceToClient)
+	public ListenableFuture<SignedReceiveAmountResponse> receiveAmount(ServerServiceFutureStub stub, ReceiveAmountRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedReceiveAmountRequest.Builder signedBuilder = SignedReceiveAmountRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedReceiveAmountRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).receiveAmount(signedRequest);
 	}
@@ -537,29 +934,24 @@ public class Client {
 		InfoForWrite infoForWrite = readForWrite(targetTransfer.getSenderKey(), targetTransfer.getReceiverKey(), false);
 		Balance newBalance = getIncrementedBalance(infoForWrite.getBalance(), targetTransfer.getAmount());
 		byte[] balanceSignature = this.signatureManager.signBalance(newBalance);
-		ListSizes senderListSizes = getListSizesNewApproved(infoForWrite.getSenderListSizes());
-		byte[] senderSizesSignature = this.signatureManager.signListSizes(senderListSizes);
-		ListSizes receiverListSizes = getListSizesPendingToApproved(infoForWrite.getReceiverListSizes());
+		// The sender's approved list has had the transfer since it was sent, a transfer to oneself included
+		boolean fromSelf = targetTransfer.getSenderKey().equals(targetTransfer.getReceiverKey());
+		ListSizes receiverListSizes = getNewListSizes(infoForWrite.getReceiverListSizes(), -1, (fromSelf) ? List.of() : List.of(targetTransfer));
 		byte[] receiverSizesSignature = this.signatureManager.signListSizes(receiverListSizes);
+		byte[] receiverHeadSignature = this.signatureManager.signApprovedHead(receiverListSizes);
 		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		int numAcks = 0;
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
-			try {
-				var nonceToClient = requestNonce(stub);
-				ReceiveAmountRequest request = buildReceiveAmountRequest(nonceToServer, replicaID, targetTransfer, receiverSignature,
-						newBalance, balanceSignature, senderListSizes, senderSizesSignature, receiverListSizes, receiverSizesSignature);
-				var response = receiveAmount(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature))
-					throw new InvalidSignatureException("Nonce signature is invalid");
-				numAcks++;
-				System.out.println(OPERATION_SUCCESSFUL);
-			}
-			catch (Exception e) {
-				handleException(e);
-			}
-		}
+		List<SignedReceiveAmountResponse> acks = callWriteQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			ReceiveAmountRequest request = buildReceiveAmountRequest(nonceToServer, replicaID, nonceToClient, targetTransfer, receiverSignature,
+					newBalance, balanceSignature, receiverListSizes, receiverSizesSignature, receiverHeadSignature);
+			return receiveAmount(stubs.get(replicaID), request, nonceToClient);
+		}, SignedReceiveAmountResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, EMPTY))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			System.out.println(OPERATION_SUCCESSFUL);
+			return response;
+		}));
+		int numAcks = acks.size();
 		printNumAcks(numAcks);
 		if (numAcks >= numberOfNeededResponses()) {
 			System.out.println(FULL_OPERATION_SUCCESSFUL);
@@ -570,69 +962,215 @@ public class Client {
 
 	}
 
-	// Audit
-	public AuditRequest buildAuditRequest(long nonceToServer, int replicaID, long puzzleSolution)
+	public ReceiveAmountBatchRequest buildReceiveAmountBatchRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, List<Transfer> transfers,
+			List<ByteString> receiverSignatures, Balance balance, byte[] balanceSignature, ListSizes receiverListSizes,
+			byte[] receiverSizesSignature, byte[] receiverHeadSignature) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
+		ReceiveAmountBatchRequest.Builder builder = ReceiveAmountBatchRequest.newBuilder();
+		builder.addAllTransfers(transfers);
+		builder.addAllReceiverTransferSignatures(receiverSignatures);
+		builder.setNewBalance(balance);
+		builder.setBalanceSignature(ByteString.copyFrom(balanceSignature));
+		builder.setReceiverListSizes(receiverListSizes);
+		builder.setReceiverSizesSignature(ByteString.copyFrom(receiverSizesSignature));
+		builder.setReceiverHeadSignature(ByteString.copyFrom(receiverHeadSignature));
+		builder.setCypheredNonce(cypheredNonceToServer);
+		ReceiveAmountBatchRequest content = builder.build();
+		return content;
+	}
+
+	public ListenableFuture<SignedReceiveAmountBatchResponse> receiveAmountBatch(ServerServiceFutureStub stub, ReceiveAmountBatchRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID);
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
+		SignedReceiveAmountBatchRequest.Builder signedBuilder = SignedReceiveAmountBatchRequest.newBuilder();
+		signedBuilder.setContent(content);
+		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
+		SignedReceiveAmountBatchRequest signedRequest = signedBuilder.build();
+		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).receiveAmountBatch(signedRequest);
+	}
+
+	// Approves every pending transfer listed by the last check account in a single operation
+	public void receiveAmountAll()
+			throws InvalidTransferNumberException, CypherFailedException, NotEnoughValidResponsesException {
+		if (lastCheckAccountTransfers == null)
+			throw new InvalidTransferNumberException("No check account was performed, cannot select transfer");
+		List<Integer> transferNums = new ArrayList<>(lastCheckAccountTransfers.size());
+		for (int i = 0; i < lastCheckAccountTransfers.size(); i++) {
+			transferNums.add(i);
+		}
+		receiveAmountBatch(transferNums);
+	}
+
+	// Reads and writes the balance and list sizes once for the whole batch instead of once per transfer. Transfers to
+	// oneself stop being pending but were chained when they were sent, the others are chained in the order of the batch
+	public void receiveAmountBatch(List<Integer> transferNums)
+			throws InvalidTransferNumberException, CypherFailedException, NotEnoughValidResponsesException {
+		List<Transfer> transfers = new ArrayList<>(transferNums.size());
+		List<ByteString> receiverSignatures = new ArrayList<>(transferNums.size());
+		List<Transfer> newApproved = new ArrayList<>(transferNums.size());
+		int totalAmount = 0;
+		for (int transferNum : transferNums) {
+			Transfer transfer = getTransferFromNumber(transferNum);
+			if (transfers.contains(transfer)) continue;
+			transfers.add(transfer);
+			receiverSignatures.add(ByteString.copyFrom(this.signatureManager.sign(transfer.toByteArray())));
+			if (!transfer.getSenderKey().equals(transfer.getReceiverKey())) newApproved.add(transfer);
+			totalAmount += transfer.getAmount();
+		}
+		if (transfers.isEmpty()) throw new InvalidTransferNumberException("No pending transfers to receive");
+		ByteString receiverKey = transfers.get(0).getReceiverKey();
+		InfoForWrite infoForWrite = readForWrite(receiverKey, receiverKey, false);
+		Balance newBalance = getIncrementedBalance(infoForWrite.getBalance(), totalAmount);
+		byte[] balanceSignature = this.signatureManager.signBalance(newBalance);
+		ListSizes receiverListSizes = getNewListSizes(infoForWrite.getReceiverListSizes(), -transfers.size(), newApproved);
+		byte[] receiverSizesSignature = this.signatureManager.signListSizes(receiverListSizes);
+		byte[] receiverHeadSignature = this.signatureManager.signApprovedHead(receiverListSizes);
+		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
+		List<SignedReceiveAmountBatchResponse> acks = callWriteQuorum(replicaID -> callReplica(replicaID, nonceToClient -> {
+			ReceiveAmountBatchRequest request = buildReceiveAmountBatchRequest(nonceToServer, replicaID, nonceToClient, transfers, receiverSignatures,
+					newBalance, balanceSignature, receiverListSizes, receiverSizesSignature, receiverHeadSignature);
+			return receiveAmountBatch(stubs.get(replicaID), request, nonceToClient);
+		}, SignedReceiveAmountBatchResponse::getNextChallenge, (response, nonceToClient) -> {
+			byte[] serverSignature = response.getSignature().toByteArray();
+			if (!isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, serverSignature, EMPTY))
+				throw new InvalidSignatureException("Nonce signature is invalid");
+			System.out.println(OPERATION_SUCCESSFUL);
+			return response;
+		}));
+		int numAcks = acks.size();
+		printNumAcks(numAcks);
+		if (numAcks >= numberOfNeededResponses()) {
+			System.out.println(FULL_OPERATION_SUCCESSFUL);
+		}
+		else {
+			throw new NotEnoughValidResponsesException();
+		}
+	}
+
+	// Audit
+	public AuditRequest buildAuditRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, long puzzleSolution, AuditCursor since,
+			boolean withTransferSignatures) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
 		AuditRequest.Builder builder = AuditRequest.newBuilder();
 		builder.setPublicKey(ByteString.copyFrom(this.userPublicKey.getEncoded()));
 		builder.setCypheredNonce(cypheredNonceToServer);
 		builder.setPuzzleSolution(puzzleSolution);
+		builder.setSince(since);
+		builder.setWithTransferSignatures(withTransferSignatures);
 		AuditRequest content = builder.build();
 		return content;
 	}
 
-	public SignedAuditResponse audit(ServerServiceBlockingStub stub, AuditRequest content, long nonceToClient)
+	public ListenableFuture<SignedAuditResponse> audit(ServerServiceFutureStub stub, AuditRequest content, ReplicaNonce nonceToClient)
 			throws CypherFailedException {
-		byte[] signature = this.signatureManager.sign(nonceToClient, content.toByteArray());
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
 		SignedAuditRequest.Builder signedBuilder = SignedAuditRequest.newBuilder();
 		signedBuilder.setContent(content);
 		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
 		SignedAuditRequest signedRequest = signedBuilder.build();
 		return stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).audit(signedRequest);
 	}
 
+	public AuditStreamRequest buildAuditStreamRequest(long nonceToServer, int replicaID, ReplicaNonce nonceToClient, long puzzleSolution,
+			AuditCursor since, boolean withTransferSignatures) throws CypherFailedException {
+		ByteString cypheredNonceToServer = getCypheredNonceToServer(nonceToServer, replicaID, nonceToClient);
+		AuditStreamRequest.Builder builder = AuditStreamRequest.newBuilder();
+		builder.setPublicKey(ByteString.copyFrom(this.userPublicKey.getEncoded()));
+		builder.setCypheredNonce(cypheredNonceToServer);
+		builder.setPuzzleSolution(puzzleSolution);
+		builder.setPageSize(AUDIT_PAGE_SIZE);
+		builder.setSince(since);
+		builder.setWithTransferSignatures(withTransferSignatures);
+		AuditStreamRequest content = builder.build();
+		return content;
+	}
+
+	public ListenableFuture<AuditStream> auditStream(ServerServiceStub stub, AuditStreamRequest content, ReplicaNonce nonceToClient,
+			AuditStream stream) throws CypherFailedException {
+		byte[] signature = authenticate(nonceToClient, content.toByteArray());
+		SignedAuditStreamRequest.Builder signedBuilder = SignedAuditStreamRequest.newBuilder();
+		signedBuilder.setContent(content);
+		signedBuilder.setSignature(ByteString.copyFrom(signature));
+		signedBuilder.setSessionCounter(nonceToClient.getSessionCounter());
+		SignedAuditStreamRequest signedRequest = signedBuilder.build();
+		stub.withDeadlineAfter(DEADLINE_SEC, TimeUnit.SECONDS).auditStream(signedRequest, stream);
+		return stream.getResult();
+	}
+
+	// Every replica streams its history in pages, which are verified as they arrive. Only the transfers added after
+	// the last verified checkpoint of the account are fetched, the checkpoint is then moved forward to include them.
+	// The transfers are checked against the signed head of the list, without fetching their own signatures
 	public void audit() throws NoSuchAlgorithmException, InvalidKeySpecException, NotEnoughValidResponsesException {
-		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
-		List<AuditResponse> readList = new ArrayList<>();
-		for (int replicaID = 0; replicaID < numberOfServerReplicas; replicaID++) {
-			ServerServiceBlockingStub stub = stubs.get(replicaID);
-			try {
-				var nonceToClient = requestNonce(stub);
-				AuditRequest request = buildAuditRequest(nonceToServer, replicaID, findPuzzleSolution());
-				var response = audit(stub, request, nonceToClient);
-				byte[] serverSignature = response.getSignature().toByteArray();
-				var content = response.getContent();
-				if (!this.signatureManager.isNonceSignatureValid(this.serverPublicKeys.get(replicaID), serverSignature, content.toByteArray()))
-					throw new InvalidSignatureException("Nonce signature is invalid");
-				if (!this.signatureManager.isListSizesSignatureValid(publicKeyFromByteString(content.getListSizesSigner()), content.getListSizesSignature().toByteArray(), content.getListSizes()))
-					throw new InvalidSignatureException("List sizes signature is invalid");
-				if (!isApprovedTransferListValid(content.getApprovedTransfersList(), content.getSenderTransferSignaturesList(), content.getReceiverTransferSignaturesList(), content.getListSizes().getApprovedSize()))
-					throw new InvalidSignatureException("Approved transfer list has invalid signatures");
-				readList.add(content);
-				System.out.println(OPERATION_SUCCESSFUL);
-			}
-			catch (Exception e) {
-				handleException(e);
-			}
+		Path checkpointPath = getAuditCheckpointPath();
+		AuditCheckpoint loadedCheckpoint = (checkpointPath != null) ? AuditCheckpoint.load(checkpointPath) : AuditCheckpoint.empty();
+		AuditCheckpoint checkpoint = loadedCheckpoint;
+		List<AuditStream> readList = auditSince(checkpoint, false);
+		// The replicas may not agree with the checkpoint anymore, e.g. if it was taken against another deployment,
+		// or the owner may not have signed the head since before head signatures, so every transfer signature has to
+		// be checked
+		if (readList.size() < numberOfNeededResponses()) {
+			System.out.println("Audit could not be verified from the signed head, auditing the whole history");
+			checkpoint = AuditCheckpoint.empty();
+			readList = auditSince(checkpoint, true);
 		}
 		printNumAcks(readList.size());
 		if (readList.size() >= numberOfNeededResponses()) {
-			var approvedTransfers = getMostRecentApprovedTransfersList(readList);
+			checkpoint = checkpoint.extend(getMostRecentApprovedTransfersList(readList));
+			if (checkpointPath != null && checkpoint != loadedCheckpoint) saveAuditCheckpoint(checkpoint, checkpointPath);
 			System.out.println(FULL_OPERATION_SUCCESSFUL);
 			System.out.println("Transaction History: ");
-			System.out.println(buildTransferListString(approvedTransfers));
+			System.out.println(buildTransferListString(checkpoint.getApprovedTransfers()));
 		}
 		else {
 			throw new NotEnoughValidResponsesException();
 		}
 	}
 
-	private List<Transfer> getMostRecentApprovedTransfersList(List<AuditResponse> readList)
+	List<AuditStream> auditSince(AuditCheckpoint checkpoint, boolean withTransferSignatures) throws NoSuchAlgorithmException {
+		long nonceToServer = this.signatureManager.generateNonce(); // We use the same nonce for all server replicas
+		AuditCursor since = checkpoint.getCursor();
+		ByteString accountKey = ByteString.copyFrom(this.userPublicKey.getEncoded());
+		return callQuorum(replicaID -> callReplica(replicaID, nonceToClient ->
+				Futures.transformAsync(findPuzzleSolution(nonceToClient.getPuzzle()), puzzleSolution -> {
+					AuditStreamRequest request = buildAuditStreamRequest(nonceToServer, replicaID, nonceToClient, puzzleSolution, since,
+							withTransferSignatures);
+					AuditStream stream = new AuditStream((signature, content) -> isResponseSignatureValid(replicaID, nonceToClient, nonceToServer, signature, content),
+							new ApprovedTransfersVerifier(this.signatureManager, this.publicKeyCache, accountKey, checkpoint,
+									withTransferSignatures), since);
+					return auditStream(streamingStubs.get(replicaID), request, nonceToClient, stream);
+				}, MoreExecutors.directExecutor()), AuditStream::getNextChallenge, (stream, nonceToClient) -> {
+			System.out.println(OPERATION_SUCCESSFUL);
+			return stream;
+		}));
+	}
+
+	// Without a place to keep checkpoints, every audit goes through the whole history
+	private Path getAuditCheckpointPath() throws NoSuchAlgorithmException {
+		try {
+			return Resources.getAuditCheckpointPath(this.userPublicKey);
+		}
+		catch (URISyntaxException e) {
+			System.out.println(ERROR_PREFIX + "Unable to locate audit checkpoints: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void saveAuditCheckpoint(AuditCheckpoint checkpoint, Path checkpointPath) {
+		try {
+			checkpoint.save(checkpointPath);
+		}
+		catch (IOException e) {
+			System.out.println(ERROR_PREFIX + "Unable to save audit checkpoint: " + e.getMessage());
+		}
+	}
+
+	private List<Transfer> getMostRecentApprovedTransfersList(List<AuditStream> readList)
 			throws NotEnoughValidResponsesException {
 		int highestWts = -1;
-		AuditResponse bestResponse = null;
-		for (AuditResponse response : readList) {
+		AuditStream bestResponse = null;
+		for (AuditStream response : readList) {
 			int wts = response.getListSizes().getWts();
 			if (wts > highestWts) {
 				highestWts = wts;
@@ -640,7 +1178,7 @@ public class Client {
 			}
 		}
 		if (bestResponse == null) throw new NotEnoughValidResponsesException();
-		return bestResponse.getApprovedTransfersList();
+		return bestResponse.getApprovedTransfers();
 	}
 
 	public boolean isPendingTransferListValid(List<Transfer> transfers, List<ByteString> senderSignatures, int expectedSize)
@@ -664,23 +1202,9 @@ public class Client {
 	public boolean isApprovedTransferListValid(List<Transfer> transfers, List<ByteString> senderSignatures, List<ByteString> receiverSignatures, int expectedSize)
 			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException {
 		if (transfers.size() != expectedSize) return false;
-		if (senderSignatures.size() != expectedSize) return false;
-		if (receiverSignatures.size() != expectedSize) return false;
-
-		Set<byte[]> transferHashes = new HashSet<>();
-		for (int i = 0; i < expectedSize; i++) {
-			Transfer transfer = transfers.get(i);
-			byte[] senderSignature = senderSignatures.get(i).toByteArray();
-			byte[] receiverSignature = receiverSignatures.get(i).toByteArray();
-			if (!this.signatureManager.isTransferSignatureValid(publicKeyFromByteString(transfer.getSenderKey()), senderSignature, transfer))
-				return false;
-			if (!this.signatureManager.isTransferSignatureValid(publicKeyFromByteString(transfer.getReceiverKey()), receiverSignature, transfer))
-				return false;
-			byte[] transferHash = getTransferHash(transfer);
-			if (transferHashes.contains(transferHash)) return false;
-			transferHashes.add(transferHash);
-		}
-		return true;
+		ApprovedTransfersVerifier verifier = new ApprovedTransfersVerifier(this.signatureManager, this.publicKeyCache,
+				ByteString.copyFrom(this.userPublicKey.getEncoded()));
+		return verifier.verifyNext(transfers, senderSignatures, receiverSignatures) && verifier.isComplete(expectedSize);
 	}
 
 	private byte[] getTransferHash(Transfer transfer) throws NoSuchAlgorithmException {
@@ -3,15 +3,24 @@ package pt.tecnico.sec.bftb.client;
 import pt.tecnico.sec.bftb.grpc.Server.Balance;
 import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
 
+import java.util.List;
+
 public class InfoForWrite {
 	private Balance balance;
 	private ListSizes senderListSizes;
 	private ListSizes receiverListSizes;
+	private List<ListSizes> batchListSizes;
 
 	public InfoForWrite(Balance balance, ListSizes senderListSizes, ListSizes receiverListSizes) {
+		this(balance, senderListSizes, receiverListSizes, List.of());
+	}
+
+	public InfoForWrite(Balance balance, ListSizes senderListSizes, ListSizes receiverListSizes,
+			List<ListSizes> batchListSizes) {
 		this.balance = balance;
 		this.senderListSizes = senderListSizes;
 		this.receiverListSizes = receiverListSizes;
+		this.batchListSizes = batchListSizes;
 	}
 
 	public Balance getBalance() {
@@ -25,4 +34,8 @@ public class InfoForWrite {
 	public ListSizes getReceiverListSizes() {
 		return receiverListSizes;
 	}
+
+	public List<ListSizes> getBatchListSizes() {
+		return batchListSizes;
+	}
 }
@@ -0,0 +1,50 @@
+package pt.tecnico.sec.bftb.client;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+
+public enum KeyAlgorithm {
+	// Accounts created before signature schemes were pluggable, signatures are RSA encrypted hashes
+	RSA("RSA", "SHA256withRSA", PKCSObjectIdentifiers.sha256WithRSAEncryption),
+	ED25519("Ed25519", "Ed25519", EdECObjectIdentifiers.id_Ed25519),
+	ECDSA_P256("EC", "SHA256withECDSA", X9ObjectIdentifiers.ecdsa_with_SHA256);
+
+	private static final int RSA_KEY_SIZE = 2048;
+	private static final String EC_CURVE = "secp256r1";
+	private final String keyPairAlgorithm;
+	private final String certificateSignatureAlgorithm;
+	private final ASN1ObjectIdentifier certificateSignatureOid;
+
+	KeyAlgorithm(String keyPairAlgorithm, String certificateSignatureAlgorithm,
+			ASN1ObjectIdentifier certificateSignatureOid) {
+		this.keyPairAlgorithm = keyPairAlgorithm;
+		this.certificateSignatureAlgorithm = certificateSignatureAlgorithm;
+		this.certificateSignatureOid = certificateSignatureOid;
+	}
+
+	public KeyPairGenerator newKeyPairGenerator() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyPairAlgorithm);
+		if (this == RSA) keyGen.initialize(RSA_KEY_SIZE);
+		else if (this == ECDSA_P256) keyGen.initialize(new ECGenParameterSpec(EC_CURVE));
+		return keyGen;
+	}
+
+	public String getCertificateSignatureAlgorithm() {
+		return certificateSignatureAlgorithm;
+	}
+
+	public ASN1ObjectIdentifier getCertificateSignatureOid() {
+		return certificateSignatureOid;
+	}
+
+	public static KeyAlgorithm fromString(String name) {
+		return KeyAlgorithm.valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
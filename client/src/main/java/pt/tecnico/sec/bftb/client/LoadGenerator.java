@@ -0,0 +1,413 @@
+package pt.tecnico.sec.bftb.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import pt.tecnico.sec.bftb.client.exceptions.InvalidTransferNumberException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives many users at once through the Client API, with no user interface. In a closed loop a fixed number of
+// operations is always running, each starting when the previous one ends. In an open loop operations start at a fixed
+// rate whatever the replicas' response times, and their latency counts from when they were meant to start, so it
+// includes the time spent waiting for a free user when the replicas can't keep up
+public class LoadGenerator {
+	private static final String USER_ID = "load-user-%d";
+	private static final String DEFAULT_MIX = "send=40,recv=40,check=15,audit=5";
+	private static final long REPORT_PERIOD = 5; // Seconds
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private final List<Client> users;
+	private final Map<Operation, Integer> mix;
+	private final int totalWeight;
+	private final Map<Operation, OperationStats> operationStats;
+	private final OperationStats allStats;
+	private final ReplicaStats[] replicaStats;
+	private final PrintStream out;
+
+	enum Operation {
+		SEND, RECV, CHECK, AUDIT
+	}
+
+	public LoadGenerator(List<Client> users, Map<Operation, Integer> mix, int numberOfReplicas, PrintStream out) {
+		this.users = users;
+		this.mix = mix;
+		this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+		this.operationStats = new EnumMap<>(Operation.class);
+		for (Operation operation : Operation.values()) operationStats.put(operation, new OperationStats());
+		this.allStats = new OperationStats();
+		this.replicaStats = new ReplicaStats[numberOfReplicas];
+		for (int i = 0; i < numberOfReplicas; i++) replicaStats[i] = new ReplicaStats();
+		this.out = out;
+		for (Client user : users) user.setReplicaCallListener(this::replicaCallFinished);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6 || args.length > 7) {
+			System.out.println("Invalid number of arguments. Aborting!");
+			System.out.println("Usage: LoadGenerator <serverHostname> <serverPort> <faultsToTolerate> <users> <seconds> " +
+					"<closed:concurrency|open:rate> [send=w,recv=w,check=w,audit=w]");
+			return;
+		}
+		String serverHostname = args[0];
+		int serverPort = Integer.parseInt(args[1]);
+		int faultsToTolerate = Integer.parseInt(args[2]);
+		int numberOfUsers = Integer.parseInt(args[3]);
+		long seconds = Long.parseLong(args[4]);
+		String[] load = args[5].split(":");
+		Map<Operation, Integer> mix;
+		try {
+			mix = parseMix((args.length == 7 && !args[6].isBlank()) ? args[6] : DEFAULT_MIX);
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Invalid operation mix: " + e.getMessage());
+			return;
+		}
+		if (faultsToTolerate <= 0 || numberOfUsers < 2 || seconds <= 0 || load.length != 2) {
+			System.out.println("Invalid arguments: f > 0, at least 2 users, seconds > 0 and closed:<n> or open:<rate>");
+			return;
+		}
+		boolean closedLoop = load[0].equalsIgnoreCase("closed");
+		if (!closedLoop && !load[0].equalsIgnoreCase("open")) {
+			System.out.println("Invalid load, must be closed:<concurrency> or open:<operations per second>");
+			return;
+		}
+		if (closedLoop && Integer.parseInt(load[1]) > numberOfUsers) {
+			System.out.println("The concurrency can't be higher than the number of users");
+			return;
+		}
+
+		int numberOfReplicas = 3 * faultsToTolerate + 1;
+		ManagedChannel[] channels = new ManagedChannel[numberOfReplicas];
+		for (int i = 0; i < numberOfReplicas; i++) {
+			channels[i] = ManagedChannelBuilder.forTarget(String.format("%s:%d", serverHostname, serverPort + i))
+					.usePlaintext().build();
+		}
+		// The client reports every step of every operation, only the load generator's reports are kept
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		out.printf("Creating %d users%n", numberOfUsers);
+		List<Client> users = new ArrayList<>(numberOfUsers);
+		// One at a time, as new users are added to a keystore file they all share
+		for (int i = 0; i < numberOfUsers; i++) {
+			Client user = new Client(replicaID -> channels[replicaID], faultsToTolerate);
+			user.changeUser(String.format(USER_ID, i));
+			users.add(user);
+		}
+		LoadGenerator generator = new LoadGenerator(users, mix, numberOfReplicas, out);
+		out.println("Opening accounts");
+		generator.openAccounts();
+		generator.reset();
+		if (closedLoop) {
+			int concurrency = Integer.parseInt(load[1]);
+			out.printf("Running for %d s in a closed loop, with %d concurrent operations%n", seconds, concurrency);
+			generator.runClosedLoop(concurrency, TimeUnit.SECONDS.toNanos(seconds));
+		}
+		else {
+			double rate = Double.parseDouble(load[1]);
+			out.printf("Running for %d s in an open loop, at %.1f operations per second%n", seconds, rate);
+			generator.runOpenLoop(rate, TimeUnit.SECONDS.toNanos(seconds));
+		}
+		for (ManagedChannel channel : channels) channel.shutdownNow();
+		System.exit(0);
+	}
+
+	static Map<Operation, Integer> parseMix(String mixString) {
+		Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+		for (String entry : mixString.split(",")) {
+			String[] parts = entry.trim().split("=");
+			if (parts.length != 2) throw new IllegalArgumentException(entry);
+			int weight = Integer.parseInt(parts[1].trim());
+			if (weight < 0) throw new IllegalArgumentException(entry);
+			mix.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+		}
+		if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) throw new IllegalArgumentException(mixString);
+		return mix;
+	}
+
+	// Accounts that already exist from an earlier run are just rejected by the replicas
+	public void openAccounts() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(users.size(), 16));
+		for (Client user : users) {
+			pool.execute(() -> {
+				try {
+					user.openAccount();
+				}
+				catch (Exception e) {
+					out.println("Unable to open account: " + e.getMessage());
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	// Leaves out what opening the accounts took
+	public void reset() {
+		for (OperationStats stats : operationStats.values()) stats.reset();
+		allStats.reset();
+		for (ReplicaStats stats : replicaStats) stats.reset();
+	}
+
+	// Each worker has users of its own, as a client only runs one operation at a time
+	public void runClosedLoop(int concurrency, long durationNanos) throws InterruptedException {
+		long start = System.nanoTime();
+		long deadline = start + durationNanos;
+		ScheduledExecutorService reporter = startReporting(start);
+		List<Thread> workers = new ArrayList<>(concurrency);
+		for (int w = 0; w < concurrency; w++) {
+			List<Client> ownUsers = new ArrayList<>();
+			for (int i = w; i < users.size(); i += concurrency) ownUsers.add(users.get(i));
+			Thread worker = new Thread(() -> {
+				while (System.nanoTime() < deadline) {
+					Client user = ownUsers.get(ThreadLocalRandom.current().nextInt(ownUsers.size()));
+					runOperation(user, System.nanoTime());
+				}
+			}, "load-worker-" + w);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) worker.join();
+		reporter.shutdownNow();
+		printReport(System.nanoTime() - start, 0);
+	}
+
+	// Operations that can't start on time wait for a free user. Those still waiting once the run is over are given as
+	// long again to finish, and are reported as unfinished if they don't
+	public void runOpenLoop(double rate, long durationNanos) throws InterruptedException {
+		BlockingQueue<Client> idleUsers = new ArrayBlockingQueue<>(users.size(), false, users);
+		ExecutorService pool = Executors.newFixedThreadPool(users.size());
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long start = System.nanoTime();
+		long deadline = start + durationNanos;
+		ScheduledExecutorService reporter = startReporting(start);
+		List<Future<?>> operations = new ArrayList<>();
+		for (long intendedStart = start; intendedStart < deadline; intendedStart += interval) {
+			long delay = intendedStart - System.nanoTime();
+			if (delay > 0) LockSupport.parkNanos(delay);
+			long scheduledStart = intendedStart;
+			operations.add(pool.submit(() -> {
+				Client user = idleUsers.take();
+				try {
+					runOperation(user, scheduledStart);
+				}
+				finally {
+					idleUsers.put(user);
+				}
+				return null;
+			}));
+		}
+		pool.shutdown();
+		if (!pool.awaitTermination(durationNanos, TimeUnit.NANOSECONDS)) pool.shutdownNow();
+		reporter.shutdownNow();
+		long unfinished = operations.stream().filter(operation -> !operation.isDone() || operation.isCancelled()).count();
+		printReport(System.nanoTime() - start, unfinished);
+	}
+
+	private Operation nextOperation() {
+		int choice = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+			choice -= entry.getValue();
+			if (choice < 0) return entry.getKey();
+		}
+		throw new IllegalStateException();
+	}
+
+	private void runOperation(Client user, long startNanos) {
+		Operation operation = nextOperation();
+		Exception failure = null;
+		try {
+			switch (operation) {
+				case SEND -> user.sendAmount(randomOtherUser(user), 1);
+				case RECV -> {
+					// Accepts the earliest pending transfer, which takes a check to find out
+					user.checkAccount();
+					try {
+						user.receiveAmount(0);
+					}
+					catch (InvalidTransferNumberException e) {
+						// Nothing was pending, the check alone was the operation
+					}
+				}
+				case CHECK -> user.checkAccount();
+				case AUDIT -> user.audit();
+			}
+		}
+		catch (Exception e) {
+			failure = e;
+		}
+		long latency = System.nanoTime() - startNanos;
+		operationStats.get(operation).record(latency, failure);
+		allStats.record(latency, failure);
+	}
+
+	private String randomOtherUser(Client user) {
+		int index = users.indexOf(user);
+		int other = ThreadLocalRandom.current().nextInt(users.size() - 1);
+		if (other >= index) other++;
+		return String.format(USER_ID, other);
+	}
+
+	private void replicaCallFinished(int replicaID, long elapsedNanos, Throwable failure) {
+		if (replicaID < 0 || replicaID >= replicaStats.length) return;
+		replicaStats[replicaID].record(failure);
+	}
+
+	private ScheduledExecutorService startReporting(long start) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "load-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long[] lastCount = { 0 };
+		reporter.scheduleAtFixedRate(() -> {
+			long count = allStats.getCount();
+			out.printf("[%5.0f s] %d operations, %.1f per second, %d failed%n",
+					(System.nanoTime() - start) / 1e9, count, (count - lastCount[0]) / (double) REPORT_PERIOD,
+					allStats.getFailures());
+			lastCount[0] = count;
+		}, REPORT_PERIOD, REPORT_PERIOD, TimeUnit.SECONDS);
+		return reporter;
+	}
+
+	private void printReport(long elapsedNanos, long unfinished) {
+		double seconds = elapsedNanos / 1e9;
+		out.println();
+		out.printf("%d operations in %.1f s, %.1f successful per second, %d failed, %d unfinished%n", allStats.getCount(),
+				seconds, allStats.getSuccesses() / seconds, allStats.getFailures(), unfinished);
+		out.println();
+		out.printf("%-10s %8s %8s %10s", "operation", "count", "failed", "ops/s");
+		for (double percentile : PERCENTILES) out.printf(" %10s", "p" + percentile);
+		out.printf(" %10s   (latencies of successful operations, in ms)%n", "max");
+		for (Operation operation : Operation.values()) {
+			printOperationLine(operation.name().toLowerCase(), operationStats.get(operation), seconds);
+		}
+		printOperationLine("all", allStats, seconds);
+		printFailures();
+		out.println();
+		out.printf("%-10s %8s %8s %8s %10s   %s%n", "replica", "calls", "failed", "late", "error rate", "failures");
+		for (int i = 0; i < replicaStats.length; i++) {
+			ReplicaStats stats = replicaStats[i];
+			long answered = stats.calls.sum() - stats.late.sum();
+			double errorRate = (answered > 0) ? stats.failed.sum() / (double) answered : 0;
+			out.printf("%-10d %8d %8d %8d %9.2f%%   %s%n", i, stats.calls.sum(), stats.failed.sum(), stats.late.sum(),
+					100 * errorRate, stats.describeFailures());
+		}
+		out.println("(late calls were cancelled after a quorum had answered, and don't count towards the error rate)");
+	}
+
+	private void printOperationLine(String name, OperationStats stats, double seconds) {
+		LatencyHistogram latencies = stats.latencies;
+		out.printf("%-10s %8d %8d %10.1f", name, stats.getCount(), stats.getFailures(), stats.getSuccesses() / seconds);
+		for (double percentile : PERCENTILES) out.printf(" %10.1f", latencies.getPercentile(percentile) / 1e6);
+		out.printf(" %10.1f%n", latencies.getMax() / 1e6);
+	}
+
+	private void printFailures() {
+		Map<String, Long> failures = new TreeMap<>();
+		for (Operation operation : Operation.values()) {
+			operationStats.get(operation).failureTypes.forEach((type, count) ->
+					failures.put(operation.name().toLowerCase() + ": " + type, count.sum()));
+		}
+		if (failures.isEmpty()) return;
+		out.println();
+		out.println("Failures:");
+		failures.forEach((type, count) -> out.printf("  %-60s %8d%n", type, count));
+	}
+
+	private static String describeFailure(Throwable failure) {
+		if (failure instanceof StatusRuntimeException sre) return sre.getStatus().getCode().name();
+		String message = failure.getMessage();
+		return failure.getClass().getSimpleName() + ((message != null) ? " (" + message + ")" : "");
+	}
+
+	private static class OperationStats {
+		private LatencyHistogram latencies = new LatencyHistogram();
+		private final LongAdder successes = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final Map<String, LongAdder> failureTypes = new ConcurrentHashMap<>();
+
+		private void record(long latency, Exception failure) {
+			if (failure == null) {
+				latencies.record(latency);
+				successes.increment();
+			}
+			else {
+				failures.increment();
+				failureTypes.computeIfAbsent(describeFailure(failure), k -> new LongAdder()).increment();
+			}
+		}
+
+		private void reset() {
+			latencies = new LatencyHistogram();
+			successes.reset();
+			failures.reset();
+			failureTypes.clear();
+		}
+
+		private long getSuccesses() {
+			return successes.sum();
+		}
+
+		private long getFailures() {
+			return failures.sum();
+		}
+
+		private long getCount() {
+			return getSuccesses() + getFailures();
+		}
+	}
+
+	private static class ReplicaStats {
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder late = new LongAdder();
+		private final Map<String, LongAdder> failuresByCode = new ConcurrentHashMap<>();
+
+		private void record(Throwable failure) {
+			calls.increment();
+			if (failure == null) return;
+			if (failure instanceof CancellationException) {
+				late.increment();
+				return;
+			}
+			failed.increment();
+			String code = (failure instanceof StatusRuntimeException sre) ? sre.getStatus().getCode().name()
+					: failure.getClass().getSimpleName();
+			failuresByCode.computeIfAbsent(code, k -> new LongAdder()).increment();
+		}
+
+		private void reset() {
+			calls.reset();
+			failed.reset();
+			late.reset();
+			failuresByCode.clear();
+		}
+
+		private String describeFailures() {
+			StringBuilder builder = new StringBuilder();
+			new TreeMap<>(failuresByCode).forEach((code, count) -> {
+				if (builder.length() > 0) builder.append(", ");
+				builder.append(code).append('=').append(count.sum());
+			});
+			return builder.toString();
+		}
+	}
+}
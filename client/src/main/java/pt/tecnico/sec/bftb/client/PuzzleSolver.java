@@ -0,0 +1,134 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import pt.tecnico.sec.bftb.client.exceptions.NoPuzzleSolutionFoundException;
+import pt.tecnico.sec.bftb.grpc.Server.Puzzle;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Searches for the solution of the replicas' puzzles on every core. The range is split into parts that are searched
+// in parallel, each worker reusing its own digest and buffers, and all of them stop as soon as one finds the solution
+public class PuzzleSolver {
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final int DIGEST_LENGTH = 32;
+	// Small enough for the parts to be balanced between workers, large enough for splitting not to cost more than searching
+	private static final long SEARCH_THRESHOLD = 2048;
+	private static final long NOT_FOUND = -1;
+	// The range of the hardest puzzle replicas hand out, a larger one is not worth searching
+	private static final long MAX_SEARCH_RANGE = 1L << 24;
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(PuzzleSolver::newDigest);
+	private final ForkJoinPool pool;
+	private final long searchRange;
+
+	public PuzzleSolver(long searchRange) {
+		this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		this.searchRange = searchRange;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Solving runs in the pool, so the puzzles of every replica are solved at the same time. Cancelling the result,
+	// e.g. once a quorum has answered without this replica, stops the search
+	public ListenableFuture<Long> solveAsync(Puzzle puzzle) {
+		SettableFuture<Long> result = SettableFuture.create();
+		AtomicBoolean cancelled = new AtomicBoolean(false);
+		result.addListener(() -> cancelled.set(result.isCancelled()), Runnable::run);
+		pool.execute(() -> {
+			try {
+				result.set(solve(puzzle, cancelled));
+			}
+			catch (Exception e) {
+				result.setException(e);
+			}
+		});
+		return result;
+	}
+
+	// Replicas say how far to search, which depends on how loaded they are. Otherwise the default range is searched
+	public long solve(Puzzle puzzle) throws NoPuzzleSolutionFoundException {
+		return solve(puzzle, new AtomicBoolean(false));
+	}
+
+	private long solve(Puzzle puzzle, AtomicBoolean cancelled) throws NoPuzzleSolutionFoundException {
+		long range = (puzzle.getSearchRange() > 0) ? puzzle.getSearchRange() : searchRange;
+		// A faulty replica could otherwise keep every core busy for as long as it likes
+		if (range > MAX_SEARCH_RANGE)
+			throw new NoPuzzleSolutionFoundException("Puzzle search range " + range + " is larger than " + MAX_SEARCH_RANGE);
+		AtomicLong solution = new AtomicLong(NOT_FOUND);
+		pool.invoke(new Search(puzzle.getPuzzle().toByteArray(), puzzle.getPuzzleSalt().toByteArray(), 0, range, solution,
+				cancelled));
+		if (solution.get() == NOT_FOUND) throw new NoPuzzleSolutionFoundException();
+		return solution.get();
+	}
+
+	private static class Search extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final byte[] puzzle;
+		private final byte[] salt;
+		private final long start;
+		private final long end;
+		private final AtomicLong solution;
+		private final AtomicBoolean cancelled;
+
+		private Search(byte[] puzzle, byte[] salt, long start, long end, AtomicLong solution, AtomicBoolean cancelled) {
+			this.puzzle = puzzle;
+			this.salt = salt;
+			this.start = start;
+			this.end = end;
+			this.solution = solution;
+			this.cancelled = cancelled;
+		}
+
+		private boolean shouldStop() {
+			return solution.get() != NOT_FOUND || cancelled.get();
+		}
+
+		@Override
+		protected void compute() {
+			if (shouldStop()) return;
+			if (end - start > SEARCH_THRESHOLD) {
+				long middle = (start + end) >>> 1;
+				invokeAll(new Search(puzzle, salt, start, middle, solution, cancelled),
+						new Search(puzzle, salt, middle, end, solution, cancelled));
+				return;
+			}
+			MessageDigest digest = DIGEST.get();
+			// The candidate is written over the first bytes of the same buffer, followed by the salt, as in the puzzle
+			byte[] rawPuzzle = new byte[Long.BYTES + salt.length];
+			System.arraycopy(salt, 0, rawPuzzle, Long.BYTES, salt.length);
+			byte[] attempt = new byte[DIGEST_LENGTH];
+			try {
+				for (long i = start; i < end; i++) {
+					for (int b = 0; b < Long.BYTES; b++) {
+						rawPuzzle[b] = (byte) (i >>> (8 * (Long.BYTES - 1 - b)));
+					}
+					digest.update(rawPuzzle);
+					digest.digest(attempt, 0, DIGEST_LENGTH);
+					if (Arrays.equals(puzzle, attempt)) {
+						solution.compareAndSet(NOT_FOUND, i);
+						return;
+					}
+					if (shouldStop()) return;
+				}
+			}
+			catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
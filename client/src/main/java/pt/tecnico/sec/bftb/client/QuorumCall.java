@@ -0,0 +1,112 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+public class QuorumCall<T> {
+	private final int numberOfReplicas;
+	private final int quorumSize;
+	private final List<T> responses;
+	private final List<ListenableFuture<T>> calls;
+	private int numberOfFailures;
+	private boolean finished;
+	private boolean cancelled;
+
+	// Given the nonce or session counter the request was sent with, which is what the response is bound to
+	@FunctionalInterface
+	public interface Validator<R, T> {
+		T validate(R response, ReplicaNonce nonceToClient) throws Exception;
+	}
+
+	public QuorumCall(int numberOfReplicas, int quorumSize) {
+		this.numberOfReplicas = numberOfReplicas;
+		this.quorumSize = quorumSize;
+		this.responses = new ArrayList<>();
+		this.calls = new ArrayList<>(numberOfReplicas);
+		this.numberOfFailures = 0;
+		this.finished = false;
+		this.cancelled = false;
+	}
+
+	// Sends the call to every replica at once and returns the valid responses as soon as a quorum of them arrived,
+	// or once every replica has answered. Reads still in flight at that point are cancelled
+	public List<T> execute(IntFunction<ListenableFuture<T>> replicaCall) {
+		return execute(replicaCall, true);
+	}
+
+	// Writes still in flight once the quorum answered are left to finish in the background, so that slower replicas
+	// don't miss them and fall behind the others. Only their failures are reported
+	public List<T> executeWrite(IntFunction<ListenableFuture<T>> replicaCall) {
+		return execute(replicaCall, false);
+	}
+
+	private List<T> execute(IntFunction<ListenableFuture<T>> replicaCall, boolean cancelLeftovers) {
+		for (int replicaID = 0; replicaID < numberOfReplicas; replicaID++) {
+			ListenableFuture<T> call = replicaCall.apply(replicaID);
+			calls.add(call);
+			Futures.addCallback(call, new FutureCallback<>() {
+				@Override
+				public void onSuccess(T response) {
+					addResponse(response);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					addFailure(t);
+				}
+			}, MoreExecutors.directExecutor());
+		}
+		List<T> quorum;
+		synchronized (this) {
+			try {
+				while (!isComplete()) wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finished = true;
+			cancelled = cancelLeftovers;
+			quorum = new ArrayList<>(responses);
+		}
+		if (cancelLeftovers) {
+			for (ListenableFuture<T> call : calls) {
+				call.cancel(true);
+			}
+		}
+		return quorum;
+	}
+
+	// Completes once every replica has answered or failed, including the writes left to finish in the background
+	public ListenableFuture<Void> allCallsDone() {
+		return Futures.whenAllComplete(calls).call(() -> null, MoreExecutors.directExecutor());
+	}
+
+	private boolean isComplete() {
+		return responses.size() >= quorumSize || responses.size() + numberOfFailures >= numberOfReplicas;
+	}
+
+	private synchronized void addResponse(T response) {
+		if (finished) return;
+		responses.add(response);
+		notifyAll();
+	}
+
+	private synchronized void addFailure(Throwable t) {
+		// Failures of calls cancelled after the quorum was reached are expected and not reported
+		if (cancelled) return;
+		if (finished) {
+			System.out.println(Client.ERROR_PREFIX + "A replica failed to apply the write after the quorum answered: " + t.getMessage());
+			return;
+		}
+		numberOfFailures++;
+		if (t instanceof Exception e) Client.handleException(e);
+		else System.out.println(Client.ERROR_PREFIX + t);
+		notifyAll();
+	}
+}
@@ -0,0 +1,36 @@
+package pt.tecnico.sec.bftb.client;
+
+import pt.tecnico.sec.bftb.grpc.Server.Puzzle;
+
+public class ReplicaNonce {
+	private final long nonce;
+	private final Puzzle puzzle;
+	private final ReplicaSession session;
+
+	public ReplicaNonce(long nonce, Puzzle puzzle) {
+		this(nonce, puzzle, null);
+	}
+
+	public ReplicaNonce(long nonce, Puzzle puzzle, ReplicaSession session) {
+		this.nonce = nonce;
+		this.puzzle = puzzle;
+		this.session = session;
+	}
+
+	public long getNonce() {
+		return nonce;
+	}
+
+	public Puzzle getPuzzle() {
+		return puzzle;
+	}
+
+	// Null when the request has to be signed with the nonce instead
+	public ReplicaSession getSession() {
+		return session;
+	}
+
+	public long getSessionCounter() {
+		return (session != null) ? nonce : 0;
+	}
+}
@@ -0,0 +1,97 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.client.exceptions.CypherFailedException;
+import pt.tecnico.sec.bftb.client.exceptions.SignatureVerificationFailedException;
+import pt.tecnico.sec.bftb.grpc.Server.Puzzle;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicaSession {
+	private static final String KEY_AGREEMENT_ALGORITHM = "X25519";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final byte[] KEY_DERIVATION_LABEL = "bftb session key".getBytes(StandardCharsets.UTF_8);
+	private static final byte REQUEST_LABEL = 0;
+	private static final byte RESPONSE_LABEL = 1;
+	private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(ReplicaSession::newMac);
+	private final byte[] key;
+	private final AtomicLong counter;
+	private volatile Puzzle puzzle;
+
+	private ReplicaSession(byte[] key, Puzzle puzzle) {
+		this.key = key;
+		this.counter = new AtomicLong(0);
+		this.puzzle = puzzle;
+	}
+
+	private static Mac newMac() {
+		try {
+			return Mac.getInstance(MAC_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static KeyPair generateEphemeralKeyPair() throws NoSuchAlgorithmException {
+		return KeyPairGenerator.getInstance(KEY_AGREEMENT_ALGORITHM).generateKeyPair();
+	}
+
+	// Derives the same key as the replica from our ephemeral key pair and the replica's ephemeral key
+	public static ReplicaSession establish(KeyPair ephemeralKeyPair, ByteString peerEphemeralKeyBS, Puzzle puzzle)
+			throws GeneralSecurityException {
+		PublicKey peerEphemeralKey = KeyFactory.getInstance(KEY_AGREEMENT_ALGORITHM)
+				.generatePublic(new X509EncodedKeySpec(peerEphemeralKeyBS.toByteArray()));
+		KeyAgreement agreement = KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+		agreement.init(ephemeralKeyPair.getPrivate());
+		agreement.doPhase(peerEphemeralKey, true);
+		Mac mac = MAC.get();
+		mac.init(new SecretKeySpec(agreement.generateSecret(), MAC_ALGORITHM));
+		mac.update(KEY_DERIVATION_LABEL);
+		mac.update(ephemeralKeyPair.getPublic().getEncoded());
+		return new ReplicaSession(mac.doFinal(peerEphemeralKeyBS.toByteArray()), puzzle);
+	}
+
+	private byte[] mac(byte label, long counter, byte[] content) throws InvalidKeyException {
+		Mac mac = MAC.get();
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		mac.update(label);
+		mac.update(ByteBuffer.allocate(Long.BYTES).putLong(counter).array());
+		return mac.doFinal(content);
+	}
+
+	// In a session the counter takes the place of the nonce, the replica only accepts each counter value once
+	public ReplicaNonce nextNonce() {
+		return new ReplicaNonce(counter.incrementAndGet(), puzzle, this);
+	}
+
+	public byte[] macRequest(long requestCounter, byte[] content) throws CypherFailedException {
+		try {
+			return mac(REQUEST_LABEL, requestCounter, content);
+		}
+		catch (InvalidKeyException e) {
+			throw new CypherFailedException(e);
+		}
+	}
+
+	// Responses are bound to the counter of the request they answer
+	public boolean isResponseMacValid(long requestCounter, byte[] responseMac, byte[] content) throws SignatureVerificationFailedException {
+		try {
+			return MessageDigest.isEqual(mac(RESPONSE_LABEL, requestCounter, content), responseMac);
+		}
+		catch (InvalidKeyException e) {
+			throw new SignatureVerificationFailedException(e);
+		}
+	}
+
+	public void setPuzzle(Puzzle puzzle) {
+		this.puzzle = puzzle;
+	}
+}
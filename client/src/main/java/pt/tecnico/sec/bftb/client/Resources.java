@@ -1,10 +1,12 @@
 package pt.tecnico.sec.bftb.client;
 
-import org.bouncycastle.jce.X509Principal;
+import org.bouncycastle.asn1.*;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.x509.X509V3CertificateGenerator;
 import pt.tecnico.sec.bftb.client.exceptions.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -21,13 +23,17 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.HexFormat;
 
 public class Resources {
 	private static final String SERVER_CERT_PATH = "certificates";
 	private static final String SERVER_CERT_FILENAME = "cert_%d.pem";
+	private static final String AUDIT_CHECKPOINT_PATH = "checkpoints";
+	private static final String AUDIT_CHECKPOINT_FILENAME = "audit_%s.bin";
 	private static final String KEYSTORE_FILENAME = "keystore.jks";
 	private static final String KEYSTORE_PWD = "sec2122";
 	private static final String CERTIFICATE_DN = "CN=BFTB-G35, O=IST, L=Lisbon, ST=Lisbon, C=PT";
+	private static KeyAlgorithm keyAlgorithm = KeyAlgorithm.RSA;
 
 	private Resources() { /* empty */ }
 
@@ -50,12 +56,24 @@ public class Resources {
 		}
 	}
 
+	// Only applies to users whose key pair hasn't been generated yet
+	public static void setKeyAlgorithm(KeyAlgorithm algorithm) {
+		keyAlgorithm = algorithm;
+	}
+
 	private static String getAbsolutePathOfResource(String relativePath) throws URISyntaxException {
 		URL pathURL = Resources.class.getClassLoader().getResource(".");
 		assert pathURL != null;
 		return Paths.get(pathURL.toURI()).resolve(relativePath).toString();
 	}
 
+	// Checkpoints are kept per account, named after a hash of its public key
+	public static Path getAuditCheckpointPath(PublicKey publicKey) throws URISyntaxException, NoSuchAlgorithmException {
+		byte[] keyHash = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+		String fileName = String.format(AUDIT_CHECKPOINT_FILENAME, HexFormat.of().formatHex(keyHash));
+		return Path.of(getAbsolutePathOfResource(AUDIT_CHECKPOINT_PATH), fileName);
+	}
+
 	public static PublicKey getPublicKeyByUserId(String userId)
 			throws KeyPairLoadingFailedException, KeyPairGenerationFailedException {
 		try {
@@ -89,8 +107,7 @@ public class Resources {
 
 	private static void generateKeyPair(String userId) throws KeyPairGenerationFailedException {
 		try {
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-			keyGen.initialize(2048);
+			KeyPairGenerator keyGen = keyAlgorithm.newKeyPairGenerator();
 			KeyPair keyPair = keyGen.generateKeyPair();
 			PublicKey publicKey = keyPair.getPublic();
 			PrivateKey privateKey = keyPair.getPrivate();
@@ -98,12 +115,13 @@ public class Resources {
 			KeyStore keyStore = getKeyStore();
 
 			keyStore.setKeyEntry(userId, privateKey, KEYSTORE_PWD.toCharArray(),
-					new Certificate[]{generateSelfSignedCertificate(privateKey, publicKey)});
+					new Certificate[]{generateSelfSignedCertificate(privateKey, publicKey, keyAlgorithm)});
 
 			saveKeyStore(keyStore);
 		}
 		catch (NullPointerException | NoSuchAlgorithmException | KeyStoreException | LoadKeyStoreFailedException |
-		       SaveKeyStoreFailedException | CertificateGenerationFailedException e) {
+		       SaveKeyStoreFailedException | CertificateGenerationFailedException |
+		       InvalidAlgorithmParameterException e) {
 			throw new KeyPairGenerationFailedException(e);
 		}
 	}
@@ -144,22 +162,37 @@ public class Resources {
 		return certificate.getPublicKey();
 	}
 
-	@SuppressWarnings("deprecation")
-	private static X509Certificate generateSelfSignedCertificate(PrivateKey privateKey, PublicKey publicKey)
-			throws CertificateGenerationFailedException {
+	// Builds and signs the certificate structure directly, since BouncyCastle's certificate generator in bcprov
+	// doesn't support Ed25519
+	private static X509Certificate generateSelfSignedCertificate(PrivateKey privateKey, PublicKey publicKey,
+			KeyAlgorithm algorithm) throws CertificateGenerationFailedException {
 		try {
-			// Generate self-signed certificate
-			X509V3CertificateGenerator v3CertGen = new X509V3CertificateGenerator();
-			v3CertGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-			v3CertGen.setIssuerDN(new X509Principal(CERTIFICATE_DN));
-			v3CertGen.setNotBefore(new Date(System.currentTimeMillis() - (1000L * 60 * 60 * 24)));
-			v3CertGen.setNotAfter(new Date(System.currentTimeMillis() + (1000L * 60 * 60 * 24 * 365 * 10)));
-			v3CertGen.setSubjectDN(new X509Principal(CERTIFICATE_DN));
-			v3CertGen.setPublicKey(publicKey);
-			v3CertGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
-			return v3CertGen.generateX509Certificate(privateKey);
+			ASN1Encodable parameters = (algorithm == KeyAlgorithm.RSA) ? DERNull.INSTANCE : null;
+			AlgorithmIdentifier signatureAlgorithm = new AlgorithmIdentifier(algorithm.getCertificateSignatureOid(),
+					parameters);
+			V3TBSCertificateGenerator tbsGenerator = new V3TBSCertificateGenerator();
+			tbsGenerator.setSerialNumber(new ASN1Integer(BigInteger.valueOf(System.currentTimeMillis())));
+			tbsGenerator.setIssuer(new X500Name(CERTIFICATE_DN));
+			tbsGenerator.setStartDate(new Time(new Date(System.currentTimeMillis() - (1000L * 60 * 60 * 24))));
+			tbsGenerator.setEndDate(new Time(new Date(System.currentTimeMillis() + (1000L * 60 * 60 * 24 * 365 * 10))));
+			tbsGenerator.setSubject(new X500Name(CERTIFICATE_DN));
+			tbsGenerator.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(publicKey.getEncoded()));
+			tbsGenerator.setSignature(signatureAlgorithm);
+			TBSCertificate tbsCertificate = tbsGenerator.generateTBSCertificate();
+
+			Signature signer = Signature.getInstance(algorithm.getCertificateSignatureAlgorithm());
+			signer.initSign(privateKey);
+			signer.update(tbsCertificate.getEncoded(ASN1Encoding.DER));
+			ASN1EncodableVector certificate = new ASN1EncodableVector();
+			certificate.add(tbsCertificate);
+			certificate.add(signatureAlgorithm);
+			certificate.add(new DERBitString(signer.sign()));
+
+			byte[] encodedCertificate = new DERSequence(certificate).getEncoded(ASN1Encoding.DER);
+			CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(encodedCertificate));
 		}
-		catch (SignatureException | InvalidKeyException e) {
+		catch (GeneralSecurityException | IOException e) {
 			throw new CertificateGenerationFailedException(e);
 		}
 	}
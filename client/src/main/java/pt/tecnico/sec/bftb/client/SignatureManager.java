@@ -3,60 +3,56 @@ package pt.tecnico.sec.bftb.client;
 import pt.tecnico.sec.bftb.client.exceptions.CypherFailedException;
 import pt.tecnico.sec.bftb.client.exceptions.SignatureVerificationFailedException;
 import pt.tecnico.sec.bftb.grpc.Server.Balance;
+import pt.tecnico.sec.bftb.grpc.Server.ApprovedHead;
 import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
 import pt.tecnico.sec.bftb.grpc.Server.Transfer;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.Arrays;
 import java.util.Random;
 
 public class SignatureManager {
-	public static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+	private static final byte[] EMPTY = new byte[0];
 	private final Random randomGenerator;
 	private PrivateKey privateKey;
 	private PublicKey publicKey;
+	private SignatureScheme signatureScheme;
 	private long currentNonce;
 
-	public SignatureManager(PrivateKey privateKey, PublicKey publicKey) {
+	public SignatureManager(PrivateKey privateKey, PublicKey publicKey) throws NoSuchAlgorithmException {
 		this.randomGenerator = new SecureRandom();
 		this.privateKey = privateKey;
 		this.publicKey = publicKey;
+		this.signatureScheme = SignatureScheme.forKey(privateKey);
 		this.currentNonce = 0;
 	}
 
-	public void setKeyPair(PrivateKey privateKey, PublicKey publicKey) {
+	public void setKeyPair(PrivateKey privateKey, PublicKey publicKey) throws NoSuchAlgorithmException {
+		this.signatureScheme = SignatureScheme.forKey(privateKey);
 		this.privateKey = privateKey;
 		this.publicKey = publicKey;
 	}
 
+	private static byte[] nonceToBytes(long nonce) {
+		return ByteBuffer.allocate(Long.BYTES).putLong(nonce).array();
+	}
+
 	public byte[] cypherNonce(PublicKey peerPublicKey, long nonce) throws CypherFailedException {
 		try {
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.ENCRYPT_MODE, peerPublicKey);
-			byte[] nonceBytes = ByteBuffer.allocate(Long.BYTES).putLong(nonce).array();
-			return cipher.doFinal(nonceBytes);
+			return SignatureScheme.forKey(peerPublicKey).sealNonce(peerPublicKey, nonceToBytes(nonce));
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException e) {
 			throw new CypherFailedException(e);
 		}
 	}
 
 	public long decypherNonce(byte[] cypheredNonce) throws CypherFailedException {
 		try {
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, this.privateKey);
-			byte[] nonceBytes = cipher.doFinal(cypheredNonce);
+			byte[] nonceBytes = signatureScheme.openNonce(this.privateKey, cypheredNonce);
 			return ByteBuffer.wrap(nonceBytes).getLong();
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new CypherFailedException(e);
 		}
 	}
@@ -67,29 +63,31 @@ public class SignatureManager {
 		return this.currentNonce;
 	}
 
+	public long getCurrentNonce() {
+		return this.currentNonce;
+	}
+
 	public boolean isNonceSignatureValid(PublicKey peerPublicKey, byte[] signature, byte[] content) throws
 			SignatureVerificationFailedException {
+		return isNonceSignatureValid(peerPublicKey, this.currentNonce, signature, content);
+	}
+
+	// For responses that may arrive after another operation generated a new nonce
+	public boolean isNonceSignatureValid(PublicKey peerPublicKey, long nonce, byte[] signature, byte[] content) throws
+			SignatureVerificationFailedException {
 		try {
-			// Concatenate nonce and content
-			byte[] request = ByteBuffer.allocate(Long.BYTES + content.length).putLong(this.currentNonce).put(content).array();
-			// Hash it with SHA-256
-			byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(request);
-			// Decrypt SERVER's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, peerPublicKey);
-			byte[] receivedHash = cipher.doFinal(signature);
-			// Compare the received hash with the expected one
-			return Arrays.equals(expectedHash, receivedHash);
+			// Verify SERVER's signature of the nonce followed by the content
+			SignatureScheme peerScheme = SignatureScheme.forKey(peerPublicKey);
+			return peerScheme.verify(peerPublicKey, signature, nonceToBytes(nonce), content);
 		}
-		catch (NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException |
-		       NoSuchPaddingException | BufferUnderflowException e) {
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new SignatureVerificationFailedException(e);
 		}
 	}
 
 	public boolean isNonceSignatureValid(PublicKey peerPublicKey, byte[] signature) throws
 			SignatureVerificationFailedException {
-		return isNonceSignatureValid(peerPublicKey, signature, new byte[0]);
+		return isNonceSignatureValid(peerPublicKey, signature, EMPTY);
 	}
 
 	public boolean isBalanceSignatureValid(byte[] signature, Balance balance) throws
@@ -117,20 +115,23 @@ public class SignatureManager {
 		return isSignatureValid(signerPublicKey, signature, listSizes.toByteArray());
 	}
 
+	// List sizes signed before lists had a head, which migrated accounts keep until their next write
+	public boolean isLegacyListSizesSignatureValid(PublicKey signerPublicKey, byte[] signature, ListSizes listSizes)
+			throws SignatureVerificationFailedException {
+		return isSignatureValid(signerPublicKey, signature, listSizes.toBuilder().clearApprovedHead().build().toByteArray());
+	}
+
+	public boolean isApprovedHeadSignatureValid(PublicKey ownerPublicKey, byte[] signature, ListSizes listSizes)
+			throws SignatureVerificationFailedException {
+		return isSignatureValid(ownerPublicKey, signature, buildApprovedHead(listSizes).toByteArray());
+	}
+
 	public boolean isSignatureValid(PublicKey peerPublicKey, byte[] signature, byte[] content) throws
 			SignatureVerificationFailedException {
 		try {
-			// Hash it with SHA-256
-			byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(content);
-			// Decrypt SERVER's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, peerPublicKey);
-			byte[] receivedHash = cipher.doFinal(signature);
-			// Compare the received hash with the expected one
-			return Arrays.equals(expectedHash, receivedHash);
+			return SignatureScheme.forKey(peerPublicKey).verify(peerPublicKey, signature, EMPTY, content);
 		}
-		catch (NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException |
-		       NoSuchPaddingException | BufferUnderflowException e) {
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new SignatureVerificationFailedException(e);
 		}
 	}
@@ -147,39 +148,35 @@ public class SignatureManager {
 		return sign(listSizes.toByteArray());
 	}
 
+	// Only the approved part of our own list sizes, which stays ours to vouch for whoever changes the pending part
+	public byte[] signApprovedHead(ListSizes listSizes) throws CypherFailedException {
+		return sign(buildApprovedHead(listSizes).toByteArray());
+	}
+
+	private static ApprovedHead buildApprovedHead(ListSizes listSizes) {
+		return ApprovedHead.newBuilder().setApprovedSize(listSizes.getApprovedSize()).setApprovedHead(listSizes.getApprovedHead()).build();
+	}
+
 	public byte[] sign(byte[] content) throws CypherFailedException {
 		try {
-			// Hash it with SHA-256
-			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
-			// Encrypt CLIENT's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.ENCRYPT_MODE, this.privateKey);
-			return cipher.doFinal(hash);
+			return signatureScheme.sign(this.privateKey, EMPTY, content);
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException e) {
 			throw new CypherFailedException(e);
 		}
 	}
 
 	public byte[] sign(long nonce, byte[] content) throws CypherFailedException {
 		try {
-			// Concatenate nonce and content
-			byte[] request = ByteBuffer.allocate(Long.BYTES + content.length).putLong(nonce).put(content).array();
-			// Hash it with SHA-256
-			byte[] hash = MessageDigest.getInstance("SHA-256").digest(request);
-			// Encrypt CLIENT's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.ENCRYPT_MODE, this.privateKey);
-			return cipher.doFinal(hash);
+			// Sign the nonce followed by the content
+			return signatureScheme.sign(this.privateKey, nonceToBytes(nonce), content);
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException e) {
 			throw new CypherFailedException(e);
 		}
 	}
 
 	public byte[] sign(long nonce) throws CypherFailedException {
-		return sign(nonce, new byte[0]);
+		return sign(nonce, EMPTY);
 	}
 }
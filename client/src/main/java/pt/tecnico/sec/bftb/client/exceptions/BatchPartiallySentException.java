@@ -0,0 +1,16 @@
+package pt.tecnico.sec.bftb.client.exceptions;
+
+// Thrown once some parts of a batch were already applied, so the caller knows where to resume from
+public class BatchPartiallySentException extends Exception {
+	private static final String MESSAGE = "Only the first %d of %d transfers of the batch were sent: %s";
+	private final int transfersSent;
+
+	public BatchPartiallySentException(int transfersSent, int transfersInBatch, Throwable cause) {
+		super(String.format(MESSAGE, transfersSent, transfersInBatch, cause.getMessage()), cause);
+		this.transfersSent = transfersSent;
+	}
+
+	public int getTransfersSent() {
+		return transfersSent;
+	}
+}
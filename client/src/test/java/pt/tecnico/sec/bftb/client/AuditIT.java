@@ -0,0 +1,80 @@
+package pt.tecnico.sec.bftb.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+import pt.tecnico.sec.bftb.server.DurabilityMode;
+import pt.tecnico.sec.bftb.server.ReplicaCluster;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuditIT {
+	private static final int FAULTS_TO_TOLERATE = 1;
+	private ReplicaCluster cluster;
+	private Client client;
+
+	@BeforeEach
+	void startCluster() throws Exception {
+		cluster = ReplicaCluster.inProcess(FAULTS_TO_TOLERATE, DurabilityMode.DEFAULT);
+		client = new Client(cluster::newChannel, cluster.getPublicKeys(), FAULTS_TO_TOLERATE);
+	}
+
+	@AfterEach
+	void stopCluster() {
+		cluster.close();
+	}
+
+	// Audits without transfer signatures only succeed against a head the owner signed, so a quorum of them means the
+	// audit didn't have to fall back to checking every transfer
+	private boolean isAuditedFromSignedHead() throws Exception {
+		return client.auditSince(AuditCheckpoint.empty(), false).size() >= client.numberOfNeededResponses();
+	}
+
+	@Test
+	void senderAuditStaysOnSignedHeadAfterReceiverApproves() throws Exception {
+		// Keys are kept between runs, so every run uses new users
+		String sender = "sender-" + UUID.randomUUID();
+		String receiver = "receiver-" + UUID.randomUUID();
+		client.changeUser(receiver);
+		client.openAccount();
+		client.changeUser(sender);
+		client.openAccount();
+		client.sendAmount(receiver, 10);
+		assertTrue(isAuditedFromSignedHead());
+
+		client.changeUser(receiver);
+		client.checkAccount();
+		client.receiveAmount(0);
+		assertTrue(isAuditedFromSignedHead());
+
+		client.changeUser(sender);
+		assertTrue(isAuditedFromSignedHead());
+	}
+
+	@Test
+	void cursorNotMatchingTheListIsRejected() throws Exception {
+		String sender = "sender-" + UUID.randomUUID();
+		String receiver = "receiver-" + UUID.randomUUID();
+		client.changeUser(receiver);
+		client.openAccount();
+		client.changeUser(sender);
+		client.openAccount();
+		client.sendAmount(receiver, 10);
+		client.sendAmount(receiver, 20);
+		List<Transfer> transfers = client.auditSince(AuditCheckpoint.empty(), false).get(0).getApprovedTransfers();
+		assertEquals(2, transfers.size());
+
+		AuditCheckpoint checkpoint = AuditCheckpoint.empty().extend(transfers.subList(0, 1));
+		assertTrue(client.auditSince(checkpoint, false).size() >= client.numberOfNeededResponses());
+		// Same position, different prefix, so the replicas can't just send what comes after it
+		Transfer forged = transfers.get(0).toBuilder().setAmount(transfers.get(0).getAmount() + 1).build();
+		assertTrue(client.auditSince(AuditCheckpoint.empty().extend(List.of(forged)), false).isEmpty());
+		// Past the end of the list
+		assertTrue(client.auditSince(AuditCheckpoint.empty().extend(transfers).extend(List.of(forged)), false).isEmpty());
+	}
+}
@@ -0,0 +1,131 @@
+package pt.tecnico.sec.bftb.client;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+import pt.tecnico.sec.bftb.server.DurabilityMode;
+import pt.tecnico.sec.bftb.server.ReplicaCluster;
+import pt.tecnico.sec.bftb.server.ReplicaFault;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaClusterIT {
+	private static final int FAULTS_TO_TOLERATE = 1;
+	private static final int INITIAL_BALANCE = 100;
+	private static final int FAULTY_REPLICA = 0;
+	private static final long SLOW_REPLICA_DELAY = 300; // Milliseconds
+	private ReplicaCluster cluster;
+	private Client client;
+	// Replicas whose responses were accepted by the client
+	private Set<Integer> answeringReplicas;
+	private String sender;
+	private String receiver;
+
+	@BeforeEach
+	void startCluster() throws Exception {
+		cluster = ReplicaCluster.inProcess(FAULTS_TO_TOLERATE, DurabilityMode.DEFAULT);
+		client = new Client(cluster::newChannel, cluster.getPublicKeys(), FAULTS_TO_TOLERATE);
+		answeringReplicas = ConcurrentHashMap.newKeySet();
+		client.setReplicaCallListener((replicaID, elapsedNanos, failure) -> {
+			if (failure == null) answeringReplicas.add(replicaID);
+		});
+		// Keys are kept between runs, so every run uses new users
+		sender = "sender-" + UUID.randomUUID();
+		receiver = "receiver-" + UUID.randomUUID();
+	}
+
+	@AfterEach
+	void stopCluster() {
+		cluster.close();
+	}
+
+	private void openAccounts() throws Exception {
+		client.changeUser(receiver);
+		client.openAccount();
+		client.changeUser(sender);
+		client.openAccount();
+	}
+
+	// Replicas only tell an account's balance to its owner
+	private int balanceOf(String userId) throws Exception {
+		client.changeUser(userId);
+		ByteString key = ByteString.copyFrom(Resources.getPublicKeyByUserId(userId).getEncoded());
+		return client.readForWrite(key, key, true).getBalance().getValue();
+	}
+
+	private List<Transfer> auditedTransfersOf(String userId) throws Exception {
+		client.changeUser(userId);
+		List<AuditStream> readList = client.auditSince(AuditCheckpoint.empty(), false);
+		assertTrue(readList.size() >= client.numberOfNeededResponses());
+		return readList.get(0).getApprovedTransfers();
+	}
+
+	private void sendAndReceive(int amount) throws Exception {
+		client.changeUser(sender);
+		client.sendAmount(receiver, amount);
+		client.changeUser(receiver);
+		client.checkAccount();
+		assertEquals(amount, client.getTransferFromNumber(0).getAmount());
+		client.receiveAmount(0);
+	}
+
+	@Test
+	void transferIsSentReceivedAndAudited() throws Exception {
+		openAccounts();
+		sendAndReceive(10);
+
+		assertEquals(INITIAL_BALANCE - 10, balanceOf(sender));
+		assertEquals(INITIAL_BALANCE + 10, balanceOf(receiver));
+		for (String userId : List.of(sender, receiver)) {
+			List<Transfer> transfers = auditedTransfersOf(userId);
+			assertEquals(1, transfers.size());
+			assertEquals(10, transfers.get(0).getAmount());
+		}
+	}
+
+	@Test
+	void replicaForgingSignaturesIsTolerated() throws Exception {
+		cluster.setFault(FAULTY_REPLICA, ReplicaFault.FORGED_SIGNATURES);
+		openAccounts();
+		sendAndReceive(10);
+
+		assertEquals(INITIAL_BALANCE - 10, balanceOf(sender));
+		assertEquals(INITIAL_BALANCE + 10, balanceOf(receiver));
+		assertEquals(1, auditedTransfersOf(sender).size());
+		assertEquals(1, auditedTransfersOf(receiver).size());
+		// None of its responses got past the client's checks
+		assertFalse(answeringReplicas.contains(FAULTY_REPLICA));
+	}
+
+	@Test
+	void replicaServingStaleReadsIsOutvoted() throws Exception {
+		openAccounts();
+		sendAndReceive(10);
+		// From here on, the faulty replica answers with what it has when it is first read
+		cluster.setFault(FAULTY_REPLICA, ReplicaFault.STALE_TIMESTAMPS);
+		assertEquals(INITIAL_BALANCE - 10, balanceOf(sender));
+		// Two of the others are slow, so the stale replica is in every read quorum, along with one up to date replica
+		for (int replicaID = 0; replicaID < cluster.getNumberOfReplicas(); replicaID++) {
+			if (replicaID != FAULTY_REPLICA && replicaID != FAULTY_REPLICA + 1)
+				cluster.setDelay(replicaID, SLOW_REPLICA_DELAY, TimeUnit.MILLISECONDS);
+		}
+		sendAndReceive(20);
+		answeringReplicas.clear();
+
+		assertEquals(INITIAL_BALANCE - 30, balanceOf(sender));
+		assertEquals(INITIAL_BALANCE + 30, balanceOf(receiver));
+		assertTrue(answeringReplicas.contains(FAULTY_REPLICA));
+		assertEquals(2, auditedTransfersOf(sender).size());
+		assertEquals(2, auditedTransfersOf(receiver).size());
+	}
+}
@@ -0,0 +1,71 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class AccountCache {
+	private final LinkedHashMap<ByteString, AccountState> states;
+	// Accounts written by a group commit batch that isn't durable yet, which must not be cached until it is
+	private final Set<ByteString> uncommitted;
+	private long version;
+
+	public AccountCache(int capacity) {
+		// Only the most recently used accounts are kept, the others are looked up in the accounts table on demand
+		this.states = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteString, AccountState> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.uncommitted = new HashSet<>();
+		this.version = 0;
+	}
+
+	// Null if the account isn't cached, which doesn't mean it doesn't exist
+	public synchronized AccountState get(ByteString publicKeyBS) {
+		return states.get(publicKeyBS);
+	}
+
+	// Bumped on every write, so that a load which raced with a write can be detected
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	// Only caches a state read from the database if no write happened since the given version was read
+	synchronized void load(AccountState state, long expectedVersion) {
+		if (version == expectedVersion && !uncommitted.contains(state.getPublicKeyBS()))
+			states.put(state.getPublicKeyBS(), state);
+	}
+
+	// Must be called while holding the writer connection, once the written states are durable
+	synchronized void apply(Collection<AccountState> writtenStates) {
+		version++;
+		for (AccountState state : writtenStates) {
+			uncommitted.remove(state.getPublicKeyBS());
+			states.put(state.getPublicKeyBS(), state);
+		}
+	}
+
+	// Must be called while holding the writer connection, once the written states are visible to other writers but
+	// not yet durable. Until they are applied or discarded, the accounts are only read from the database
+	synchronized void holdBack(Collection<AccountState> writtenStates) {
+		version++;
+		for (AccountState state : writtenStates) {
+			uncommitted.add(state.getPublicKeyBS());
+			states.remove(state.getPublicKeyBS());
+		}
+	}
+
+	// Must be called while holding the writer connection, after the held back states have been rolled back
+	synchronized void discard(Collection<AccountState> writtenStates) {
+		version++;
+		for (AccountState state : writtenStates) {
+			uncommitted.remove(state.getPublicKeyBS());
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class AccountState {
+	private final long accountId;
+	private final ByteString publicKeyBS;
+	private final BalanceRecord balanceRecord;
+	private final ListSizesRecord listSizesRecord;
+
+	public AccountState(long accountId, ByteString publicKeyBS, BalanceRecord balanceRecord,
+			ListSizesRecord listSizesRecord) {
+		this.accountId = accountId;
+		this.publicKeyBS = publicKeyBS;
+		this.balanceRecord = balanceRecord;
+		this.listSizesRecord = listSizesRecord;
+	}
+
+	public AccountState(ResultSet rs) throws SQLException {
+		this.accountId = rs.getLong("account_id");
+		this.publicKeyBS = ByteString.copyFrom(rs.getBytes("pubkey"));
+		this.balanceRecord = new BalanceRecord(rs);
+		this.listSizesRecord = new ListSizesRecord(rs);
+	}
+
+	public long getAccountId() {
+		return accountId;
+	}
+
+	public ByteString getPublicKeyBS() {
+		return publicKeyBS;
+	}
+
+	public BalanceRecord getBalanceRecord() {
+		return balanceRecord;
+	}
+
+	public ListSizesRecord getListSizesRecord() {
+		return listSizesRecord;
+	}
+
+	public AccountState withBalanceRecord(BalanceRecord newBalanceRecord) {
+		return new AccountState(accountId, publicKeyBS, newBalanceRecord, listSizesRecord);
+	}
+
+	public AccountState withListSizesRecord(ListSizesRecord newListSizesRecord) {
+		return new AccountState(accountId, publicKeyBS, balanceRecord, newListSizesRecord);
+	}
+}
@@ -0,0 +1,123 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs calls on the given executor, admitting only as many at once as it can hold. The server hands calls over
+// directly from its transport threads, so a call beyond the limit is turned away with RESOURCE_EXHAUSTED right away,
+// instead of piling up in a queue or a new thread. Each call's callbacks still run one at a time and in order
+public class AdmissionControl implements ServerInterceptor {
+	public static final String REPLICA_OVERLOADED = "Replica is overloaded, try again later";
+	private final Executor executor;
+	private final int maxCalls;
+	private final Semaphore permits;
+
+	public AdmissionControl(Executor executor, int maxCalls) {
+		this.executor = executor;
+		this.maxCalls = maxCalls;
+		this.permits = new Semaphore(maxCalls);
+	}
+
+	// Calls admitted and not finished yet, whether they are running or waiting for a worker
+	public int getAdmittedCalls() {
+		return maxCalls - permits.availablePermits();
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		if (!permits.tryAcquire()) {
+			call.close(Status.RESOURCE_EXHAUSTED.withDescription(REPLICA_OVERLOADED), new Metadata());
+			return new ServerCall.Listener<>() {};
+		}
+		ServerCall.Listener<ReqT> listener;
+		try {
+			listener = next.startCall(call, headers);
+		}
+		catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		return new AdmittedCallListener<>(call, listener, Context.current());
+	}
+
+	private class AdmittedCallListener<ReqT, RespT> extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+		private final ServerCall<ReqT, RespT> call;
+		private final Executor callExecutor;
+		private final Context context;
+		private final AtomicBoolean finished;
+
+		private AdmittedCallListener(ServerCall<ReqT, RespT> call, ServerCall.Listener<ReqT> delegate, Context context) {
+			super(delegate);
+			this.call = call;
+			this.callExecutor = MoreExecutors.newSequentialExecutor(executor);
+			this.context = context;
+			this.finished = new AtomicBoolean(false);
+		}
+
+		// The service checks the call's context for cancellation, so it is carried over to the worker thread
+		private void dispatch(Runnable callback) {
+			callExecutor.execute(context.wrap(() -> {
+				try {
+					callback.run();
+				}
+				catch (RuntimeException e) {
+					call.close(Status.fromThrowable(e), new Metadata());
+				}
+			}));
+		}
+
+		private void finish() {
+			if (finished.compareAndSet(false, true)) permits.release();
+		}
+
+		@Override
+		public void onMessage(ReqT message) {
+			dispatch(() -> super.onMessage(message));
+		}
+
+		@Override
+		public void onHalfClose() {
+			dispatch(super::onHalfClose);
+		}
+
+		@Override
+		public void onReady() {
+			dispatch(super::onReady);
+		}
+
+		@Override
+		public void onComplete() {
+			dispatch(() -> {
+				try {
+					super.onComplete();
+				}
+				finally {
+					finish();
+				}
+			});
+		}
+
+		@Override
+		public void onCancel() {
+			dispatch(() -> {
+				try {
+					super.onCancel();
+				}
+				finally {
+					finish();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Reads the approved transfers of an account one page at a time, all from the same snapshot of the database,
+// so the pages and the list sizes stay consistent with each other while writes go on
+public class ApprovedTransfersReader implements AutoCloseable {
+	private final SQLiteDatabase db;
+	private final PooledConnection conn;
+	private final ByteString publicKeyBS;
+	private int position;
+	private boolean closed;
+
+	// The first since transfers are skipped, the client already has them
+	ApprovedTransfersReader(SQLiteDatabase db, PooledConnection conn, ByteString publicKeyBS, int since)
+			throws SQLException {
+		this.db = db;
+		this.conn = conn;
+		this.publicKeyBS = publicKeyBS;
+		this.position = since;
+		this.closed = false;
+		try {
+			execute("BEGIN");
+		}
+		catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	public ListSizesRecord readListSizes() throws SQLException {
+		return db.loadAccountState(conn, publicKeyBS).getListSizesRecord();
+	}
+
+	// Returns the next transfers after the last one returned, fewer than pageSize once there are no more
+	public TransfersRecord nextPage(int pageSize) throws SQLException {
+		TransfersRecord page = db.getApprovedTransfersPage(conn, publicKeyBS, position, pageSize);
+		position += page.getTransfers().size();
+		return page;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if (closed) return;
+		closed = true;
+		try {
+			execute("COMMIT");
+		}
+		finally {
+			conn.close();
+		}
+	}
+}
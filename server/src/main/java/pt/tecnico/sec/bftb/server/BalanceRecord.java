@@ -5,7 +5,6 @@ import pt.tecnico.sec.bftb.grpc.Server.Balance;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Base64;
 
 public class BalanceRecord {
 	private final Balance balance;
@@ -21,7 +20,7 @@ public class BalanceRecord {
 		builder.setValue(rs.getInt("balance"));
 		builder.setWts(rs.getInt("balance_wts"));
 		this.balance = builder.build();
-		this.signature = ByteString.copyFrom(Base64.getDecoder().decode(rs.getString("balance_signature")));
+		this.signature = ByteString.copyFrom(rs.getBytes("balance_signature"));
 	}
 
 	public Balance getBalance() {
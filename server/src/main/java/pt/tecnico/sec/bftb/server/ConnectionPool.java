@@ -0,0 +1,81 @@
+package pt.tecnico.sec.bftb.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ConnectionPool implements AutoCloseable {
+	private static final int BUSY_TIMEOUT_MS = 5000;
+	private final String url;
+	private final List<PooledConnection> readerConnections;
+	private final BlockingQueue<PooledConnection> idleReaders;
+	private final PooledConnection writer;
+	private final ReentrantLock writerLock;
+
+	public ConnectionPool(String databasePath, int numberOfReaders, DurabilityMode durabilityMode)
+			throws SQLException {
+		this.url = "jdbc:sqlite:" + databasePath;
+		this.readerConnections = new ArrayList<>();
+		this.idleReaders = new ArrayBlockingQueue<>(numberOfReaders);
+		this.writerLock = new ReentrantLock();
+		// SQLite only supports one writer at a time, so every write goes through the same connection
+		Connection writerConnection = openConnection(false);
+		// The journal mode is stored in the database file, so it must be set before any reader opens it
+		try (Statement stmt = writerConnection.createStatement()) {
+			stmt.execute("PRAGMA journal_mode = " + durabilityMode.getJournalMode());
+			stmt.execute("PRAGMA synchronous = " + durabilityMode.getSynchronous());
+		}
+		this.writer = new PooledConnection(writerConnection, pooled -> writerLock.unlock());
+		for (int i = 0; i < numberOfReaders; i++) {
+			PooledConnection reader = new PooledConnection(openConnection(true), idleReaders::add);
+			readerConnections.add(reader);
+			idleReaders.add(reader);
+		}
+	}
+
+	private Connection openConnection(boolean queryOnly) throws SQLException {
+		Connection conn = DriverManager.getConnection(url);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+			if (queryOnly) stmt.execute("PRAGMA query_only = true");
+		}
+		return conn;
+	}
+
+	// Blocks until a reader connection is available, it must be given back by closing it
+	public PooledConnection getReader() throws SQLException {
+		try {
+			return idleReaders.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+	}
+
+	// Blocks until the writer connection is available, it must be given back by closing it
+	public PooledConnection getWriter() {
+		writerLock.lock();
+		return writer;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		writerLock.lock();
+		try {
+			writer.closeConnection();
+			for (PooledConnection reader : readerConnections) {
+				reader.closeConnection();
+			}
+		}
+		finally {
+			writerLock.unlock();
+		}
+	}
+}
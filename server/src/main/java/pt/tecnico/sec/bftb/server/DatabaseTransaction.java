@@ -0,0 +1,239 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.grpc.Server.Balance;
+import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class DatabaseTransaction implements AutoCloseable {
+	private static final String SAVEPOINT_NAME = "unit_of_work";
+	private final SQLiteDatabase db;
+	private final PooledConnection conn;
+	private final GroupCommitter groupCommitter;
+	private final AccountCache accountCache;
+	// Account states written by this transaction, only applied to the cache once it commits
+	private final Map<ByteString, AccountState> writtenStates;
+	private boolean finished;
+	private boolean released;
+
+	DatabaseTransaction(SQLiteDatabase db, PooledConnection conn, GroupCommitter groupCommitter,
+			AccountCache accountCache) throws SQLException {
+		this.db = db;
+		this.conn = conn;
+		this.groupCommitter = groupCommitter;
+		this.accountCache = accountCache;
+		this.writtenStates = new HashMap<>();
+		this.finished = false;
+		this.released = false;
+		try {
+			if (groupCommitter == null) {
+				// IMMEDIATE takes the write lock upfront, so the checks and the writes see the same state
+				execute("BEGIN IMMEDIATE");
+			}
+			else {
+				// Join the batch's shared transaction, the savepoint lets this unit roll back on its own
+				groupCommitter.joinBatch(conn);
+				execute("SAVEPOINT " + SAVEPOINT_NAME);
+			}
+		}
+		catch (SQLException e) {
+			if (groupCommitter != null) groupCommitter.leaveBatch(conn);
+			releaseConnection();
+			throw e;
+		}
+	}
+
+	private void releaseConnection() {
+		if (!released) {
+			released = true;
+			conn.close();
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	// With group commit, this blocks until the batch containing this unit of work is durable
+	public void commit() throws SQLException {
+		db.getMetrics().timed("db.commit", () -> {
+			if (groupCommitter == null) {
+				execute("COMMIT");
+				finished = true;
+				accountCache.apply(writtenStates.values());
+				return;
+			}
+			execute("RELEASE " + SAVEPOINT_NAME);
+			finished = true;
+			// Later units of work in the same batch already see these writes, but readers must not until they are durable
+			List<AccountState> states = List.copyOf(writtenStates.values());
+			accountCache.holdBack(states);
+			CompletableFuture<Void> durable = groupCommitter.enqueueCommit(() -> accountCache.apply(states),
+					() -> accountCache.discard(states));
+			// Let other units of work use the writer while the batch is being committed
+			releaseConnection();
+			GroupCommitter.awaitCommit(durable);
+		});
+	}
+
+	// Rolls back everything done in the transaction unless it was committed
+	@Override
+	public void close() throws SQLException {
+		try {
+			if (!finished && groupCommitter == null) {
+				execute("ROLLBACK");
+			}
+			else if (!finished) {
+				try {
+					execute("ROLLBACK TO " + SAVEPOINT_NAME);
+					execute("RELEASE " + SAVEPOINT_NAME);
+				}
+				finally {
+					groupCommitter.leaveBatch(conn);
+				}
+			}
+		}
+		finally {
+			finished = true;
+			releaseConnection();
+		}
+	}
+
+	private AccountState readAccountState(ByteString publicKeyBS) throws SQLException {
+		AccountState state = writtenStates.get(publicKeyBS);
+		if (state != null) return state;
+		state = accountCache.get(publicKeyBS);
+		if (state != null) return state;
+		// Writes only happen while holding the writer connection, so nothing can race with this load
+		long version = accountCache.getVersion();
+		state = db.loadAccountState(conn, publicKeyBS);
+		accountCache.load(state, version);
+		return state;
+	}
+
+	public boolean checkAccountExists(ByteString publicKey) throws SQLException {
+		if (writtenStates.containsKey(publicKey) || accountCache.get(publicKey) != null) return true;
+		return db.accountExists(conn, publicKey);
+	}
+
+	public int readAccountBalance(ByteString publicKeyBS) throws SQLException {
+		return readAccountState(publicKeyBS).getBalanceRecord().getBalance().getValue();
+	}
+
+	public BalanceRecord readAccountBalanceRecord(ByteString publicKeyBS) throws SQLException {
+		return readAccountState(publicKeyBS).getBalanceRecord();
+	}
+
+	public ListSizesRecord readAccountListSizesRecord(ByteString publicKeyBS) throws SQLException {
+		return readAccountState(publicKeyBS).getListSizesRecord();
+	}
+
+	public boolean checkPendingTransferExists(long timestamp, ByteString sourceKey, ByteString destinationKey, int amount)
+			throws SQLException {
+		return db.checkPendingTransferExists(conn, timestamp, sourceKey, destinationKey, amount);
+	}
+
+	public void insertAccount(ByteString publicKey, int balance, int balanceWts, ByteString balanceSignature,
+			int pendingSize, int approvedSize, int sizesWts, ByteString sizesSignature, ByteString approvedHeadSignature)
+			throws SQLException {
+		long accountId = db.insertAccount(conn, publicKey, balance, balanceWts, balanceSignature, pendingSize,
+				approvedSize, sizesWts, sizesSignature, approvedHeadSignature);
+		BalanceRecord balanceRecord = new BalanceRecord(newBalance(balance, balanceWts), balanceSignature);
+		ListSizesRecord listSizesRecord = new ListSizesRecord(newListSizes(pendingSize, approvedSize, sizesWts),
+				sizesSignature, publicKey, approvedHeadSignature);
+		writtenStates.put(publicKey, new AccountState(accountId, publicKey, balanceRecord, listSizesRecord));
+	}
+
+	public void updateAccountBalance(ByteString accountPublicKey, int balance, int wts, ByteString signature)
+			throws SQLException {
+		db.updateAccountBalance(conn, accountPublicKey, balance, wts, signature);
+		BalanceRecord balanceRecord = new BalanceRecord(newBalance(balance, wts), signature);
+		writtenStates.put(accountPublicKey, readAccountState(accountPublicKey).withBalanceRecord(balanceRecord));
+	}
+
+	// For a new pending transfer signed by its sender. Only the owner changes the approved part, so the owner's
+	// signature over the approved head still holds
+	public void updateAccountListSizes(ByteString accountPublicKey, ListSizes listSizes, ByteString sizesSignature,
+			ByteString sizesSignerPublicKey) throws SQLException {
+		updateAccountListSizes(accountPublicKey, listSizes, sizesSignature, sizesSignerPublicKey,
+				readAccountListSizesRecord(accountPublicKey).getApprovedHeadSignature());
+	}
+
+	public void updateAccountListSizes(ByteString accountPublicKey, ListSizes listSizes, ByteString sizesSignature,
+			ByteString sizesSignerPublicKey, ByteString approvedHeadSignature) throws SQLException {
+		db.updateAccountListSizes(conn, accountPublicKey, listSizes.getPendingSize(), listSizes.getApprovedSize(),
+				listSizes.getApprovedHead(), listSizes.getWts(), sizesSignature, sizesSignerPublicKey, approvedHeadSignature);
+		ListSizesRecord listSizesRecord = new ListSizesRecord(newListSizes(listSizes), sizesSignature, sizesSignerPublicKey,
+				approvedHeadSignature);
+		writtenStates.put(accountPublicKey, readAccountState(accountPublicKey).withListSizesRecord(listSizesRecord));
+	}
+
+	public void updateAccountAll(ByteString accountPublicKey, int balance, int balanceWts, ByteString balanceSignature,
+			ListSizes listSizes, ByteString sizesSignature, ByteString sizesSignerPublicKey, ByteString approvedHeadSignature)
+			throws SQLException {
+		db.updateAccountAll(conn, accountPublicKey, balance, balanceWts, balanceSignature, listSizes.getPendingSize(),
+				listSizes.getApprovedSize(), listSizes.getApprovedHead(), listSizes.getWts(), sizesSignature,
+				sizesSignerPublicKey, approvedHeadSignature);
+		BalanceRecord balanceRecord = new BalanceRecord(newBalance(balance, balanceWts), balanceSignature);
+		ListSizesRecord listSizesRecord = new ListSizesRecord(newListSizes(listSizes), sizesSignature, sizesSignerPublicKey,
+				approvedHeadSignature);
+		writtenStates.put(accountPublicKey, readAccountState(accountPublicKey).withBalanceRecord(balanceRecord)
+				.withListSizesRecord(listSizesRecord));
+	}
+
+	public void insertTransfer(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey, int amount,
+			ByteString senderSignature) throws SQLException {
+		db.insertTransfer(conn, timestamp, senderPublicKey, receiverPublicKey, amount, senderSignature);
+	}
+
+	public void insertTransfers(List<Transfer> transfers, List<ByteString> senderSignatures) throws SQLException {
+		db.insertTransfers(conn, transfers, senderSignatures);
+	}
+
+	// Appends to the account's approved list, in the order its owner signed the transfers. Must be called before the
+	// account's list sizes are updated, since the chain is continued from the current approved head
+	public void appendApprovedTransfers(ByteString accountPublicKey, List<Transfer> transfers) throws SQLException {
+		if (transfers.isEmpty()) return;
+		ByteString head = readAccountListSizesRecord(accountPublicKey).getListSizes().getApprovedHead();
+		List<ByteString> chainHeads = new ArrayList<>(transfers.size());
+		for (Transfer transfer : transfers) {
+			head = TransferChain.extend(head, transfer);
+			chainHeads.add(head);
+		}
+		db.insertApprovedTransfers(conn, accountPublicKey, transfers, chainHeads);
+	}
+
+	public void updateTransferToApproved(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey,
+			ByteString receiverSignature) throws SQLException {
+		db.updateTransferToApproved(conn, timestamp, senderPublicKey, receiverPublicKey, receiverSignature);
+	}
+
+	public int updateTransfersToApproved(ByteString receiverPublicKey, List<Transfer> transfers,
+			List<ByteString> receiverSignatures) throws SQLException {
+		return db.updateTransfersToApproved(conn, receiverPublicKey, transfers, receiverSignatures);
+	}
+
+	private static Balance newBalance(int value, int wts) {
+		return Balance.newBuilder().setValue(value).setWts(wts).build();
+	}
+
+	private static ListSizes newListSizes(int pendingSize, int approvedSize, int wts) {
+		return ListSizes.newBuilder().setPendingSize(pendingSize).setApprovedSize(approvedSize).setWts(wts).build();
+	}
+
+	// Only the stored fields are kept, so the cached list sizes are the same as those read back from the database
+	private static ListSizes newListSizes(ListSizes listSizes) {
+		return ListSizes.newBuilder().setPendingSize(listSizes.getPendingSize()).setApprovedSize(listSizes.getApprovedSize())
+				.setApprovedHead(listSizes.getApprovedHead()).setWts(listSizes.getWts()).build();
+	}
+}
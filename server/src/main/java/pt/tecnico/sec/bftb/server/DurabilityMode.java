@@ -0,0 +1,30 @@
+package pt.tecnico.sec.bftb.server;
+
+public enum DurabilityMode {
+	// Rollback journal, every commit is synced to disk on its own (SQLite default)
+	DEFAULT("DELETE", "FULL"),
+	// Write-ahead log, readers never block the writer and commits are only synced on checkpoints
+	WAL("WAL", "NORMAL"),
+	// Write-ahead log with every commit synced, concurrent commits are batched by a writer thread into one sync
+	GROUP_COMMIT("WAL", "FULL");
+
+	private final String journalMode;
+	private final String synchronous;
+
+	DurabilityMode(String journalMode, String synchronous) {
+		this.journalMode = journalMode;
+		this.synchronous = synchronous;
+	}
+
+	public String getJournalMode() {
+		return journalMode;
+	}
+
+	public String getSynchronous() {
+		return synchronous;
+	}
+
+	public static DurabilityMode fromString(String name) {
+		return DurabilityMode.valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
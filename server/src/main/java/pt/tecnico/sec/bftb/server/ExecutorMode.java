@@ -0,0 +1,16 @@
+package pt.tecnico.sec.bftb.server;
+
+public enum ExecutorMode {
+	// gRPC's own cached thread pool, which grows without bound under a burst
+	DEFAULT,
+	// A virtual thread per call, blocking SQLite and crypto work doesn't hold a platform thread (Java 21 or later)
+	VIRTUAL,
+	// A fixed number of worker threads and a bounded number of calls waiting for them
+	BOUNDED,
+	// Like BOUNDED, with signing and signature verification moved to a pool with one thread per core
+	OFFLOAD;
+
+	public static ExecutorMode fromString(String name) {
+		return ExecutorMode.valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
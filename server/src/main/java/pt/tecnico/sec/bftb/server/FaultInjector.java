@@ -0,0 +1,200 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import pt.tecnico.sec.bftb.grpc.Server.*;
+import pt.tecnico.sec.bftb.server.exceptions.AccountDoesNotHaveSessionException;
+import pt.tecnico.sec.bftb.server.exceptions.CypherFailedException;
+import pt.tecnico.sec.bftb.server.exceptions.SessionEstablishmentFailedException;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Makes a replica misbehave in the ways clients must tolerate from up to f replicas, so quorums can be tested and
+// measured with faulty replicas. The fault can be changed at any time and applies to the calls that start after it
+public class FaultInjector implements ServerInterceptor {
+	private static final String CRASHED_DESC = "Replica crashed";
+	private static final String SIGNATURE_FIELD = "signature";
+	private final ServerServiceImpl service;
+	private final Random randomGenerator;
+	private final Map<ByteString, BalanceRecord> staleBalances;
+	private final Map<ByteString, ListSizesRecord> staleListSizes;
+	private volatile ReplicaFault fault;
+	private volatile long delayNanos;
+
+	public FaultInjector(ServerServiceImpl service) {
+		this.service = service;
+		this.randomGenerator = new SecureRandom();
+		this.staleBalances = new ConcurrentHashMap<>();
+		this.staleListSizes = new ConcurrentHashMap<>();
+		this.fault = ReplicaFault.NONE;
+		this.delayNanos = 0;
+	}
+
+	public ReplicaFault getFault() {
+		return fault;
+	}
+
+	public synchronized void setFault(ReplicaFault fault) {
+		// A replica serving stale reads keeps what it has from the moment the fault starts
+		staleBalances.clear();
+		staleListSizes.clear();
+		this.fault = fault;
+	}
+
+	// How long a SLOW replica waits before starting each request
+	public void setDelay(long delay, TimeUnit unit) {
+		this.delayNanos = unit.toNanos(delay);
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		return switch (fault) {
+			case NONE -> next.startCall(call, headers);
+			case SLOW -> delayed(next.startCall(call, headers), delayNanos);
+			case CRASHED -> {
+				call.close(Status.UNAVAILABLE.withDescription(CRASHED_DESC), new Metadata());
+				yield new ServerCall.Listener<>() {};
+			}
+			case STALE_TIMESTAMPS -> staleReads(call, headers, next);
+			case FORGED_SIGNATURES -> next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+				@Override
+				public void sendMessage(RespT message) {
+					super.sendMessage(forgeSignature(message));
+				}
+			}, headers);
+		};
+	}
+
+	// The request is only handled once it has been fully received, so holding that back delays the whole call
+	private static <ReqT> ServerCall.Listener<ReqT> delayed(ServerCall.Listener<ReqT> listener, long delay) {
+		return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+			@Override
+			public void onHalfClose() {
+				try {
+					TimeUnit.NANOSECONDS.sleep(delay);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onHalfClose();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T forgeSignature(T message) {
+		if (!(message instanceof Message response)) return message;
+		FieldDescriptor field = response.getDescriptorForType().findFieldByName(SIGNATURE_FIELD);
+		if (field == null || field.getType() != FieldDescriptor.Type.BYTES) return message;
+		byte[] forged = new byte[((ByteString) response.getField(field)).size()];
+		randomGenerator.nextBytes(forged);
+		return (T) response.toBuilder().setField(field, ByteString.copyFrom(forged)).build();
+	}
+
+	private <ReqT, RespT> ServerCall.Listener<ReqT> staleReads(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		// The response is signed over the request's nonce, so the request is kept to sign the stale one again
+		AtomicReference<ReqT> request = new AtomicReference<>();
+		ServerCall.Listener<ReqT> listener = next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+			@Override
+			public void sendMessage(RespT message) {
+				super.sendMessage(withStaleState(request.get(), message));
+			}
+		}, headers);
+		return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+			@Override
+			public void onMessage(ReqT message) {
+				request.set(message);
+				super.onMessage(message);
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T withStaleState(Object request, T response) {
+		try {
+			if (request instanceof SignedReadForWriteRequest readRequest && response instanceof SignedReadForWriteResponse readResponse)
+				return (T) staleReadForWrite(readRequest, readResponse);
+			if (request instanceof SignedCheckAccountRequest checkRequest && response instanceof SignedCheckAccountResponse checkResponse)
+				return (T) staleCheckAccount(checkRequest, checkResponse);
+		}
+		catch (CypherFailedException | AccountDoesNotHaveSessionException | SessionEstablishmentFailedException e) {
+			// Unable to sign the stale response, so the honest one is sent instead
+		}
+		return response;
+	}
+
+	private SignedReadForWriteResponse staleReadForWrite(SignedReadForWriteRequest request, SignedReadForWriteResponse signedResponse)
+			throws CypherFailedException, AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		ReadForWriteRequest content = request.getContent();
+		ReadForWriteResponse response = signedResponse.getContent();
+		ByteString publicKeyBS = (content.getIsSender()) ? content.getSenderKey() : content.getReceiverKey();
+		BalanceRecord balance = staleBalance(publicKeyBS, response.getBalance(), response.getBalanceSignature());
+		ListSizesRecord senderListSizes = staleListSizes(content.getSenderKey(), response.getSenderListSizes(),
+				response.getSenderListSizesSignature(), response.getSenderListSizesSigner());
+		ListSizesRecord receiverListSizes = staleListSizes(content.getReceiverKey(), response.getReceiverListSizes(),
+				response.getReceiverListSizesSignature(), response.getReceiverListSizesSigner());
+		ReadForWriteResponse.Builder builder = response.toBuilder();
+		builder.setBalance(balance.getBalance());
+		builder.setBalanceSignature(balance.getSignature());
+		builder.setSenderListSizes(senderListSizes.getListSizes());
+		builder.setSenderListSizesSignature(senderListSizes.getSignature());
+		builder.setSenderListSizesSigner(senderListSizes.getSignerPublicKeyBS());
+		builder.setReceiverListSizes(receiverListSizes.getListSizes());
+		builder.setReceiverListSizesSignature(receiverListSizes.getSignature());
+		builder.setReceiverListSizesSigner(receiverListSizes.getSignerPublicKeyBS());
+		for (int i = 0; i < response.getBatchListSizesCount(); i++) {
+			ListSizesRecord record = staleListSizes(content.getBatchAccountKeys(i), response.getBatchListSizes(i),
+					response.getBatchListSizesSignatures(i), response.getBatchListSizesSigners(i));
+			builder.setBatchListSizes(i, record.getListSizes());
+			builder.setBatchListSizesSignatures(i, record.getSignature());
+			builder.setBatchListSizesSigners(i, record.getSignerPublicKeyBS());
+		}
+		ReadForWriteResponse staleResponse = builder.build();
+		byte[] signature = service.signResponse(publicKeyBS, request.getSessionCounter(),
+				content.getCypheredNonce().toByteArray(), staleResponse.toByteArray());
+		return signedResponse.toBuilder().setContent(staleResponse).setSignature(ByteString.copyFrom(signature)).build();
+	}
+
+	private SignedCheckAccountResponse staleCheckAccount(SignedCheckAccountRequest request, SignedCheckAccountResponse signedResponse)
+			throws CypherFailedException, AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		CheckAccountRequest content = request.getContent();
+		CheckAccountResponse response = signedResponse.getContent();
+		ByteString publicKeyBS = content.getPublicKey();
+		BalanceRecord balance = staleBalance(publicKeyBS, response.getBalance(), response.getBalanceSignature());
+		ListSizesRecord listSizes = staleListSizes(publicKeyBS, response.getListSizes(), response.getListSizesSignature(),
+				response.getListSizesSigner());
+		CheckAccountResponse.Builder builder = response.toBuilder();
+		builder.setBalance(balance.getBalance());
+		builder.setBalanceSignature(balance.getSignature());
+		builder.setListSizes(listSizes.getListSizes());
+		builder.setListSizesSignature(listSizes.getSignature());
+		builder.setListSizesSigner(listSizes.getSignerPublicKeyBS());
+		CheckAccountResponse staleResponse = builder.build();
+		byte[] signature = service.signResponse(publicKeyBS, request.getSessionCounter(),
+				content.getCypheredNonce().toByteArray(), staleResponse.toByteArray());
+		return signedResponse.toBuilder().setContent(staleResponse).setSignature(ByteString.copyFrom(signature)).build();
+	}
+
+	private BalanceRecord staleBalance(ByteString publicKeyBS, Balance balance, ByteString signature) {
+		return staleBalances.computeIfAbsent(publicKeyBS, k -> new BalanceRecord(balance, signature));
+	}
+
+	private ListSizesRecord staleListSizes(ByteString publicKeyBS, ListSizes listSizes, ByteString signature, ByteString signer) {
+		return staleListSizes.computeIfAbsent(publicKeyBS, k -> new ListSizesRecord(listSizes, signature, signer));
+	}
+}
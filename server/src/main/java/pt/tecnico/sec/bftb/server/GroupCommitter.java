@@ -0,0 +1,168 @@
+package pt.tecnico.sec.bftb.server;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitter implements AutoCloseable {
+	private static final long MAX_BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final int MAX_BATCH_SIZE = 128;
+	private final ConnectionPool pool;
+	private final Thread writerThread;
+	private List<PendingCommit> pendingCommits;
+	private boolean batchOpen; // Only accessed while holding the writer connection
+	private boolean running;
+
+	public GroupCommitter(ConnectionPool pool) {
+		this.pool = pool;
+		this.pendingCommits = new ArrayList<>();
+		this.batchOpen = false;
+		this.running = true;
+		this.writerThread = new Thread(this::run, "group-commit-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	// Must be called while holding the writer connection, opens the shared transaction if there is none
+	void joinBatch(PooledConnection writer) throws SQLException {
+		if (!batchOpen) {
+			execute(writer, "BEGIN IMMEDIATE");
+			batchOpen = true;
+		}
+	}
+
+	// Must be called while holding the writer connection, after a unit of work gave up on the batch without enqueueing
+	// a commit. If no other unit of work is waiting on the shared transaction, it is ended right away, so the write
+	// lock isn't kept with nothing left for the writer thread to commit
+	void leaveBatch(PooledConnection writer) {
+		synchronized (this) {
+			if (!batchOpen || !pendingCommits.isEmpty()) return;
+		}
+		// Every unit of work that released its savepoint was already committed, so there is nothing to keep
+		rollbackBatch(writer);
+	}
+
+	// Must be called while holding the writer connection, after the unit of work has released its savepoint.
+	// Either onCommit or onRollback runs while still holding the writer connection, once the batch is committed or
+	// fails to, in the order the units of work were enqueued and before any of them is told
+	CompletableFuture<Void> enqueueCommit(Runnable onCommit, Runnable onRollback) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (this) {
+			pendingCommits.add(new PendingCommit(future, onCommit, onRollback));
+			if (pendingCommits.size() >= MAX_BATCH_SIZE || pendingCommits.size() == 1) notifyAll();
+		}
+		return future;
+	}
+
+	static void awaitCommit(CompletableFuture<Void> future) throws SQLException {
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for group commit", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException sqle) throw sqle;
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	private void run() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (running && pendingCommits.isEmpty()) wait();
+					if (!running && pendingCommits.isEmpty()) return;
+					// Give concurrent units of work a short window to join the batch
+					long deadline = System.nanoTime() + MAX_BATCH_DELAY_NANOS;
+					long remaining;
+					while (running && pendingCommits.size() < MAX_BATCH_SIZE
+							&& (remaining = deadline - System.nanoTime()) > 0) {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			commitBatch();
+		}
+	}
+
+	private void commitBatch() {
+		List<PendingCommit> batch;
+		try (PooledConnection writer = pool.getWriter()) {
+			synchronized (this) {
+				batch = pendingCommits;
+				pendingCommits = new ArrayList<>();
+			}
+			if (batch.isEmpty()) return;
+			try {
+				execute(writer, "COMMIT");
+				batchOpen = false;
+				batch.forEach(pending -> pending.onCommit.run());
+				batch.forEach(pending -> pending.future.complete(null));
+			}
+			catch (SQLException e) {
+				rollbackBatch(writer);
+				batch.forEach(pending -> pending.onRollback.run());
+				batch.forEach(pending -> pending.future.completeExceptionally(e));
+			}
+		}
+	}
+
+	private void rollbackBatch(PooledConnection writer) {
+		try {
+			execute(writer, "ROLLBACK");
+		}
+		catch (SQLException e) {
+			// The transaction might have already been rolled back by SQLite itself
+		}
+		batchOpen = false;
+	}
+
+	private static void execute(PooledConnection conn, String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	// Commits whatever is still pending and stops the writer thread
+	@Override
+	public void close() throws SQLException {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try (PooledConnection writer = pool.getWriter()) {
+			if (batchOpen) {
+				execute(writer, "COMMIT");
+				batchOpen = false;
+			}
+		}
+	}
+
+	private static class PendingCommit {
+		private final CompletableFuture<Void> future;
+		private final Runnable onCommit;
+		private final Runnable onRollback;
+
+		private PendingCommit(CompletableFuture<Void> future, Runnable onCommit, Runnable onRollback) {
+			this.future = future;
+			this.onCommit = onCommit;
+			this.onRollback = onRollback;
+		}
+	}
+}
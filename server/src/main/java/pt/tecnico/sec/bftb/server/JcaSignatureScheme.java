@@ -0,0 +1,87 @@
+package pt.tecnico.sec.bftb.server;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+// Signatures produced by a java.security.Signature engine, such as Ed25519 or ECDSA
+public class JcaSignatureScheme implements SignatureScheme {
+	private final String algorithm;
+	private final ThreadLocal<ThreadSignatures> threadSignatures;
+
+	public JcaSignatureScheme(String algorithm) {
+		this.algorithm = algorithm;
+		this.threadSignatures = ThreadLocal.withInitial(ThreadSignatures::new);
+	}
+
+	@Override
+	public byte[] sign(PrivateKey privateKey, byte[] prefix, byte[] content) throws GeneralSecurityException {
+		ThreadSignatures signatures = threadSignatures.get();
+		Signature signer = signatures.signer(privateKey);
+		try {
+			signer.update(prefix);
+			signer.update(content);
+			return signer.sign();
+		}
+		catch (GeneralSecurityException e) {
+			signatures.signerKey = null;
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean verify(PublicKey publicKey, byte[] signature, byte[] prefix, byte[] content)
+			throws GeneralSecurityException {
+		ThreadSignatures signatures = threadSignatures.get();
+		Signature verifier = signatures.verifier(publicKey);
+		try {
+			verifier.update(prefix);
+			verifier.update(content);
+			return verifier.verify(signature);
+		}
+		catch (GeneralSecurityException e) {
+			// Don't trust the engine's state after a failure, it will be re-initialized on the next use
+			signatures.verifierKey = null;
+			throw e;
+		}
+	}
+
+	@Override
+	public byte[] sealNonce(PublicKey peerPublicKey, byte[] nonce) {
+		return nonce;
+	}
+
+	@Override
+	public byte[] openNonce(PrivateKey privateKey, byte[] sealedNonce) {
+		return sealedNonce;
+	}
+
+	// Each thread keeps its own engines, which are only re-initialized when the key changes
+	private class ThreadSignatures {
+		private Signature signer;
+		private PrivateKey signerKey;
+		private Signature verifier;
+		private PublicKey verifierKey;
+
+		private Signature signer(PrivateKey privateKey) throws GeneralSecurityException {
+			if (signer == null) signer = Signature.getInstance(algorithm);
+			if (signerKey != privateKey) {
+				signerKey = null;
+				signer.initSign(privateKey);
+				signerKey = privateKey;
+			}
+			return signer;
+		}
+
+		private Signature verifier(PublicKey publicKey) throws GeneralSecurityException {
+			if (verifier == null) verifier = Signature.getInstance(algorithm);
+			if (verifierKey != publicKey) {
+				verifierKey = null;
+				verifier.initVerify(publicKey);
+				verifierKey = publicKey;
+			}
+			return verifier;
+		}
+	}
+}
@@ -5,27 +5,35 @@ import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Base64;
 
 public class ListSizesRecord {
 	private final ListSizes listSizes;
 	private final ByteString signature;
 	private final ByteString signerPublicKeyBS;
+	private final ByteString approvedHeadSignature;
 
 	public ListSizesRecord(ListSizes receiverListSizes, ByteString signature, ByteString signerPublicKey) {
+		this(receiverListSizes, signature, signerPublicKey, ByteString.EMPTY);
+	}
+
+	public ListSizesRecord(ListSizes receiverListSizes, ByteString signature, ByteString signerPublicKey,
+			ByteString approvedHeadSignature) {
 		this.listSizes = receiverListSizes;
 		this.signature = signature;
 		this.signerPublicKeyBS = signerPublicKey;
+		this.approvedHeadSignature = approvedHeadSignature;
 	}
 
 	public ListSizesRecord(ResultSet rs) throws SQLException {
 		ListSizes.Builder builder = ListSizes.newBuilder();
 		builder.setPendingSize(rs.getInt("pending_size"));
 		builder.setApprovedSize(rs.getInt("approved_size"));
+		builder.setApprovedHead(ByteString.copyFrom(rs.getBytes("approved_head")));
 		builder.setWts(rs.getInt("sizes_wts"));
 		this.listSizes = builder.build();
-		this.signature = ByteString.copyFrom(Base64.getDecoder().decode(rs.getString("sizes_signature")));
-		this.signerPublicKeyBS = ByteString.copyFrom(Base64.getDecoder().decode(rs.getString("sizes_signer_pubkey")));
+		this.signature = ByteString.copyFrom(rs.getBytes("sizes_signature"));
+		this.signerPublicKeyBS = ByteString.copyFrom(rs.getBytes("sizes_signer_pubkey"));
+		this.approvedHeadSignature = ByteString.copyFrom(rs.getBytes("approved_head_signature"));
 	}
 
 	public ListSizes getListSizes() {
@@ -39,4 +47,9 @@ public class ListSizesRecord {
 	public ByteString getSignerPublicKeyBS() {
 		return signerPublicKeyBS;
 	}
+
+	// Signature of the account's owner over the approved head, empty if someone else approved transfers since
+	public ByteString getApprovedHeadSignature() {
+		return approvedHeadSignature;
+	}
 }
@@ -0,0 +1,179 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+// Keeps track of how loaded the replica is, and of how often each key is asking for work, to pick how hard the next
+// puzzle of a key should be. An idle replica hands out puzzles that cost almost nothing, a saturated one makes every
+// client pay more, and a key sending requests faster than its fair share pays more still.
+// The clock can be replaced so a recorded or synthetic load trace can be replayed through requestStarted,
+// requestFinished and searchRangeFor without waiting for it in real time
+public class LoadMonitor implements ServerInterceptor {
+	private static final int MIN_DIFFICULTY_BITS = 10;
+	private static final int MAX_DIFFICULTY_BITS = 24;
+	// Extra bits between an idle and a saturated replica, and for each doubling of the load beyond that
+	private static final double LOAD_BITS = 8;
+	private static final double OVERLOAD_BITS_PER_DOUBLING = 2;
+	// Extra bits for each doubling of a key's request rate beyond its fair share
+	private static final double KEY_RATE_BITS_PER_DOUBLING = 2;
+	private static final double FAIR_KEY_RATE = 10; // Requests per second
+	private static final long RATE_TIME_CONSTANT_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int MAX_TRACKED_KEYS = 16384;
+	private static final double FORGOTTEN_KEY_RATE = 0.01;
+	private final int capacity;
+	private final LongSupplier clock;
+	private final AtomicInteger inFlight;
+	private final List<IntSupplier> queues;
+	private final Map<ByteString, KeyRate> keyRates;
+
+	public LoadMonitor(int capacity) {
+		this(capacity, System::nanoTime);
+	}
+
+	public LoadMonitor(int capacity, LongSupplier clock) {
+		this.capacity = capacity;
+		this.clock = clock;
+		this.inFlight = new AtomicInteger(0);
+		this.queues = new CopyOnWriteArrayList<>();
+		this.keyRates = new ConcurrentHashMap<>();
+	}
+
+	// Anything requests wait in before being served, e.g. the account locks
+	public void addQueue(IntSupplier queueDepth) {
+		queues.add(queueDepth);
+	}
+
+	public void requestStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	public void requestFinished() {
+		inFlight.decrementAndGet();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (IntSupplier queue : queues) depth += queue.getAsInt();
+		return depth;
+	}
+
+	// 0 when idle, 1 when there are as many requests in the replica as it is meant to handle, more when overloaded
+	public double getLoad() {
+		return (getInFlight() + getQueueDepth()) / (double) capacity;
+	}
+
+	// Requests per second the key has been making lately
+	public double getKeyRate(ByteString publicKeyBS) {
+		KeyRate keyRate = keyRates.get(publicKeyBS);
+		return (keyRate != null) ? keyRate.get(clock.getAsLong()) : 0;
+	}
+
+	// Counts a request of the key and returns the range the solution of its next puzzle is drawn from
+	public long searchRangeFor(ByteString publicKeyBS) {
+		long now = clock.getAsLong();
+		if (keyRates.size() >= MAX_TRACKED_KEYS) forgetIdleKeys(now);
+		double keyRate = keyRates.computeIfAbsent(publicKeyBS, k -> new KeyRate(now)).record(now);
+		return searchRange(getLoad(), keyRate);
+	}
+
+	static long searchRange(double load, double keyRate) {
+		double bits = MIN_DIFFICULTY_BITS + LOAD_BITS * Math.min(load, 1);
+		if (load > 1) bits += OVERLOAD_BITS_PER_DOUBLING * log2(load);
+		if (keyRate > FAIR_KEY_RATE) bits += KEY_RATE_BITS_PER_DOUBLING * log2(keyRate / FAIR_KEY_RATE);
+		return Math.round(Math.pow(2, Math.min(bits, MAX_DIFFICULTY_BITS)));
+	}
+
+	private static double log2(double value) {
+		return Math.log(value) / Math.log(2);
+	}
+
+	private void forgetIdleKeys(long now) {
+		keyRates.values().removeIf(keyRate -> keyRate.get(now) < FORGOTTEN_KEY_RATE);
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		requestStarted();
+		ServerCall.Listener<ReqT> listener;
+		try {
+			listener = next.startCall(call, headers);
+		}
+		catch (RuntimeException e) {
+			requestFinished();
+			throw e;
+		}
+		return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+			private final AtomicBoolean finished = new AtomicBoolean(false);
+
+			@Override
+			public void onComplete() {
+				try {
+					super.onComplete();
+				}
+				finally {
+					finish();
+				}
+			}
+
+			@Override
+			public void onCancel() {
+				try {
+					super.onCancel();
+				}
+				finally {
+					finish();
+				}
+			}
+
+			// A call ends with either onComplete or onCancel, this only makes sure it is never counted twice
+			private void finish() {
+				if (finished.compareAndSet(false, true)) requestFinished();
+			}
+		};
+	}
+
+	// Exponentially weighted request rate, which decays while the key is quiet
+	private static class KeyRate {
+		private double rate;
+		private long lastUpdate;
+
+		private KeyRate(long now) {
+			this.rate = 0;
+			this.lastUpdate = now;
+		}
+
+		private double decayed(long now) {
+			long elapsed = Math.max(now - lastUpdate, 0);
+			return rate * Math.exp(-elapsed / (double) RATE_TIME_CONSTANT_NANOS);
+		}
+
+		private synchronized double get(long now) {
+			return decayed(now);
+		}
+
+		private synchronized double record(long now) {
+			rate = decayed(now) + TimeUnit.SECONDS.toNanos(1) / (double) RATE_TIME_CONSTANT_NANOS;
+			lastUpdate = Math.max(now, lastUpdate);
+			return rate;
+		}
+	}
+}
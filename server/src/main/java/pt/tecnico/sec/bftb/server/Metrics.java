@@ -0,0 +1,151 @@
+package pt.tecnico.sec.bftb.server;
+
+import pt.tecnico.sec.bftb.grpc.Server.CounterMetric;
+import pt.tecnico.sec.bftb.grpc.Server.GetMetricsResponse;
+import pt.tecnico.sec.bftb.grpc.Server.LatencyMetric;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms and counters of a replica, by name. Names are prefixed with what they measure: rpc. for the
+// calls of the service, db. for the database, crypto. for signatures and nonce ciphers
+public class Metrics {
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private final Map<String, LatencyHistogram> histograms;
+	private final Map<String, LongAdder> counters;
+	private ScheduledExecutorService dumper;
+
+	public Metrics() {
+		this.histograms = new ConcurrentHashMap<>();
+		this.counters = new ConcurrentHashMap<>();
+	}
+
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+	}
+
+	public void record(String name, long nanos) {
+		histogram(name).record(nanos);
+	}
+
+	public void increment(String name) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+	}
+
+	@FunctionalInterface
+	public interface TimedCall<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	@FunctionalInterface
+	public interface TimedRun<E extends Exception> {
+		void run() throws E;
+	}
+
+	// Records how long the call takes, whether it returns or throws
+	public <T, E extends Exception> T timed(String name, TimedCall<T, E> call) throws E {
+		long start = System.nanoTime();
+		try {
+			return call.call();
+		}
+		finally {
+			record(name, System.nanoTime() - start);
+		}
+	}
+
+	public <E extends Exception> void timed(String name, TimedRun<E> run) throws E {
+		long start = System.nanoTime();
+		try {
+			run.run();
+		}
+		finally {
+			record(name, System.nanoTime() - start);
+		}
+	}
+
+	public GetMetricsResponse toResponse(int replicaID) {
+		GetMetricsResponse.Builder builder = GetMetricsResponse.newBuilder();
+		builder.setReplicaId(replicaID);
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			LatencyMetric.Builder metric = LatencyMetric.newBuilder();
+			metric.setName(entry.getKey());
+			metric.setCount(histogram.getCount());
+			metric.setSumNanos(histogram.getSum());
+			metric.setMaxNanos(histogram.getMax());
+			for (double percentile : PERCENTILES) {
+				metric.addPercentiles(percentile);
+				metric.addPercentileNanos(histogram.getPercentile(percentile));
+			}
+			builder.addLatencies(metric.build());
+		}
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			builder.addCounters(CounterMetric.newBuilder().setName(entry.getKey()).setValue(entry.getValue().sum()).build());
+		}
+		return builder.build();
+	}
+
+	public String toText() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%-48s %10s %12s", "latency (us)", "count", "mean"));
+		for (double percentile : PERCENTILES) builder.append(String.format(" %10s", "p" + percentile));
+		builder.append(String.format(" %10s%n", "max"));
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			long count = histogram.getCount();
+			builder.append(String.format("%-48s %10d %12.1f", entry.getKey(), count,
+					(count > 0) ? histogram.getSum() / (double) count / 1000 : 0));
+			for (double percentile : PERCENTILES) {
+				builder.append(String.format(" %10.1f", histogram.getPercentile(percentile) / 1000.0));
+			}
+			builder.append(String.format(" %10.1f%n", histogram.getMax() / 1000.0));
+		}
+		builder.append(String.format("%n%-48s %10s%n", "counter", "value"));
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			builder.append(String.format("%-48s %10d%n", entry.getKey(), entry.getValue().sum()));
+		}
+		return builder.toString();
+	}
+
+	// Rewrites the file with the current metrics every period, through a temporary file so it is never read half written
+	public synchronized void startDumping(Path path, long period, TimeUnit unit) {
+		if (dumper != null) return;
+		dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-dumper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try {
+				dump(path);
+			}
+			catch (IOException e) {
+				System.err.println("Unable to dump metrics: " + e.getMessage());
+			}
+		}, period, period, unit);
+	}
+
+	public synchronized void stopDumping() {
+		if (dumper == null) return;
+		dumper.shutdownNow();
+		dumper = null;
+	}
+
+	public void dump(Path path) throws IOException {
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tempPath)) {
+			writer.write(toText());
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
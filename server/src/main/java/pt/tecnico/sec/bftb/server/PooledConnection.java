@@ -0,0 +1,56 @@
+package pt.tecnico.sec.bftb.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class PooledConnection implements AutoCloseable {
+	private final Connection connection;
+	private final Map<String, PreparedStatement> statements;
+	private final Consumer<PooledConnection> releaser;
+
+	PooledConnection(Connection connection, Consumer<PooledConnection> releaser) {
+		this.connection = connection;
+		this.statements = new HashMap<>();
+		this.releaser = releaser;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	// Statements are owned by the connection and reused across borrowings, callers must not close them
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt == null) {
+			stmt = connection.prepareStatement(sql);
+			statements.put(sql, stmt);
+		}
+		else {
+			stmt.clearParameters();
+		}
+		return stmt;
+	}
+
+	public Statement createStatement() throws SQLException {
+		return connection.createStatement();
+	}
+
+	// Returns the connection to its pool instead of closing it
+	@Override
+	public void close() {
+		releaser.accept(this);
+	}
+
+	void closeConnection() throws SQLException {
+		for (PreparedStatement stmt : statements.values()) {
+			stmt.close();
+		}
+		statements.clear();
+		connection.close();
+	}
+}
@@ -0,0 +1,77 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PublicKeyCache {
+	// Tried in order, the first factory that accepts the encoding gives the key's type
+	private static final String[] KEY_ALGORITHMS = {"RSA", "Ed25519", "EC"};
+	private final int capacity;
+	private final Map<ByteString, PublicKey> keys;
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	public PublicKeyCache(int capacity) {
+		this.capacity = capacity;
+		this.keys = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	public PublicKey get(ByteString encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		PublicKey publicKey = keys.get(encodedKey);
+		if (publicKey != null) {
+			hits.increment();
+			return publicKey;
+		}
+		misses.increment();
+		publicKey = decode(encodedKey.toByteArray());
+		// Decoded keys are immutable, so two threads decoding the same key at once is harmless
+		if (keys.size() >= capacity) evictOne();
+		keys.put(encodedKey, publicKey);
+		return publicKey;
+	}
+
+	private static PublicKey decode(byte[] encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encodedKey);
+		InvalidKeySpecException lastException = null;
+		for (String algorithm : KEY_ALGORITHMS) {
+			try {
+				return KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+			}
+			catch (InvalidKeySpecException e) {
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	private void evictOne() {
+		Iterator<ByteString> iterator = keys.keySet().iterator();
+		if (iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		return keys.size();
+	}
+}
@@ -0,0 +1,209 @@
+package pt.tecnico.sec.bftb.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import pt.tecnico.sec.bftb.server.exceptions.ServerInitializationFailedException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// All of the 3f + 1 replicas in this JVM, each with a key pair generated on start and its own database in a temporary
+// directory, so runs don't depend on cert_gen.sh or on what earlier runs left behind. They are reached through gRPC's
+// in-process transport, or through loopback ports to include the network stack. Every replica can be made to misbehave
+// by its FaultInjector, to see how the clients' quorums cope with slow, crashed or Byzantine replicas
+public class ReplicaCluster implements AutoCloseable {
+	private static final String KEY_ALGORITHM = "RSA";
+	private static final int KEY_SIZE = 2048;
+	private static final String LOOPBACK_HOST = "localhost";
+	private static final String REPLICA_NAME = "bftb-cluster-%d-replica-%d";
+	private static final String DIRECTORY_PREFIX = "bftb-cluster-";
+	private static final String DATABASE_FILENAME = "database_%d.sqlite";
+	private static final String METRICS_FILENAME = "metrics_%d.txt";
+	private static final long SHUTDOWN_TIMEOUT = 5; // Seconds
+	private static final AtomicInteger NEXT_CLUSTER_ID = new AtomicInteger(0);
+	private final int clusterID;
+	private final int faultsToTolerate;
+	private final int numberOfReplicas;
+	private final boolean inProcess;
+	private final int basePort;
+	private final Path directory;
+	private final Map<Integer, PublicKey> publicKeys;
+	private final List<Server> replicas;
+	private final List<ServerServiceImpl> services;
+	private final List<FaultInjector> faultInjectors;
+	private final List<io.grpc.Server> endpoints;
+	private final List<ManagedChannel> channels;
+
+	private ReplicaCluster(int faultsToTolerate, boolean inProcess, int basePort) throws ServerInitializationFailedException {
+		this.clusterID = NEXT_CLUSTER_ID.getAndIncrement();
+		this.faultsToTolerate = faultsToTolerate;
+		this.numberOfReplicas = (3 * faultsToTolerate) + 1;
+		this.inProcess = inProcess;
+		this.basePort = basePort;
+		this.publicKeys = new HashMap<>();
+		this.replicas = new ArrayList<>();
+		this.services = new ArrayList<>();
+		this.faultInjectors = new ArrayList<>();
+		this.endpoints = new ArrayList<>();
+		this.channels = new CopyOnWriteArrayList<>();
+		try {
+			this.directory = Files.createTempDirectory(DIRECTORY_PREFIX);
+		}
+		catch (IOException e) {
+			throw new ServerInitializationFailedException(e);
+		}
+	}
+
+	public static ReplicaCluster inProcess(int faultsToTolerate, DurabilityMode durabilityMode)
+			throws ServerInitializationFailedException {
+		ReplicaCluster cluster = new ReplicaCluster(faultsToTolerate, true, 0);
+		cluster.start(durabilityMode);
+		return cluster;
+	}
+
+	// Replica n listens on basePort + n, as the replicas started by ServerMain do
+	public static ReplicaCluster onLoopback(int faultsToTolerate, int basePort, DurabilityMode durabilityMode)
+			throws ServerInitializationFailedException {
+		ReplicaCluster cluster = new ReplicaCluster(faultsToTolerate, false, basePort);
+		cluster.start(durabilityMode);
+		return cluster;
+	}
+
+	private void start(DurabilityMode durabilityMode) throws ServerInitializationFailedException {
+		try {
+			KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+			keyPairGenerator.initialize(KEY_SIZE);
+			for (int i = 0; i < numberOfReplicas; i++) {
+				KeyPair keyPair = keyPairGenerator.generateKeyPair();
+				publicKeys.put(i, keyPair.getPublic());
+				Server replica = new Server(i, durabilityMode, keyPair.getPrivate(),
+						directory.resolve(String.format(DATABASE_FILENAME, i)).toString(),
+						directory.resolve(String.format(METRICS_FILENAME, i)));
+				replicas.add(replica);
+				ServerServiceImpl service = new ServerServiceImpl(replica);
+				services.add(service);
+				FaultInjector faultInjector = new FaultInjector(service);
+				faultInjectors.add(faultInjector);
+				// Faults are outermost, so calls to a crashed replica don't reach it at all, as if it were down
+				ServerServiceDefinition definition = ServerInterceptors.intercept(service, service.getLoadMonitor(),
+						new RpcMetrics(service.getMetrics()), faultInjector);
+				ServerBuilder<?> builder = (inProcess) ? InProcessServerBuilder.forName(getReplicaName(i))
+						: ServerBuilder.forPort(basePort + i);
+				endpoints.add(builder.addService(definition).build().start());
+			}
+		}
+		catch (NoSuchAlgorithmException | IOException e) {
+			close();
+			throw new ServerInitializationFailedException(e);
+		}
+		catch (ServerInitializationFailedException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private String getReplicaName(int replicaID) {
+		return String.format(REPLICA_NAME, clusterID, replicaID);
+	}
+
+	public int getFaultsToTolerate() {
+		return faultsToTolerate;
+	}
+
+	public int getNumberOfReplicas() {
+		return numberOfReplicas;
+	}
+
+	public PublicKey getPublicKey(int replicaID) {
+		return publicKeys.get(replicaID);
+	}
+
+	// Clients of the cluster must know these instead of the keys in the certificates
+	public Map<Integer, PublicKey> getPublicKeys() {
+		return Collections.unmodifiableMap(publicKeys);
+	}
+
+	// Shut down along with the cluster
+	public ManagedChannel newChannel(int replicaID) {
+		ManagedChannel channel = (inProcess) ? InProcessChannelBuilder.forName(getReplicaName(replicaID)).build()
+				: ManagedChannelBuilder.forAddress(LOOPBACK_HOST, basePort + replicaID).usePlaintext().build();
+		channels.add(channel);
+		return channel;
+	}
+
+	public ServerServiceImpl getReplica(int replicaID) {
+		return services.get(replicaID);
+	}
+
+	public ReplicaFault getFault(int replicaID) {
+		return faultInjectors.get(replicaID).getFault();
+	}
+
+	public void setFault(int replicaID, ReplicaFault fault) {
+		faultInjectors.get(replicaID).setFault(fault);
+	}
+
+	// Makes the replica SLOW, taking the given time to start each request
+	public void setDelay(int replicaID, long delay, TimeUnit unit) {
+		faultInjectors.get(replicaID).setDelay(delay, unit);
+		faultInjectors.get(replicaID).setFault(ReplicaFault.SLOW);
+	}
+
+	public void clearFaults() {
+		for (FaultInjector faultInjector : faultInjectors) faultInjector.setFault(ReplicaFault.NONE);
+	}
+
+	@Override
+	public void close() {
+		for (ManagedChannel channel : channels) channel.shutdownNow();
+		channels.clear();
+		for (io.grpc.Server endpoint : endpoints) endpoint.shutdownNow();
+		try {
+			for (io.grpc.Server endpoint : endpoints) endpoint.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Server replica : replicas) {
+			try {
+				replica.close();
+			}
+			catch (SQLException e) {
+				System.err.println("Unable to close the database of replica " + replica.replicaID + ": " + e.getMessage());
+			}
+		}
+		endpoints.clear();
+		replicas.clear();
+		deleteDirectory();
+	}
+
+	private void deleteDirectory() {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to delete " + directory + ": " + e.getMessage());
+		}
+	}
+}
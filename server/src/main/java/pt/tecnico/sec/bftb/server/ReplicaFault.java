@@ -0,0 +1,18 @@
+package pt.tecnico.sec.bftb.server;
+
+public enum ReplicaFault {
+	// Behaves as it should
+	NONE,
+	// Only starts each request after a delay, as if it were overloaded or far away
+	SLOW,
+	// Fails every request as if it could not be reached
+	CRASHED,
+	// Keeps answering reads with the balances and list sizes it had when the fault started, correctly signed
+	STALE_TIMESTAMPS,
+	// Answers correctly, but with its signatures replaced by random bytes
+	FORGED_SIGNATURES;
+
+	public static ReplicaFault fromString(String name) {
+		return ReplicaFault.valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -24,17 +24,24 @@ public class Resources {
 	private static final String CERTIFICATE_FILENAME = "cert_%d.pem";
 	private static final String DATABASE_PATH = "database";
 	private static final String DATABASE_FILENAME = "database_%d.sqlite";
+	private static final String METRICS_PATH = "metrics";
+	private static final String METRICS_FILENAME = "metrics_%d.txt";
 
 	private Resources() { /* empty */ }
 
 	public static void init() throws DirectoryCreationFailedException {
 		createResourceDirectory(DATABASE_PATH);
+		createResourceDirectory(METRICS_PATH);
 	}
 
 	public static String getAbsoluteDatabasePath(int n) throws URISyntaxException {
 		return Path.of(getAbsolutePathOfResource(DATABASE_PATH), String.format(DATABASE_FILENAME, n)).toString();
 	}
 
+	public static String getAbsoluteMetricsPath(int n) throws URISyntaxException {
+		return Path.of(getAbsolutePathOfResource(METRICS_PATH), String.format(METRICS_FILENAME, n)).toString();
+	}
+
 	private static String getAbsolutePathOfResource(String path) throws URISyntaxException {
 		String pathString = Path.of(path).toString();
 		URL pathURL = Resources.class.getClassLoader().getResource(pathString);
@@ -0,0 +1,34 @@
+package pt.tecnico.sec.bftb.server;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+// Times every call from the moment it reaches the replica until its status is sent, and counts the calls that end with
+// each status, both overall and per method
+public class RpcMetrics implements ServerInterceptor {
+	private final Metrics metrics;
+
+	public RpcMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		String method = call.getMethodDescriptor().getBareMethodName();
+		long start = System.nanoTime();
+		return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+			@Override
+			public void close(Status status, Metadata trailers) {
+				metrics.record("rpc." + method, System.nanoTime() - start);
+				metrics.increment("rpc.status." + status.getCode());
+				metrics.increment("rpc." + method + ".status." + status.getCode());
+				super.close(status, trailers);
+			}
+		}, headers);
+	}
+}
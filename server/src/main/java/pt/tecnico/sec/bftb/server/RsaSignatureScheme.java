@@ -0,0 +1,79 @@
+package pt.tecnico.sec.bftb.server;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+// The original scheme: the SHA-256 hash of the content is encrypted with the signer's private RSA key
+public class RsaSignatureScheme implements SignatureScheme {
+	public static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final ThreadLocal<ThreadCrypto> THREAD_CRYPTO = ThreadLocal.withInitial(ThreadCrypto::new);
+
+	@Override
+	public byte[] sign(PrivateKey privateKey, byte[] prefix, byte[] content) throws GeneralSecurityException {
+		ThreadCrypto crypto = THREAD_CRYPTO.get();
+		byte[] hash = crypto.hash(prefix, content);
+		return crypto.doFinal(Cipher.ENCRYPT_MODE, privateKey, hash);
+	}
+
+	@Override
+	public boolean verify(PublicKey publicKey, byte[] signature, byte[] prefix, byte[] content)
+			throws GeneralSecurityException {
+		ThreadCrypto crypto = THREAD_CRYPTO.get();
+		byte[] expectedHash = crypto.hash(prefix, content);
+		byte[] receivedHash = crypto.doFinal(Cipher.DECRYPT_MODE, publicKey, signature);
+		return Arrays.equals(expectedHash, receivedHash);
+	}
+
+	@Override
+	public byte[] sealNonce(PublicKey peerPublicKey, byte[] nonce) throws GeneralSecurityException {
+		return THREAD_CRYPTO.get().doFinal(Cipher.ENCRYPT_MODE, peerPublicKey, nonce);
+	}
+
+	@Override
+	public byte[] openNonce(PrivateKey privateKey, byte[] sealedNonce) throws GeneralSecurityException {
+		return THREAD_CRYPTO.get().doFinal(Cipher.DECRYPT_MODE, privateKey, sealedNonce);
+	}
+
+	// Looking up JCA primitives is expensive, so each thread keeps its own instances. A cipher is kept per mode and
+	// key type, and is only re-initialized when the key changes
+	private static class ThreadCrypto {
+		private final Cipher[] ciphers = new Cipher[4];
+		private final Key[] cipherKeys = new Key[4];
+		private MessageDigest digest;
+
+		private byte[] doFinal(int mode, Key key, byte[] input) throws GeneralSecurityException {
+			int slot = ((mode == Cipher.ENCRYPT_MODE) ? 0 : 2) + ((key instanceof PrivateKey) ? 1 : 0);
+			if (ciphers[slot] == null) ciphers[slot] = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			Cipher cipher = ciphers[slot];
+			if (cipherKeys[slot] != key) {
+				cipherKeys[slot] = null;
+				cipher.init(mode, key);
+				cipherKeys[slot] = key;
+			}
+			try {
+				return cipher.doFinal(input);
+			}
+			catch (IllegalBlockSizeException | BadPaddingException e) {
+				// Don't trust the cipher's state after a failure, it will be re-initialized on the next use
+				cipherKeys[slot] = null;
+				throw e;
+			}
+		}
+
+		// Same as hashing the concatenation of prefix and content, without copying them into a new array first
+		private byte[] hash(byte[] prefix, byte[] content) throws GeneralSecurityException {
+			if (digest == null) digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			digest.reset();
+			digest.update(prefix);
+			return digest.digest(content);
+		}
+	}
+}
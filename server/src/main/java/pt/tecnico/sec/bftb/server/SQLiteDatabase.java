@@ -5,313 +5,820 @@ import pt.tecnico.sec.bftb.grpc.Server.Transfer;
 import pt.tecnico.sec.bftb.server.exceptions.TransferNotFoundException;
 
 import java.net.URISyntaxException;
-import java.sql.*;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SQLiteDatabase {
-	private final int replicaID;
+	private static final int NUMBER_OF_READERS = 4;
+	private static final int SCHEMA_VERSION = 8;
+	private static final int CACHED_ACCOUNTS = 4096;
+	// Each approved transfer takes 4 parameters, this keeps a statement well under SQLite's limit of 999
+	private static final int APPROVALS_PER_UPDATE = 150;
+	private static final String ACCOUNT_STATE_QUERY = "SELECT a.account_id, a.pubkey, a.balance, a.balance_wts, " +
+			"a.balance_signature, a.pending_size, a.approved_size, a.approved_head, a.sizes_wts, a.sizes_signature, " +
+			"a.approved_head_signature, s.pubkey AS sizes_signer_pubkey " +
+			"FROM accounts a JOIN accounts s ON s.account_id = a.sizes_signer_id";
+	// The approved list of an account after the given position, found through the list's primary key
+	private static final String APPROVED_TRANSFERS_QUERY = "SELECT t.timestamp, s.pubkey AS sender_pubkey, " +
+			"r.pubkey AS receiver_pubkey, t.amount, t.sender_signature, t.receiver_signature " +
+			"FROM approved_transfers a " +
+			"JOIN transfers t ON t.timestamp = a.timestamp AND t.sender_id = a.sender_id AND t.receiver_id = a.receiver_id " +
+			"JOIN accounts s ON s.account_id = t.sender_id " +
+			"JOIN accounts r ON r.account_id = t.receiver_id " +
+			"WHERE a.account_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+			"AND a.position > ? ";
+	private final ConnectionPool pool;
+	private final GroupCommitter groupCommitter;
+	private final AccountCache accountCache;
+	private final Metrics metrics;
 
 	public SQLiteDatabase(int replicaID) throws SQLException {
-		this.replicaID = replicaID;
+		this(replicaID, DurabilityMode.DEFAULT);
+	}
+
+	public SQLiteDatabase(int replicaID, DurabilityMode durabilityMode) throws SQLException {
+		this(replicaID, durabilityMode, new Metrics());
+	}
+
+	public SQLiteDatabase(int replicaID, DurabilityMode durabilityMode, Metrics metrics) throws SQLException {
+		this(getDatabasePath(replicaID), durabilityMode, metrics);
+	}
+
+	public SQLiteDatabase(String databasePath, DurabilityMode durabilityMode, Metrics metrics) throws SQLException {
+		this.metrics = metrics;
+		this.pool = new ConnectionPool(databasePath, NUMBER_OF_READERS, durabilityMode);
 		initializeDatabase();
+		this.groupCommitter = (durabilityMode == DurabilityMode.GROUP_COMMIT) ? new GroupCommitter(pool) : null;
+		this.accountCache = new AccountCache(CACHED_ACCOUNTS);
+		loadAccountCache();
+	}
+
+	private static String getDatabasePath(int replicaID) throws SQLException {
+		try {
+			return Resources.getAbsoluteDatabasePath(replicaID);
+		}
+		catch (URISyntaxException e) {
+			throw new SQLException("Unable to resolve database path", e);
+		}
+	}
+
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	public void close() throws SQLException {
+		if (groupCommitter != null) groupCommitter.close();
+		pool.close();
 	}
 
 	private void initializeDatabase() throws SQLException {
-		try (Connection conn = getConnection()) {
+		try (PooledConnection conn = pool.getWriter()) {
 			try (Statement stmt = conn.createStatement()) {
-				String sql1 = "CREATE TABLE IF NOT EXISTS accounts(" +
-						"pubkey TEXT PRIMARY KEY, " +
-						"balance INTEGER NOT NULL, " +
-						"balance_wts INTEGER NOT NULL," +
-						"balance_signature TEXT NOT NULL," +
-						"pending_size INTEGER NOT NULL," +
-						"approved_size INTEGER NOT NULL," +
-						"sizes_wts INTEGER NOT NULL," +
-						"sizes_signature TEXT NOT NULL," +
-						"sizes_signer_pubkey TEXT NOT NULL)";
-				String sql2 = "CREATE TABLE IF NOT EXISTS transfers(" +
-						"timestamp INTEGER NOT NULL, " +
-						"sender_pubkey TEXT NOT NULL, " +
-						"receiver_pubkey TEXT NOT NULL, " +
-						"amount INTEGER NOT NULL, " +
-						"sender_signature TEXT NOT NULL, " +
-						"receiver_signature TEXT, " +
-						"FOREIGN KEY (sender_pubkey) REFERENCES accounts(pubkey), " +
-						"FOREIGN KEY (receiver_pubkey) REFERENCES accounts(pubkey), " +
-						"CONSTRAINT pk PRIMARY KEY(timestamp, sender_pubkey, receiver_pubkey))";
-				stmt.execute(sql1);
-				stmt.execute(sql2);
+				int version = readSchemaVersion(stmt);
+				if (version == SCHEMA_VERSION) return;
+				stmt.execute("BEGIN IMMEDIATE");
+				try {
+					// Databases created before the schema was versioned store keys and signatures as Base64 TEXT
+					if (version == 0 && tableExists(stmt, "accounts")) version = 1;
+					if (version == 0) {
+						createTables(stmt);
+						version = 2;
+					}
+					if (version == 1) {
+						migrateFromBase64Text(conn, stmt);
+						version = 2;
+					}
+					if (version == 2) {
+						createIndexes(stmt);
+						version = 3;
+					}
+					if (version == 3) {
+						addApprovalOrder(stmt);
+						version = 4;
+					}
+					if (version == 4) {
+						addApprovedHeads(conn, stmt);
+						version = 5;
+					}
+					if (version == 5) {
+						addApprovedHeadSignatures(stmt);
+						version = 6;
+					}
+					if (version == 6) {
+						addApprovedTransfersTable(stmt);
+						version = 7;
+					}
+					if (version == 7) addChainHeads(conn, stmt);
+					stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+					stmt.execute("COMMIT");
+				}
+				catch (SQLException e) {
+					stmt.execute("ROLLBACK");
+					throw e;
+				}
 			}
 		}
 	}
 
-	private Connection getConnection() throws SQLException {
-		try {
-			String url = "jdbc:sqlite:" + Resources.getAbsoluteDatabasePath(replicaID);
-			return DriverManager.getConnection(url);
+	private static int readSchemaVersion(Statement stmt) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+			return rs.next() ? rs.getInt(1) : 0;
 		}
-		catch (URISyntaxException e) {
-			throw new RuntimeException(e);
+	}
+
+	private static boolean tableExists(Statement stmt, String table) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+			return rs.next();
 		}
 	}
 
-	public boolean checkAccountExists(ByteString publicKey) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM accounts WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					return rs.next();
-				}
+	private static void createTables(Statement stmt) throws SQLException {
+		String sql1 = "CREATE TABLE accounts(" +
+				"account_id INTEGER PRIMARY KEY, " +
+				"pubkey BLOB NOT NULL UNIQUE, " +
+				"balance INTEGER NOT NULL, " +
+				"balance_wts INTEGER NOT NULL, " +
+				"balance_signature BLOB NOT NULL, " +
+				"pending_size INTEGER NOT NULL, " +
+				"approved_size INTEGER NOT NULL, " +
+				"sizes_wts INTEGER NOT NULL, " +
+				"sizes_signature BLOB NOT NULL, " +
+				"sizes_signer_id INTEGER NOT NULL, " +
+				"FOREIGN KEY (sizes_signer_id) REFERENCES accounts(account_id))";
+		String sql2 = "CREATE TABLE transfers(" +
+				"timestamp INTEGER NOT NULL, " +
+				"sender_id INTEGER NOT NULL, " +
+				"receiver_id INTEGER NOT NULL, " +
+				"amount INTEGER NOT NULL, " +
+				"sender_signature BLOB NOT NULL, " +
+				"receiver_signature BLOB, " +
+				"FOREIGN KEY (sender_id) REFERENCES accounts(account_id), " +
+				"FOREIGN KEY (receiver_id) REFERENCES accounts(account_id), " +
+				"CONSTRAINT pk PRIMARY KEY(timestamp, sender_id, receiver_id))";
+		stmt.execute(sql1);
+		stmt.execute(sql2);
+	}
+
+	// Partial indexes keep pending and approved transfers apart, so lookups don't scan the whole bank history
+	private static void createIndexes(Statement stmt) throws SQLException {
+		String sql1 = "CREATE INDEX transfers_pending_by_receiver " +
+				"ON transfers(receiver_id, timestamp, sender_id, amount) " +
+				"WHERE receiver_signature IS NULL";
+		String sql2 = "CREATE INDEX transfers_approved_by_sender " +
+				"ON transfers(sender_id, timestamp) " +
+				"WHERE receiver_signature IS NOT NULL";
+		String sql3 = "CREATE INDEX transfers_approved_by_receiver " +
+				"ON transfers(receiver_id, timestamp) " +
+				"WHERE receiver_signature IS NOT NULL";
+		stmt.execute(sql1);
+		stmt.execute(sql2);
+		stmt.execute(sql3);
+	}
+
+	// Approved transfers are listed in the order they were approved, so that a prefix of the list never changes and
+	// clients can audit only what came after it. Transfers approved before are numbered in timestamp order
+	private static void addApprovalOrder(Statement stmt) throws SQLException {
+		String sql1 = "ALTER TABLE transfers ADD COLUMN approval_seq INTEGER";
+		String sql2 = "UPDATE transfers SET approval_seq = ordered.seq " +
+				"FROM (SELECT rowid AS id, ROW_NUMBER() OVER (ORDER BY timestamp, sender_id, receiver_id) AS seq " +
+				"FROM transfers WHERE receiver_signature IS NOT NULL) AS ordered " +
+				"WHERE transfers.rowid = ordered.id";
+		String sql3 = "CREATE INDEX transfers_by_approval_seq ON transfers(approval_seq)";
+		stmt.execute(sql1);
+		stmt.execute(sql2);
+		stmt.execute(sql3);
+		stmt.execute("DROP INDEX transfers_approved_by_sender");
+		stmt.execute("DROP INDEX transfers_approved_by_receiver");
+		String sql4 = "CREATE INDEX transfers_approved_by_sender " +
+				"ON transfers(sender_id, approval_seq, timestamp) " +
+				"WHERE receiver_signature IS NOT NULL";
+		String sql5 = "CREATE INDEX transfers_approved_by_receiver " +
+				"ON transfers(receiver_id, approval_seq, timestamp) " +
+				"WHERE receiver_signature IS NOT NULL";
+		stmt.execute(sql4);
+		stmt.execute(sql5);
+	}
+
+	// Each account keeps the head of the hash chain over its approved transfers, which is signed along with its list
+	// sizes. The heads of existing accounts are computed from their history, although their signatures don't cover them
+	private static void addApprovedHeads(PooledConnection conn, Statement stmt) throws SQLException {
+		stmt.execute("ALTER TABLE accounts ADD COLUMN approved_head BLOB NOT NULL DEFAULT x''");
+		Map<Long, ByteString> heads = new HashMap<>();
+		String sql = "SELECT t.timestamp, t.sender_id, t.receiver_id, s.pubkey AS sender_pubkey, " +
+				"r.pubkey AS receiver_pubkey, t.amount " +
+				"FROM transfers t " +
+				"JOIN accounts s ON s.account_id = t.sender_id " +
+				"JOIN accounts r ON r.account_id = t.receiver_id " +
+				"WHERE t.receiver_signature IS NOT NULL " +
+				"ORDER BY t.approval_seq, t.timestamp, t.sender_id, t.receiver_id";
+		try (ResultSet rs = stmt.executeQuery(sql)) {
+			while (rs.next()) {
+				Transfer.Builder builder = Transfer.newBuilder();
+				builder.setTimestamp(rs.getLong("timestamp"));
+				builder.setSenderKey(ByteString.copyFrom(rs.getBytes("sender_pubkey")));
+				builder.setReceiverKey(ByteString.copyFrom(rs.getBytes("receiver_pubkey")));
+				builder.setAmount(rs.getInt("amount"));
+				Transfer transfer = builder.build();
+				long senderId = rs.getLong("sender_id");
+				long receiverId = rs.getLong("receiver_id");
+				heads.put(senderId, TransferChain.extend(heads.getOrDefault(senderId, ByteString.EMPTY), transfer));
+				if (receiverId != senderId)
+					heads.put(receiverId, TransferChain.extend(heads.getOrDefault(receiverId, ByteString.EMPTY), transfer));
+			}
+		}
+		try (PreparedStatement update = conn.getConnection().prepareStatement("UPDATE accounts SET approved_head = ? WHERE account_id = ?")) {
+			for (Map.Entry<Long, ByteString> head : heads.entrySet()) {
+				update.setBytes(1, head.getValue().toByteArray());
+				update.setLong(2, head.getKey());
+				update.executeUpdate();
 			}
 		}
 	}
 
-	public void insertAccount(ByteString publicKey, int balance, int balanceWts, ByteString balanceSignature,
-			int pendingSize, int approvedSize, int sizesWts, ByteString sizesSignature) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "INSERT INTO accounts(pubkey, balance, balance_wts, balance_signature, pending_size, approved_size, sizes_wts, sizes_signature, sizes_signer_pubkey) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				stmt.setInt(2, balance);
-				stmt.setInt(3, balanceWts);
-				stmt.setString(4, Base64.getEncoder().encodeToString(balanceSignature.toByteArray()));
-				stmt.setInt(5, pendingSize);
-				stmt.setInt(6, approvedSize);
-				stmt.setInt(7, sizesWts);
-				stmt.setString(8, Base64.getEncoder().encodeToString(sizesSignature.toByteArray()));
-				stmt.setString(9, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				stmt.executeUpdate();
+	// The owner's own signature over the approved head, kept apart from the list sizes signature since anyone who
+	// changes the list sizes signs those. Existing accounts don't have one until their owner approves a transfer
+	private static void addApprovedHeadSignatures(Statement stmt) throws SQLException {
+		stmt.execute("ALTER TABLE accounts ADD COLUMN approved_head_signature BLOB NOT NULL DEFAULT x''");
+	}
+
+	// The approved list of each account, in the order its owner signed the transfers: a transfer joins its sender's
+	// list when it is sent and its receiver's list when it is approved, so approving a transfer doesn't change the
+	// sender's head. Existing lists keep the approval order their heads were computed over. Transfers still pending
+	// from before only join their receiver's list
+	private static void addApprovedTransfersTable(Statement stmt) throws SQLException {
+		String sql1 = "CREATE TABLE approved_transfers(" +
+				"account_id INTEGER NOT NULL, " +
+				"position INTEGER NOT NULL, " +
+				"timestamp INTEGER NOT NULL, " +
+				"sender_id INTEGER NOT NULL, " +
+				"receiver_id INTEGER NOT NULL, " +
+				"FOREIGN KEY (account_id) REFERENCES accounts(account_id), " +
+				"FOREIGN KEY (timestamp, sender_id, receiver_id) REFERENCES transfers(timestamp, sender_id, receiver_id), " +
+				"CONSTRAINT pk PRIMARY KEY(account_id, position)) WITHOUT ROWID";
+		String sql2 = "INSERT INTO approved_transfers(account_id, position, timestamp, sender_id, receiver_id) " +
+				"SELECT account_id, ROW_NUMBER() OVER (PARTITION BY account_id " +
+				"ORDER BY approval_seq, timestamp, sender_id, receiver_id), timestamp, sender_id, receiver_id " +
+				"FROM (SELECT sender_id AS account_id, approval_seq, timestamp, sender_id, receiver_id " +
+				"FROM transfers WHERE receiver_signature IS NOT NULL " +
+				"UNION ALL " +
+				"SELECT receiver_id, approval_seq, timestamp, sender_id, receiver_id " +
+				"FROM transfers WHERE receiver_signature IS NOT NULL AND receiver_id <> sender_id)";
+		stmt.execute(sql1);
+		stmt.execute(sql2);
+		stmt.execute("DROP INDEX transfers_by_approval_seq");
+		stmt.execute("DROP INDEX transfers_approved_by_sender");
+		stmt.execute("DROP INDEX transfers_approved_by_receiver");
+		stmt.execute("ALTER TABLE transfers DROP COLUMN approval_seq");
+	}
+
+	// Each entry of an approved list keeps the head of the chain up to and including it, so an audit cursor can be
+	// checked against the list without hashing the prefix again
+	private static void addChainHeads(PooledConnection conn, Statement stmt) throws SQLException {
+		stmt.execute("ALTER TABLE approved_transfers ADD COLUMN chain_head BLOB NOT NULL DEFAULT x''");
+		String sql = "SELECT a.account_id, a.position, t.timestamp, s.pubkey AS sender_pubkey, " +
+				"r.pubkey AS receiver_pubkey, t.amount " +
+				"FROM approved_transfers a " +
+				"JOIN transfers t ON t.timestamp = a.timestamp AND t.sender_id = a.sender_id AND t.receiver_id = a.receiver_id " +
+				"JOIN accounts s ON s.account_id = t.sender_id " +
+				"JOIN accounts r ON r.account_id = t.receiver_id " +
+				"ORDER BY a.account_id, a.position";
+		String updateSql = "UPDATE approved_transfers SET chain_head = ? WHERE account_id = ? AND position = ?";
+		try (ResultSet rs = stmt.executeQuery(sql);
+		     PreparedStatement update = conn.getConnection().prepareStatement(updateSql)) {
+			long accountId = -1;
+			ByteString head = ByteString.EMPTY;
+			while (rs.next()) {
+				if (rs.getLong("account_id") != accountId) {
+					accountId = rs.getLong("account_id");
+					head = ByteString.EMPTY;
+				}
+				Transfer.Builder builder = Transfer.newBuilder();
+				builder.setTimestamp(rs.getLong("timestamp"));
+				builder.setSenderKey(ByteString.copyFrom(rs.getBytes("sender_pubkey")));
+				builder.setReceiverKey(ByteString.copyFrom(rs.getBytes("receiver_pubkey")));
+				builder.setAmount(rs.getInt("amount"));
+				head = TransferChain.extend(head, builder.build());
+				update.setBytes(1, head.toByteArray());
+				update.setLong(2, accountId);
+				update.setLong(3, rs.getLong("position"));
+				update.addBatch();
 			}
+			update.executeBatch();
 		}
 	}
 
-	public int readAccountBalance(ByteString publicKeyBS) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT balance FROM accounts " +
-					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKeyBS.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					if (rs.next()) {
-						return rs.getInt("balance");
-					}
-					else {
-						throw new SQLException();
-					}
-				}
+	private static void migrateFromBase64Text(PooledConnection conn, Statement stmt) throws SQLException {
+		stmt.execute("ALTER TABLE transfers RENAME TO transfers_v1");
+		stmt.execute("ALTER TABLE accounts RENAME TO accounts_v1");
+		createTables(stmt);
+		Base64.Decoder decoder = Base64.getDecoder();
+		// Account ids are assigned upfront, so that list sizes signers can be referenced by id
+		Map<String, Long> accountIds = new HashMap<>();
+		try (ResultSet rs = stmt.executeQuery("SELECT pubkey FROM accounts_v1 ORDER BY rowid")) {
+			while (rs.next()) accountIds.put(rs.getString("pubkey"), (long) accountIds.size() + 1);
+		}
+		String insertAccount = "INSERT INTO accounts(account_id, pubkey, balance, balance_wts, balance_signature, pending_size, approved_size, sizes_wts, sizes_signature, sizes_signer_id) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		try (ResultSet rs = stmt.executeQuery("SELECT * FROM accounts_v1");
+		     PreparedStatement insert = conn.getConnection().prepareStatement(insertAccount)) {
+			while (rs.next()) {
+				insert.setLong(1, accountIds.get(rs.getString("pubkey")));
+				insert.setBytes(2, decoder.decode(rs.getString("pubkey")));
+				insert.setInt(3, rs.getInt("balance"));
+				insert.setInt(4, rs.getInt("balance_wts"));
+				insert.setBytes(5, decoder.decode(rs.getString("balance_signature")));
+				insert.setInt(6, rs.getInt("pending_size"));
+				insert.setInt(7, rs.getInt("approved_size"));
+				insert.setInt(8, rs.getInt("sizes_wts"));
+				insert.setBytes(9, decoder.decode(rs.getString("sizes_signature")));
+				insert.setLong(10, accountIds.get(rs.getString("sizes_signer_pubkey")));
+				insert.executeUpdate();
+			}
+		}
+		String insertTransfer = "INSERT INTO transfers(timestamp, sender_id, receiver_id, amount, sender_signature, receiver_signature) VALUES(?, ?, ?, ?, ?, ?)";
+		try (ResultSet rs = stmt.executeQuery("SELECT * FROM transfers_v1");
+		     PreparedStatement insert = conn.getConnection().prepareStatement(insertTransfer)) {
+			while (rs.next()) {
+				String receiverSignature = rs.getString("receiver_signature");
+				insert.setLong(1, rs.getLong("timestamp"));
+				insert.setLong(2, accountIds.get(rs.getString("sender_pubkey")));
+				insert.setLong(3, accountIds.get(rs.getString("receiver_pubkey")));
+				insert.setInt(4, rs.getInt("amount"));
+				insert.setBytes(5, decoder.decode(rs.getString("sender_signature")));
+				insert.setBytes(6, (receiverSignature != null) ? decoder.decode(receiverSignature) : null);
+				insert.executeUpdate();
 			}
 		}
+		stmt.execute("DROP TABLE transfers_v1");
+		stmt.execute("DROP TABLE accounts_v1");
 	}
 
-	public BalanceRecord readAccountBalanceRecord(ByteString publicKeyBS) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM accounts " +
-					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKeyBS.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					if (rs.next()) {
-						return new BalanceRecord(rs);
-					}
-					else {
-						throw new SQLException();
+	private void loadAccountCache() throws SQLException {
+		try (PooledConnection conn = pool.getReader()) {
+			try (Statement stmt = conn.createStatement()) {
+				long version = accountCache.getVersion();
+				try (ResultSet rs = stmt.executeQuery(ACCOUNT_STATE_QUERY + " LIMIT " + CACHED_ACCOUNTS)) {
+					while (rs.next()) {
+						accountCache.load(new AccountState(rs), version);
 					}
 				}
 			}
 		}
 	}
 
+	// Starts a BEGIN IMMEDIATE transaction on the writer connection, which is held until the transaction is closed
+	// or, with group commit, until it is committed
+	public DatabaseTransaction beginTransaction() throws SQLException {
+		return metrics.timed("db.begin_transaction", () -> {
+			return new DatabaseTransaction(this, pool.getWriter(), groupCommitter, accountCache);
+		});
+	}
+
+	public boolean checkAccountExists(ByteString publicKey) throws SQLException {
+		if (accountCache.get(publicKey) != null) return true;
+		try (PooledConnection conn = pool.getReader()) {
+			return accountExists(conn, publicKey);
+		}
+	}
+
+	private AccountState readAccountState(ByteString publicKeyBS) throws SQLException {
+		AccountState state = accountCache.get(publicKeyBS);
+		if (state != null) {
+			metrics.increment("db.account_cache.hit");
+			return state;
+		}
+		metrics.increment("db.account_cache.miss");
+		try (PooledConnection conn = pool.getReader()) {
+			long version = accountCache.getVersion();
+			state = loadAccountState(conn, publicKeyBS);
+			accountCache.load(state, version);
+			return state;
+		}
+	}
+
+	public int readAccountBalance(ByteString publicKeyBS) throws SQLException {
+		return readAccountState(publicKeyBS).getBalanceRecord().getBalance().getValue();
+	}
+
+	public BalanceRecord readAccountBalanceRecord(ByteString publicKeyBS) throws SQLException {
+		return readAccountState(publicKeyBS).getBalanceRecord();
+	}
+
 	public ListSizesRecord readAccountListSizesRecord(ByteString publicKeyBS) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM accounts " +
-					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKeyBS.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					if (rs.next()) {
-						return new ListSizesRecord(rs);
-					}
-					else {
-						throw new SQLException();
-					}
-				}
-			}
+		return readAccountState(publicKeyBS).getListSizesRecord();
+	}
+
+	public TransfersRecord getIncomingPendingTransfersOfAccount(ByteString publicKey) throws SQLException {
+		try (PooledConnection conn = pool.getReader()) {
+			return getIncomingPendingTransfersOfAccount(conn, publicKey);
+		}
+	}
+
+	public TransfersRecord getApprovedTransfersOfAccount(ByteString publicKey, int since) throws SQLException {
+		try (PooledConnection conn = pool.getReader()) {
+			return getApprovedTransfersOfAccount(conn, publicKey, since);
 		}
 	}
 
-	public void updateAccountBalance(ByteString accountPublicKey, int balance, int wts, ByteString signature)
+	public ByteString getApprovedHeadAt(ByteString publicKey, int position) throws SQLException {
+		try (PooledConnection conn = pool.getReader()) {
+			return getApprovedHeadAt(conn, publicKey, position);
+		}
+	}
+
+	// Holds a reader connection until the returned reader is closed
+	public ApprovedTransfersReader openApprovedTransfersReader(ByteString publicKey, int since) throws SQLException {
+		return new ApprovedTransfersReader(this, pool.getReader(), publicKey, since);
+	}
+
+	public Transfer getTransfer(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey)
+			throws SQLException, TransferNotFoundException {
+		try (PooledConnection conn = pool.getReader()) {
+			return getTransfer(conn, timestamp, senderPublicKey, receiverPublicKey);
+		}
+	}
+
+	public boolean checkPendingTransferExists(long timestamp, ByteString sourceKey, ByteString destinationKey, int amount)
 			throws SQLException {
-		try (Connection conn = getConnection()) {
+		try (PooledConnection conn = pool.getReader()) {
+			return checkPendingTransferExists(conn, timestamp, sourceKey, destinationKey, amount);
+		}
+	}
+
+	private long nextAccountId(PooledConnection conn) throws SQLException {
+		String sql = "SELECT COALESCE(MAX(account_id), 0) + 1 FROM accounts";
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		try (ResultSet rs = stmt.executeQuery()) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	// Must run inside a transaction, so that the new account id cannot be taken in the meantime
+	long insertAccount(PooledConnection conn, ByteString publicKey, int balance, int balanceWts,
+			ByteString balanceSignature, int pendingSize, int approvedSize, int sizesWts, ByteString sizesSignature,
+			ByteString approvedHeadSignature) throws SQLException {
+		return metrics.timed("db.insert_account", () -> {
+			long accountId = nextAccountId(conn);
+			String sql = "INSERT INTO accounts(account_id, pubkey, balance, balance_wts, balance_signature, pending_size, approved_size, sizes_wts, sizes_signature, sizes_signer_id, approved_head_signature) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setLong(1, accountId);
+			stmt.setBytes(2, publicKey.toByteArray());
+			stmt.setInt(3, balance);
+			stmt.setInt(4, balanceWts);
+			stmt.setBytes(5, balanceSignature.toByteArray());
+			stmt.setInt(6, pendingSize);
+			stmt.setInt(7, approvedSize);
+			stmt.setInt(8, sizesWts);
+			stmt.setBytes(9, sizesSignature.toByteArray());
+			stmt.setLong(10, accountId);
+			stmt.setBytes(11, approvedHeadSignature.toByteArray());
+			stmt.executeUpdate();
+			return accountId;
+		});
+	}
+
+	AccountState loadAccountState(PooledConnection conn, ByteString publicKeyBS) throws SQLException {
+		return metrics.timed("db.load_account_state", () -> {
+			String sql = ACCOUNT_STATE_QUERY + " WHERE a.pubkey = ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKeyBS.toByteArray());
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next()) {
+					return new AccountState(rs);
+				}
+				else {
+					throw new SQLException();
+				}
+			}
+		});
+	}
+
+	boolean accountExists(PooledConnection conn, ByteString publicKeyBS) throws SQLException {
+		return metrics.timed("db.account_exists", () -> {
+			String sql = "SELECT 1 FROM accounts WHERE pubkey = ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKeyBS.toByteArray());
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next();
+			}
+		});
+	}
+
+	void updateAccountBalance(PooledConnection conn, ByteString accountPublicKey, int balance, int wts,
+			ByteString signature) throws SQLException {
+		metrics.timed("db.update_account_balance", () -> {
 			String sql = "UPDATE accounts SET " +
 					"balance = ? ," +
 					"balance_wts = ? ," +
 					"balance_signature = ? " +
 					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setInt(1, balance);
-				stmt.setInt(2, wts);
-				stmt.setString(3, Base64.getEncoder().encodeToString(signature.toByteArray()));
-				stmt.setString(4, Base64.getEncoder().encodeToString(accountPublicKey.toByteArray()));
-				stmt.executeUpdate();
-			}
-		}
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setInt(1, balance);
+			stmt.setInt(2, wts);
+			stmt.setBytes(3, signature.toByteArray());
+			stmt.setBytes(4, accountPublicKey.toByteArray());
+			stmt.executeUpdate();
+		});
 	}
 
-	public void updateAccountListSizes(ByteString accountPublicKey, int pendingSize, int approvedSize, int sizesWts,
-			ByteString sizesSignature, ByteString sizesSignerPublicKey) throws SQLException {
-		try (Connection conn = getConnection()) {
+	void updateAccountListSizes(PooledConnection conn, ByteString accountPublicKey, int pendingSize, int approvedSize,
+			ByteString approvedHead, int sizesWts, ByteString sizesSignature, ByteString sizesSignerPublicKey,
+			ByteString approvedHeadSignature) throws SQLException {
+		metrics.timed("db.update_account_list_sizes", () -> {
 			String sql = "UPDATE accounts SET " +
 					"pending_size = ? ," +
 					"approved_size = ? ," +
+					"approved_head = ? ," +
 					"sizes_wts = ? ," +
 					"sizes_signature = ? ," +
-					"sizes_signer_pubkey = ? " +
+					"sizes_signer_id = (SELECT account_id FROM accounts WHERE pubkey = ?) ," +
+					"approved_head_signature = ? " +
 					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setInt(1, pendingSize);
-				stmt.setInt(2, approvedSize);
-				stmt.setInt(3, sizesWts);
-				stmt.setString(4, Base64.getEncoder().encodeToString(sizesSignature.toByteArray()));
-				stmt.setString(5, Base64.getEncoder().encodeToString(sizesSignerPublicKey.toByteArray()));
-				stmt.setString(6, Base64.getEncoder().encodeToString(accountPublicKey.toByteArray()));
-				stmt.executeUpdate();
-			}
-		}
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setInt(1, pendingSize);
+			stmt.setInt(2, approvedSize);
+			stmt.setBytes(3, approvedHead.toByteArray());
+			stmt.setInt(4, sizesWts);
+			stmt.setBytes(5, sizesSignature.toByteArray());
+			stmt.setBytes(6, sizesSignerPublicKey.toByteArray());
+			stmt.setBytes(7, approvedHeadSignature.toByteArray());
+			stmt.setBytes(8, accountPublicKey.toByteArray());
+			stmt.executeUpdate();
+		});
 	}
 
-	public void updateAccountAll(ByteString accountPublicKey, int balance, int balanceWts, ByteString balanceSignature,
-			int pendingSize, int approvedSize, int sizesWts, ByteString sizesSignature, ByteString sizesSignerPublicKey)
-			throws SQLException {
-		try (Connection conn = getConnection()) {
+	void updateAccountAll(PooledConnection conn, ByteString accountPublicKey, int balance, int balanceWts,
+			ByteString balanceSignature, int pendingSize, int approvedSize, ByteString approvedHead, int sizesWts,
+			ByteString sizesSignature, ByteString sizesSignerPublicKey, ByteString approvedHeadSignature) throws SQLException {
+		metrics.timed("db.update_account_all", () -> {
 			String sql = "UPDATE accounts SET " +
 					"balance = ? ," +
 					"balance_wts = ? ," +
 					"balance_signature = ? ," +
 					"pending_size = ? ," +
 					"approved_size = ? ," +
+					"approved_head = ? ," +
 					"sizes_wts = ? ," +
 					"sizes_signature = ? ," +
-					"sizes_signer_pubkey = ? " +
+					"sizes_signer_id = (SELECT account_id FROM accounts WHERE pubkey = ?) ," +
+					"approved_head_signature = ? " +
 					"WHERE pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setInt(1, balance);
-				stmt.setInt(2, balanceWts);
-				stmt.setString(3, Base64.getEncoder().encodeToString(balanceSignature.toByteArray()));
-				stmt.setInt(4, pendingSize);
-				stmt.setInt(5, approvedSize);
-				stmt.setInt(6, sizesWts);
-				stmt.setString(7, Base64.getEncoder().encodeToString(sizesSignature.toByteArray()));
-				stmt.setString(8, Base64.getEncoder().encodeToString(sizesSignerPublicKey.toByteArray()));
-				stmt.setString(9, Base64.getEncoder().encodeToString(accountPublicKey.toByteArray()));
-				stmt.executeUpdate();
-			}
-		}
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setInt(1, balance);
+			stmt.setInt(2, balanceWts);
+			stmt.setBytes(3, balanceSignature.toByteArray());
+			stmt.setInt(4, pendingSize);
+			stmt.setInt(5, approvedSize);
+			stmt.setBytes(6, approvedHead.toByteArray());
+			stmt.setInt(7, sizesWts);
+			stmt.setBytes(8, sizesSignature.toByteArray());
+			stmt.setBytes(9, sizesSignerPublicKey.toByteArray());
+			stmt.setBytes(10, approvedHeadSignature.toByteArray());
+			stmt.setBytes(11, accountPublicKey.toByteArray());
+			stmt.executeUpdate();
+		});
 	}
 
-	public void insertTransfer(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey, int amount, ByteString senderSignature)
-			throws
-			SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "INSERT INTO transfers(timestamp, sender_pubkey, receiver_pubkey, amount, sender_signature) VALUES (?, ?, ?, ?, ?)";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setLong(1, timestamp);
-				stmt.setString(2, Base64.getEncoder().encodeToString(senderPublicKey.toByteArray()));
-				stmt.setString(3, Base64.getEncoder().encodeToString(receiverPublicKey.toByteArray()));
-				stmt.setInt(4, amount);
-				stmt.setString(5, Base64.getEncoder().encodeToString(senderSignature.toByteArray()));
-				stmt.executeUpdate();
-			}
-		}
+	void insertTransfer(PooledConnection conn, long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey,
+			int amount, ByteString senderSignature) throws SQLException {
+		metrics.timed("db.insert_transfer", () -> {
+			String sql = "INSERT INTO transfers(timestamp, sender_id, receiver_id, amount, sender_signature) VALUES (?, " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), ?, ?)";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setLong(1, timestamp);
+			stmt.setBytes(2, senderPublicKey.toByteArray());
+			stmt.setBytes(3, receiverPublicKey.toByteArray());
+			stmt.setInt(4, amount);
+			stmt.setBytes(5, senderSignature.toByteArray());
+			stmt.executeUpdate();
+		});
 	}
 
-	public TransfersRecord getIncomingPendingTransfersOfAccount(ByteString publicKey) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM transfers " +
-					"WHERE receiver_pubkey = ? " +
-					"AND receiver_signature IS NULL " +
-					"ORDER BY timestamp";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					return new TransfersRecord(rs);
+	// The whole batch goes to SQLite in a single executeBatch, reusing one prepared statement for every row
+	void insertTransfers(PooledConnection conn, List<Transfer> transfers, List<ByteString> senderSignatures)
+			throws SQLException {
+		metrics.timed("db.insert_transfers", () -> {
+			String sql = "INSERT INTO transfers(timestamp, sender_id, receiver_id, amount, sender_signature) VALUES (?, " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), ?, ?)";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			try {
+				for (int i = 0; i < transfers.size(); i++) {
+					Transfer transfer = transfers.get(i);
+					stmt.setLong(1, transfer.getTimestamp());
+					stmt.setBytes(2, transfer.getSenderKey().toByteArray());
+					stmt.setBytes(3, transfer.getReceiverKey().toByteArray());
+					stmt.setInt(4, transfer.getAmount());
+					stmt.setBytes(5, senderSignatures.get(i).toByteArray());
+					stmt.addBatch();
 				}
+				stmt.executeBatch();
 			}
-		}
+			finally {
+				// The statement is cached, so a failed batch must not be left behind for its next use
+				stmt.clearBatch();
+			}
+		});
 	}
 
-	public TransfersRecord getApprovedTransfersOfAccount(ByteString publicKey) throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM transfers " +
-					"WHERE (sender_pubkey = ? OR receiver_pubkey = ?) " +
-					"AND receiver_signature IS NOT NULL " +
-					"ORDER BY timestamp";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				stmt.setString(2, Base64.getEncoder().encodeToString(publicKey.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					return new TransfersRecord(rs);
+	// Each transfer takes the next position of the account's list, in the order they are given, along with the head of
+	// the chain up to it
+	void insertApprovedTransfers(PooledConnection conn, ByteString accountPublicKey, List<Transfer> transfers,
+			List<ByteString> chainHeads) throws SQLException {
+		metrics.timed("db.insert_approved_transfers", () -> {
+			String sql = "WITH account(id) AS (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+					"INSERT INTO approved_transfers(account_id, position, timestamp, sender_id, receiver_id, chain_head) " +
+					"SELECT (SELECT id FROM account), " +
+					"(SELECT COALESCE(MAX(position), 0) + 1 FROM approved_transfers WHERE account_id = (SELECT id FROM account)), ?, " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), " +
+					"(SELECT account_id FROM accounts WHERE pubkey = ?), ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			try {
+				for (int i = 0; i < transfers.size(); i++) {
+					Transfer transfer = transfers.get(i);
+					stmt.setBytes(1, accountPublicKey.toByteArray());
+					stmt.setLong(2, transfer.getTimestamp());
+					stmt.setBytes(3, transfer.getSenderKey().toByteArray());
+					stmt.setBytes(4, transfer.getReceiverKey().toByteArray());
+					stmt.setBytes(5, chainHeads.get(i).toByteArray());
+					stmt.addBatch();
 				}
+				stmt.executeBatch();
 			}
-		}
+			finally {
+				stmt.clearBatch();
+			}
+		});
 	}
 
-	public Transfer getTransfer(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey)
-			throws SQLException, TransferNotFoundException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM transfers " +
-					"WHERE timestamp = ? " +
-					"AND sender_pubkey = ? " +
-					"AND receiver_pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setLong(1, timestamp);
-				stmt.setString(2, Base64.getEncoder().encodeToString(senderPublicKey.toByteArray()));
-				stmt.setString(3, Base64.getEncoder().encodeToString(receiverPublicKey.toByteArray()));
-				try (ResultSet rs = stmt.executeQuery()) {
-					List<Transfer> results = new TransfersRecord(rs).getTransfers();
-					if (results.isEmpty()) throw new TransferNotFoundException();
-					else return results.get(0);
-				}
+	TransfersRecord getIncomingPendingTransfersOfAccount(PooledConnection conn, ByteString publicKey)
+			throws SQLException {
+		return metrics.timed("db.get_incoming_pending_transfers", () -> {
+			String sql = "SELECT t.timestamp, s.pubkey AS sender_pubkey, r.pubkey AS receiver_pubkey, t.amount, " +
+					"t.sender_signature, t.receiver_signature " +
+					"FROM transfers t " +
+					"JOIN accounts s ON s.account_id = t.sender_id " +
+					"JOIN accounts r ON r.account_id = t.receiver_id " +
+					"WHERE t.receiver_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+					"AND t.receiver_signature IS NULL " +
+					"ORDER BY t.timestamp";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKey.toByteArray());
+			try (ResultSet rs = stmt.executeQuery()) {
+				return new TransfersRecord(rs);
 			}
-		}
+		});
+	}
+
+	// Skips the first transfers of the list, which the client already has
+	TransfersRecord getApprovedTransfersOfAccount(PooledConnection conn, ByteString publicKey, int since)
+			throws SQLException {
+		return metrics.timed("db.get_approved_transfers", () -> {
+			String sql = APPROVED_TRANSFERS_QUERY + "ORDER BY a.position";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKey.toByteArray());
+			stmt.setInt(2, since);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return new TransfersRecord(rs);
+			}
+		});
+	}
+
+	// The head of the account's approved list after its first transfers, or null if the list is shorter than that
+	ByteString getApprovedHeadAt(PooledConnection conn, ByteString publicKey, int position) throws SQLException {
+		if (position == 0) return ByteString.EMPTY;
+		return metrics.timed("db.get_approved_head_at", () -> {
+			String sql = "SELECT chain_head FROM approved_transfers " +
+					"WHERE account_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+					"AND position = ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKey.toByteArray());
+			stmt.setInt(2, position);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next() ? ByteString.copyFrom(rs.getBytes("chain_head")) : null;
+			}
+		});
+	}
+
+	Transfer getTransfer(PooledConnection conn, long timestamp, ByteString senderPublicKey,
+			ByteString receiverPublicKey) throws SQLException, TransferNotFoundException {
+		List<Transfer> results = metrics.timed("db.get_transfer", () -> {
+			String sql = "SELECT t.timestamp, s.pubkey AS sender_pubkey, r.pubkey AS receiver_pubkey, t.amount, " +
+					"t.sender_signature, t.receiver_signature " +
+					"FROM transfers t " +
+					"JOIN accounts s ON s.account_id = t.sender_id " +
+					"JOIN accounts r ON r.account_id = t.receiver_id " +
+					"WHERE t.timestamp = ? " +
+					"AND s.pubkey = ? " +
+					"AND r.pubkey = ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setLong(1, timestamp);
+			stmt.setBytes(2, senderPublicKey.toByteArray());
+			stmt.setBytes(3, receiverPublicKey.toByteArray());
+			try (ResultSet rs = stmt.executeQuery()) {
+				return new TransfersRecord(rs).getTransfers();
+			}
+		});
+		if (results.isEmpty()) throw new TransferNotFoundException();
+		else return results.get(0);
 	}
 
-	public void updateTransferToApproved(long timestamp, ByteString senderPublicKey, ByteString receiverPublicKey, ByteString receiverSignature)
+	// Seeks straight to the position after the previous page, so every page costs the same however deep into the
+	// history it is
+	TransfersRecord getApprovedTransfersPage(PooledConnection conn, ByteString publicKey, int after, int pageSize)
 			throws SQLException {
-		try (Connection conn = getConnection()) {
+		return metrics.timed("db.get_approved_transfers_page", () -> {
+			String sql = APPROVED_TRANSFERS_QUERY + "ORDER BY a.position LIMIT ?";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, publicKey.toByteArray());
+			stmt.setInt(2, after);
+			stmt.setInt(3, pageSize);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return new TransfersRecord(rs);
+			}
+		});
+	}
+
+	void updateTransferToApproved(PooledConnection conn, long timestamp, ByteString senderPublicKey,
+			ByteString receiverPublicKey, ByteString receiverSignature) throws SQLException {
+		metrics.timed("db.update_transfer_to_approved", () -> {
 			String sql = "UPDATE transfers SET receiver_signature = ? " +
 					"WHERE timestamp = ? " +
-					"AND sender_pubkey = ? " +
-					"AND receiver_pubkey = ?";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setString(1, Base64.getEncoder().encodeToString(receiverSignature.toByteArray()));
-				stmt.setLong(2, timestamp);
-				stmt.setString(3, Base64.getEncoder().encodeToString(senderPublicKey.toByteArray()));
-				stmt.setString(4, Base64.getEncoder().encodeToString(receiverPublicKey.toByteArray()));
-				stmt.executeUpdate();
+					"AND sender_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+					"AND receiver_id = (SELECT account_id FROM accounts WHERE pubkey = ?)";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setBytes(1, receiverSignature.toByteArray());
+			stmt.setLong(2, timestamp);
+			stmt.setBytes(3, senderPublicKey.toByteArray());
+			stmt.setBytes(4, receiverPublicKey.toByteArray());
+			stmt.executeUpdate();
+		});
+	}
+
+	// Approves many pending transfers of the same receiver with a single UPDATE per chunk. Only transfers that are
+	// still pending and match their amount are changed, so the caller can compare the count with what it expected
+	int updateTransfersToApproved(PooledConnection conn, ByteString receiverPublicKey, List<Transfer> transfers,
+			List<ByteString> receiverSignatures) throws SQLException {
+		return metrics.timed("db.update_transfers_to_approved", () -> {
+			int updated = 0;
+			for (int start = 0; start < transfers.size(); start += APPROVALS_PER_UPDATE) {
+				int end = Math.min(start + APPROVALS_PER_UPDATE, transfers.size());
+				String sql = "WITH approved(timestamp, sender_pubkey, amount, receiver_signature) AS (VALUES " +
+						String.join(", ", Collections.nCopies(end - start, "(?, ?, ?, ?)")) + "), " +
+						"matched(timestamp, sender_id, amount, receiver_signature) AS (" +
+						"SELECT a.timestamp, s.account_id, a.amount, a.receiver_signature " +
+						"FROM approved a JOIN accounts s ON s.pubkey = a.sender_pubkey) " +
+						"UPDATE transfers SET receiver_signature = (" +
+						"SELECT m.receiver_signature FROM matched m " +
+						"WHERE m.timestamp = transfers.timestamp AND m.sender_id = transfers.sender_id) " +
+						"WHERE receiver_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+						"AND receiver_signature IS NULL " +
+						"AND EXISTS (SELECT 1 FROM matched m " +
+						"WHERE m.timestamp = transfers.timestamp AND m.sender_id = transfers.sender_id " +
+						"AND m.amount = transfers.amount)";
+				// Chunks have different sizes, so these statements aren't worth keeping in the connection's cache
+				try (PreparedStatement stmt = conn.getConnection().prepareStatement(sql)) {
+					int index = 1;
+					for (int i = start; i < end; i++) {
+						Transfer transfer = transfers.get(i);
+						stmt.setLong(index++, transfer.getTimestamp());
+						stmt.setBytes(index++, transfer.getSenderKey().toByteArray());
+						stmt.setInt(index++, transfer.getAmount());
+						stmt.setBytes(index++, receiverSignatures.get(i).toByteArray());
+					}
+					stmt.setBytes(index, receiverPublicKey.toByteArray());
+					updated += stmt.executeUpdate();
+				}
 			}
-		}
+			return updated;
+		});
 	}
 
-	public boolean checkPendingTransferExists(long timestamp, ByteString sourceKey, ByteString destinationKey, int amount)
-			throws SQLException {
-		try (Connection conn = getConnection()) {
-			String sql = "SELECT * FROM transfers " +
+	boolean checkPendingTransferExists(PooledConnection conn, long timestamp, ByteString sourceKey,
+			ByteString destinationKey, int amount) throws SQLException {
+		return metrics.timed("db.check_pending_transfer_exists", () -> {
+			String sql = "SELECT timestamp FROM transfers " +
 					"WHERE timestamp = ? " +
-					"AND sender_pubkey = ? " +
-					"AND receiver_pubkey = ? " +
+					"AND sender_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
+					"AND receiver_id = (SELECT account_id FROM accounts WHERE pubkey = ?) " +
 					"AND amount = ? " +
 					"AND receiver_signature IS NULL";
-			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-				stmt.setLong(1, timestamp);
-				stmt.setString(2, Base64.getEncoder().encodeToString(sourceKey.toByteArray()));
-				stmt.setString(3, Base64.getEncoder().encodeToString(destinationKey.toByteArray()));
-				stmt.setInt(4, amount);
-				try (ResultSet rs = stmt.executeQuery()) {
-					return rs.next();
-				}
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setLong(1, timestamp);
+			stmt.setBytes(2, sourceKey.toByteArray());
+			stmt.setBytes(3, destinationKey.toByteArray());
+			stmt.setInt(4, amount);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next();
 			}
-		}
+		});
 	}
 }
@@ -6,52 +6,146 @@ import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
 import pt.tecnico.sec.bftb.grpc.Server.Transfer;
 import pt.tecnico.sec.bftb.server.exceptions.*;
 
-import java.security.KeyFactory;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 	private static final long TIMESTAMP_TOLERANCE = 5000;
 	private static final int INITIAL_BALANCE = 100;
+	private static final int NUMBER_OF_ACCOUNT_STRIPES = 64;
+	private static final int PUBLIC_KEY_CACHE_CAPACITY = 16384;
+	private static final int SESSION_CAPACITY = 16384;
+	// Requests the replica is meant to be handling at once, beyond which it is considered saturated
+	private static final int LOAD_CAPACITY = 64;
+	private static final long METRICS_DUMP_PERIOD = 10; // Seconds
 	private final SignatureManager signatureManager;
+	private final StripedLock accountLocks;
+	private final PublicKeyCache publicKeyCache;
+	private final SessionManager sessionManager;
+	private final LoadMonitor loadMonitor;
+	private final Metrics metrics;
 	SQLiteDatabase db;
 	int replicaID;
 
 	public Server(int replicaID) throws ServerInitializationFailedException {
+		this(replicaID, DurabilityMode.DEFAULT);
+	}
+
+	public Server(int replicaID, DurabilityMode durabilityMode) throws ServerInitializationFailedException {
+		this(replicaID, durabilityMode, loadPrivateKey(replicaID), getDatabasePath(replicaID), getMetricsPath(replicaID));
+	}
+
+	// Lets the replica keep its key and files anywhere, e.g. replicas started together by a ReplicaCluster
+	public Server(int replicaID, DurabilityMode durabilityMode, PrivateKey privateKey, String databasePath, Path metricsPath)
+			throws ServerInitializationFailedException {
 		try {
-			Resources.init();
 			this.replicaID = replicaID;
-			this.signatureManager = new SignatureManager(replicaID);
-			this.db = new SQLiteDatabase(replicaID);
+			this.metrics = new Metrics();
+			this.signatureManager = new SignatureManager(privateKey, metrics);
+			this.accountLocks = new StripedLock(NUMBER_OF_ACCOUNT_STRIPES);
+			this.publicKeyCache = new PublicKeyCache(PUBLIC_KEY_CACHE_CAPACITY);
+			this.sessionManager = new SessionManager(SESSION_CAPACITY);
+			this.loadMonitor = new LoadMonitor(LOAD_CAPACITY);
+			this.loadMonitor.addQueue(accountLocks::getQueueLength);
+			this.db = new SQLiteDatabase(databasePath, durabilityMode, metrics);
+			this.metrics.startDumping(metricsPath, METRICS_DUMP_PERIOD, TimeUnit.SECONDS);
+		}
+		catch (PrivateKeyLoadingFailedException | SQLException e) {
+			throw new ServerInitializationFailedException(e);
+		}
+	}
+
+	private static PrivateKey loadPrivateKey(int replicaID) throws ServerInitializationFailedException {
+		try {
+			return Resources.getPrivateKey(replicaID);
+		}
+		catch (PrivateKeyLoadingFailedException e) {
+			throw new ServerInitializationFailedException(e);
+		}
+	}
+
+	private static String getDatabasePath(int replicaID) throws ServerInitializationFailedException {
+		try {
+			Resources.init();
+			return Resources.getAbsoluteDatabasePath(replicaID);
+		}
+		catch (DirectoryCreationFailedException | URISyntaxException e) {
+			throw new ServerInitializationFailedException(e);
+		}
+	}
+
+	private static Path getMetricsPath(int replicaID) throws ServerInitializationFailedException {
+		try {
+			Resources.init();
+			return Path.of(Resources.getAbsoluteMetricsPath(replicaID));
 		}
-		catch (PrivateKeyLoadingFailedException | DirectoryCreationFailedException | SQLException e) {
+		catch (DirectoryCreationFailedException | URISyntaxException e) {
 			throw new ServerInitializationFailedException(e);
 		}
 	}
 
+	public void close() throws SQLException {
+		metrics.stopDumping();
+		db.close();
+	}
+
 	public SignatureManager getSignatureManager() {
 		return signatureManager;
 	}
 
+	public PublicKeyCache getPublicKeyCache() {
+		return publicKeyCache;
+	}
+
+	public StripedLock getAccountLocks() {
+		return accountLocks;
+	}
+
+	public SessionManager getSessionManager() {
+		return sessionManager;
+	}
+
+	public LoadMonitor getLoadMonitor() {
+		return loadMonitor;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public ByteString openSession(ByteString publicKeyBS, ByteString ephemeralKeyBS)
+			throws AccountDoesNotExistException, SessionEstablishmentFailedException, SQLException {
+		// Only accounts get sessions, so that made up keys can't fill the session table
+		if (!db.checkAccountExists(publicKeyBS)) throw new AccountDoesNotExistException();
+		return sessionManager.openSession(publicKeyBS, ephemeralKeyBS);
+	}
+
 	private void verifyInitialBalance(ByteString userPublicKeyBS, Balance initialBalance, ByteString signature)
 			throws InvalidNewBalanceException, NoSuchAlgorithmException, SignatureVerificationFailedException,
 			InvalidKeySpecException {
 		if (initialBalance.getValue() != INITIAL_BALANCE || initialBalance.getWts() != 0) {
 			throw new InvalidNewBalanceException();
 		}
-		PublicKey userPublicKey = publicKeyFromByteString(userPublicKeyBS);
-		if (!this.signatureManager.isBalanceSignatureValid(userPublicKey, signature.toByteArray(), initialBalance)) {
-			throw new InvalidNewBalanceException("Balance signature does not match received balance");
-		}
+		verifyBalanceSignature(userPublicKeyBS, initialBalance, signature);
 	}
 
 	private void verifyInitialListSizes(ByteString userPublicKeyBS, ListSizes initialListSizes, ByteString signature)
 			throws NoSuchAlgorithmException, SignatureVerificationFailedException,
 			InvalidKeySpecException, InvalidNewListSizesException {
-		if (initialListSizes.getPendingSize() != 0 || initialListSizes.getApprovedSize() != 0 || initialListSizes.getWts() != 0) {
+		if (initialListSizes.getPendingSize() != 0 || initialListSizes.getApprovedSize() != 0 || initialListSizes.getWts() != 0
+				|| !initialListSizes.getApprovedHead().isEmpty()) {
 			throw new InvalidNewListSizesException();
 		}
 		PublicKey userPublicKey = publicKeyFromByteString(userPublicKeyBS);
@@ -60,15 +154,23 @@ public class Server {
 		}
 	}
 
-	public void openAccount(ByteString publicKeyBS, Balance balance, ByteString balanceSignature, ListSizes listSizes, ByteString sizesSignature)
-			throws AccountAlreadyExistsException, SQLException, NoSuchAlgorithmException, InvalidKeySpecException,
+	public void openAccount(ByteString publicKeyBS, Balance balance, ByteString balanceSignature, ListSizes listSizes, ByteString sizesSignature,
+			ByteString approvedHeadSignature) throws AccountAlreadyExistsException, SQLException, NoSuchAlgorithmException, InvalidKeySpecException,
 			InvalidNewBalanceException, SignatureVerificationFailedException, InvalidNewListSizesException {
 		if (db.checkAccountExists(publicKeyBS)) throw new AccountAlreadyExistsException();
+		// Signatures don't depend on the account's state, so they are checked before taking any lock
 		verifyInitialBalance(publicKeyBS, balance, balanceSignature);
 		verifyInitialListSizes(publicKeyBS, listSizes, sizesSignature);
+		verifyApprovedHeadSignature(publicKeyBS, listSizes, approvedHeadSignature);
+
+		try (StripedLock.Stripes stripes = accountLocks.lock(publicKeyBS);
+		     DatabaseTransaction tx = db.beginTransaction()) {
+			if (tx.checkAccountExists(publicKeyBS)) throw new AccountAlreadyExistsException();
 
-		db.insertAccount(publicKeyBS, INITIAL_BALANCE, balance.getWts(), balanceSignature, listSizes.getPendingSize(),
-				listSizes.getApprovedSize(), listSizes.getWts(), sizesSignature);
+			tx.insertAccount(publicKeyBS, INITIAL_BALANCE, balance.getWts(), balanceSignature, listSizes.getPendingSize(),
+					listSizes.getApprovedSize(), listSizes.getWts(), sizesSignature, approvedHeadSignature);
+			tx.commit();
+		}
 	}
 
 	public BalanceRecord readBalance(ByteString publicKeyBS) throws AccountDoesNotExistException, SQLException {
@@ -88,7 +190,10 @@ public class Server {
 		return db.getIncomingPendingTransfersOfAccount(publicKeyBS);
 	}
 
+	// The sender signs the transfer now, so it joins the sender's approved list as it is sent and the receiver approving
+	// it later doesn't change the sender's list sizes. A transfer to oneself is also pending in the same list sizes
 	public void sendAmount(Transfer transfer, ByteString senderSignature, Balance newBalance, ByteString balanceSignature,
+			ListSizes senderListSizes, ByteString senderSizesSignature, ByteString senderHeadSignature,
 			ListSizes receiverListSizes, ByteString receiverSizesSignature)
 			throws AccountDoesNotExistException, AmountTooLowException, BalanceTooLowException, SQLException,
 			InvalidTimestampException, InvalidKeySpecException,
@@ -98,16 +203,98 @@ public class Server {
 		int amount = transfer.getAmount();
 		ByteString senderKeyBS = transfer.getSenderKey();
 		ByteString receiverKeyBS = transfer.getReceiverKey();
+		boolean toSelf = senderKeyBS.equals(receiverKeyBS);
 
 		verifySendAmount(timestamp, amount, senderKeyBS, receiverKeyBS);
 		verifyTransferSignature(senderKeyBS, transfer, senderSignature);
-		verifyNewBalance(senderKeyBS, newBalance, balanceSignature, -amount);
-		verifyNewListSizesNewPending(receiverKeyBS, receiverListSizes, receiverSizesSignature, senderKeyBS);
+		verifyBalanceSignature(senderKeyBS, newBalance, balanceSignature);
+		verifyListSizesSignature(senderKeyBS, senderListSizes, senderSizesSignature);
+		verifyApprovedHeadSignature(senderKeyBS, senderListSizes, senderHeadSignature);
+		if (!toSelf) verifyListSizesSignature(senderKeyBS, receiverListSizes, receiverSizesSignature);
+
+		// Both accounts stay locked until the transfer is durable, so no other request can verify against stale state
+		try (StripedLock.Stripes stripes = accountLocks.lock(senderKeyBS, receiverKeyBS);
+		     DatabaseTransaction tx = db.beginTransaction()) {
+			if (amount >= tx.readAccountBalance(senderKeyBS)) throw new BalanceTooLowException();
+			verifyNewBalance(tx, senderKeyBS, newBalance, -amount);
+			verifyNewListSizes(tx, senderKeyBS, senderListSizes, (toSelf) ? 1 : 0, List.of(transfer));
+			if (!toSelf) verifyNewListSizes(tx, receiverKeyBS, receiverListSizes, 1, List.of());
 
-		// TRANSACTION
-		db.insertTransfer(timestamp, senderKeyBS, receiverKeyBS, amount, senderSignature);
-		db.updateAccountBalance(senderKeyBS, newBalance.getValue(), newBalance.getWts(), balanceSignature);
-		db.updateAccountListSizes(receiverKeyBS, receiverListSizes.getPendingSize(), receiverListSizes.getApprovedSize(), receiverListSizes.getWts(), receiverSizesSignature, senderKeyBS);
+			tx.insertTransfer(timestamp, senderKeyBS, receiverKeyBS, amount, senderSignature);
+			tx.appendApprovedTransfers(senderKeyBS, List.of(transfer));
+			tx.updateAccountAll(senderKeyBS, newBalance.getValue(), newBalance.getWts(), balanceSignature, senderListSizes,
+					senderSizesSignature, senderKeyBS, senderHeadSignature);
+			if (!toSelf) tx.updateAccountListSizes(receiverKeyBS, receiverListSizes, receiverSizesSignature, senderKeyBS);
+			tx.commit();
+		}
+	}
+
+	// Every transfer of the batch is checked on its own, but the balance and each account's list sizes are only
+	// checked once, against their values after the whole batch. Either all the transfers are stored or none is.
+	// The transfers join the sender's approved list in the order of the batch
+	public void sendAmountBatch(List<Transfer> transfers, List<ByteString> senderSignatures, Balance newBalance,
+			ByteString balanceSignature, ListSizes senderListSizes, ByteString senderSizesSignature,
+			ByteString senderHeadSignature, List<ByteString> receiverKeys, List<ListSizes> receiverListSizes,
+			List<ByteString> receiverSizesSignatures)
+			throws AccountDoesNotExistException, AmountTooLowException, BalanceTooLowException, SQLException,
+			InvalidTimestampException, InvalidKeySpecException,
+			SignatureVerificationFailedException, InvalidTransferSignatureException, InvalidNewBalanceException,
+			NoSuchAlgorithmException, InvalidNewListSizesException, InvalidTransferBatchException {
+		if (transfers.isEmpty() || transfers.size() != senderSignatures.size())
+			throw new InvalidTransferBatchException("Every transfer of the batch needs exactly one sender signature");
+		if (receiverKeys.size() != receiverListSizes.size() || receiverKeys.size() != receiverSizesSignatures.size())
+			throw new InvalidTransferBatchException("Every receiver of the batch needs exactly one signed list sizes");
+		ByteString senderKeyBS = transfers.get(0).getSenderKey();
+		Map<ByteString, Integer> newPendingPerReceiver = new HashMap<>();
+		Set<Transfer> distinctTransfers = new HashSet<>();
+		long totalAmount = 0;
+		for (int i = 0; i < transfers.size(); i++) {
+			Transfer transfer = transfers.get(i);
+			if (!transfer.getSenderKey().equals(senderKeyBS))
+				throw new InvalidTransferBatchException("Every transfer of the batch must have the same sender");
+			// Transfers are identified by timestamp, sender and receiver, so two of them can't share all three
+			if (!distinctTransfers.add(transfer.toBuilder().setAmount(0).build()))
+				throw new InvalidTransferBatchException("Transfers to the same receiver must have different timestamps");
+			verifySendAmount(transfer.getTimestamp(), transfer.getAmount(), senderKeyBS, transfer.getReceiverKey());
+			verifyTransferSignature(senderKeyBS, transfer, senderSignatures.get(i));
+			newPendingPerReceiver.merge(transfer.getReceiverKey(), 1, Integer::sum);
+			totalAmount += transfer.getAmount();
+		}
+		// Transfers to oneself are pending in the sender's own list sizes, which are signed along with its head
+		Integer newPendingToSelf = newPendingPerReceiver.remove(senderKeyBS);
+		if (!newPendingPerReceiver.keySet().equals(new HashSet<>(receiverKeys)) || newPendingPerReceiver.size() != receiverKeys.size())
+			throw new InvalidTransferBatchException("Every receiver of the batch must be listed exactly once");
+		verifyBalanceSignature(senderKeyBS, newBalance, balanceSignature);
+		verifyListSizesSignature(senderKeyBS, senderListSizes, senderSizesSignature);
+		verifyApprovedHeadSignature(senderKeyBS, senderListSizes, senderHeadSignature);
+		for (int i = 0; i < receiverKeys.size(); i++) {
+			verifyListSizesSignature(senderKeyBS, receiverListSizes.get(i), receiverSizesSignatures.get(i));
+		}
+
+		ByteString[] lockedKeys = new ByteString[receiverKeys.size() + 1];
+		lockedKeys[0] = senderKeyBS;
+		for (int i = 0; i < receiverKeys.size(); i++) {
+			lockedKeys[i + 1] = receiverKeys.get(i);
+		}
+		try (StripedLock.Stripes stripes = accountLocks.lock(lockedKeys);
+		     DatabaseTransaction tx = db.beginTransaction()) {
+			if (totalAmount >= tx.readAccountBalance(senderKeyBS)) throw new BalanceTooLowException();
+			verifyNewBalance(tx, senderKeyBS, newBalance, (int) -totalAmount);
+			verifyNewListSizes(tx, senderKeyBS, senderListSizes, (newPendingToSelf != null) ? newPendingToSelf : 0, transfers);
+			for (int i = 0; i < receiverKeys.size(); i++) {
+				ByteString receiverKeyBS = receiverKeys.get(i);
+				verifyNewListSizes(tx, receiverKeyBS, receiverListSizes.get(i), newPendingPerReceiver.get(receiverKeyBS), List.of());
+			}
+
+			tx.insertTransfers(transfers, senderSignatures);
+			tx.appendApprovedTransfers(senderKeyBS, transfers);
+			tx.updateAccountAll(senderKeyBS, newBalance.getValue(), newBalance.getWts(), balanceSignature, senderListSizes,
+					senderSizesSignature, senderKeyBS, senderHeadSignature);
+			for (int i = 0; i < receiverKeys.size(); i++) {
+				tx.updateAccountListSizes(receiverKeys.get(i), receiverListSizes.get(i), receiverSizesSignatures.get(i), senderKeyBS);
+			}
+			tx.commit();
+		}
 	}
 
 	private void verifyTransferSignature(ByteString publicKeyBS, Transfer transfer, ByteString signature)
@@ -121,96 +308,90 @@ public class Server {
 
 	private PublicKey publicKeyFromByteString(ByteString publicKeyBS)
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
-		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyBS.toByteArray()));
+		return publicKeyCache.get(publicKeyBS);
 	}
 
-	private void verifyNewBalance(ByteString userPublicKeyBS, Balance newBalance, ByteString signature, int expectedDiff)
-			throws SignatureVerificationFailedException, InvalidNewBalanceException, SQLException,
-			NoSuchAlgorithmException, InvalidKeySpecException {
-		BalanceRecord balanceRecord = db.readAccountBalanceRecord(userPublicKeyBS);
-		if (newBalance.getValue() != balanceRecord.getBalance().getValue() + expectedDiff) {
-			throw new InvalidNewBalanceException("New balance value does not match expected value");
-		}
-		if (newBalance.getWts() != balanceRecord.getBalance().getWts() + 1) {
-			throw new InvalidNewBalanceException("New balance timestamp does match expected timestamp");
-		}
+	private void verifyBalanceSignature(ByteString userPublicKeyBS, Balance newBalance, ByteString signature)
+			throws SignatureVerificationFailedException, InvalidNewBalanceException, NoSuchAlgorithmException,
+			InvalidKeySpecException {
 		PublicKey userPublicKey = publicKeyFromByteString(userPublicKeyBS);
 		if (!this.signatureManager.isBalanceSignatureValid(userPublicKey, signature.toByteArray(), newBalance)) {
 			throw new InvalidNewBalanceException("Balance signature does not match received balance");
 		}
 	}
 
-	private void verifyNewListSizesNewPending(ByteString publicKeyBS, ListSizes newListSizes, ByteString sizesSignature, ByteString signerPublicKeyBS)
-			throws SignatureVerificationFailedException, SQLException,
-			NoSuchAlgorithmException, InvalidKeySpecException, InvalidNewListSizesException {
-		ListSizesRecord listSizesRecord = db.readAccountListSizesRecord(publicKeyBS);
-		if (newListSizes.getPendingSize() != listSizesRecord.getListSizes().getPendingSize() + 1) {
-			throw new InvalidNewListSizesException("New pending transfers list size value does not match expected value");
-		}
-		if (newListSizes.getApprovedSize() != listSizesRecord.getListSizes().getApprovedSize()) {
-			throw new InvalidNewListSizesException("New approved transfers list size value does not match expected value");
-		}
-		if (newListSizes.getWts() != listSizesRecord.getListSizes().getWts() + 1) {
-			throw new InvalidNewListSizesException("New list sizes timestamp does not match expected timestamp");
-		}
+	private void verifyListSizesSignature(ByteString signerPublicKeyBS, ListSizes newListSizes, ByteString sizesSignature)
+			throws SignatureVerificationFailedException, NoSuchAlgorithmException, InvalidKeySpecException,
+			InvalidNewListSizesException {
 		PublicKey signerPublicKey = publicKeyFromByteString(signerPublicKeyBS);
 		if (!this.signatureManager.isListSizesSignatureValid(signerPublicKey, sizesSignature.toByteArray(), newListSizes)) {
 			throw new InvalidNewListSizesException("List sizes signature does not match received list sizes");
 		}
 	}
 
-	private void verifyNewListSizesNewApproved(ByteString publicKeyBS, ListSizes newListSizes, ByteString sizesSignature, ByteString signerPublicKeyBS)
-			throws SignatureVerificationFailedException, SQLException,
-			NoSuchAlgorithmException, InvalidKeySpecException, InvalidNewListSizesException {
-		ListSizesRecord listSizesRecord = db.readAccountListSizesRecord(publicKeyBS);
-		if (newListSizes.getPendingSize() != listSizesRecord.getListSizes().getPendingSize()) {
-			throw new InvalidNewListSizesException("New pending transfers list size value does not match expected value");
-		}
-		if (newListSizes.getApprovedSize() != listSizesRecord.getListSizes().getApprovedSize() + 1) {
-			throw new InvalidNewListSizesException("New approved transfers list size value does not match expected value");
+	// Only the owner signs the approved head apart from the list sizes, so clients can tell it apart from the heads
+	// copied along by whoever changed the list sizes last
+	private void verifyApprovedHeadSignature(ByteString ownerPublicKeyBS, ListSizes newListSizes, ByteString headSignature)
+			throws SignatureVerificationFailedException, NoSuchAlgorithmException, InvalidKeySpecException,
+			InvalidNewListSizesException {
+		PublicKey ownerPublicKey = publicKeyFromByteString(ownerPublicKeyBS);
+		if (!this.signatureManager.isApprovedHeadSignatureValid(ownerPublicKey, headSignature.toByteArray(), newListSizes)) {
+			throw new InvalidNewListSizesException("Approved head signature does not match received list sizes");
 		}
-		if (newListSizes.getWts() != listSizesRecord.getListSizes().getWts() + 1) {
-			throw new InvalidNewListSizesException("New list sizes timestamp does not match expected timestamp");
+	}
+
+	private void verifyNewBalance(DatabaseTransaction tx, ByteString userPublicKeyBS, Balance newBalance, int expectedDiff)
+			throws InvalidNewBalanceException, SQLException {
+		BalanceRecord balanceRecord = tx.readAccountBalanceRecord(userPublicKeyBS);
+		if (newBalance.getValue() != balanceRecord.getBalance().getValue() + expectedDiff) {
+			throw new InvalidNewBalanceException("New balance value does not match expected value");
 		}
-		PublicKey signerPublicKey = publicKeyFromByteString(signerPublicKeyBS);
-		if (!this.signatureManager.isListSizesSignatureValid(signerPublicKey, sizesSignature.toByteArray(), newListSizes)) {
-			throw new InvalidNewListSizesException("List sizes signature does not match received list sizes");
+		if (newBalance.getWts() != balanceRecord.getBalance().getWts() + 1) {
+			throw new InvalidNewBalanceException("New balance timestamp does match expected timestamp");
 		}
 	}
 
-	private void verifyNewListSizesPendingToApproved(ByteString publicKeyBS, ListSizes newListSizes, ByteString sizesSignature, ByteString signerPublicKeyBS)
-			throws SignatureVerificationFailedException, SQLException,
-			NoSuchAlgorithmException, InvalidKeySpecException, InvalidNewListSizesException {
-		ListSizesRecord listSizesRecord = db.readAccountListSizesRecord(publicKeyBS);
-		if (newListSizes.getPendingSize() != listSizesRecord.getListSizes().getPendingSize() - 1) {
+	// The pending part changes by the given number of transfers and the approved part by the newly approved ones
+	private void verifyNewListSizes(DatabaseTransaction tx, ByteString publicKeyBS, ListSizes newListSizes, int pendingDiff,
+			List<Transfer> newApproved) throws SQLException, InvalidNewListSizesException {
+		ListSizesRecord listSizesRecord = tx.readAccountListSizesRecord(publicKeyBS);
+		if (newListSizes.getPendingSize() != listSizesRecord.getListSizes().getPendingSize() + pendingDiff) {
 			throw new InvalidNewListSizesException("New pending transfers list size value does not match expected value");
 		}
-		if (newListSizes.getApprovedSize() != listSizesRecord.getListSizes().getApprovedSize() + 1) {
-			throw new InvalidNewListSizesException("New pending transfers list size value does not match expected value");
+		if (newListSizes.getApprovedSize() != listSizesRecord.getListSizes().getApprovedSize() + newApproved.size()) {
+			throw new InvalidNewListSizesException("New approved transfers list size value does not match expected value");
 		}
 		if (newListSizes.getWts() != listSizesRecord.getListSizes().getWts() + 1) {
 			throw new InvalidNewListSizesException("New list sizes timestamp does not match expected timestamp");
 		}
-		PublicKey signerPublicKey = publicKeyFromByteString(signerPublicKeyBS);
-		if (!this.signatureManager.isListSizesSignatureValid(signerPublicKey, sizesSignature.toByteArray(), newListSizes)) {
-			throw new InvalidNewListSizesException("List sizes signature does not match received list sizes");
+		verifyNewApprovedHead(listSizesRecord, newListSizes, newApproved);
+	}
+
+	// The signed head must extend the current one with exactly the newly approved transfers, in the order they are
+	// approved, so the owner signing it vouches for the whole approved list and not only for its size
+	private void verifyNewApprovedHead(ListSizesRecord listSizesRecord, ListSizes newListSizes, List<Transfer> newApproved)
+			throws InvalidNewListSizesException {
+		ByteString expectedHead = TransferChain.extend(listSizesRecord.getListSizes().getApprovedHead(), newApproved);
+		if (!newListSizes.getApprovedHead().equals(expectedHead)) {
+			throw new InvalidNewListSizesException("New approved transfers head does not match expected value");
 		}
 	}
 
 	private void verifySendAmount(long timestamp, int amount, ByteString senderKeyBS, ByteString receiverKeyBS)
-			throws AmountTooLowException, InvalidTimestampException, SQLException, AccountDoesNotExistException,
-			BalanceTooLowException {
+			throws AmountTooLowException, InvalidTimestampException, AccountDoesNotExistException, SQLException {
 		if (amount <= 0) throw new AmountTooLowException();
 		long currentTime = System.currentTimeMillis();
 		if (timestamp > currentTime || timestamp < currentTime - TIMESTAMP_TOLERANCE)
 			throw new InvalidTimestampException();
+		// Accounts are never deleted, so these don't need to be checked again under the lock
 		if (!db.checkAccountExists(senderKeyBS)) throw new AccountDoesNotExistException();
 		if (!db.checkAccountExists(receiverKeyBS)) throw new AccountDoesNotExistException();
-		if (amount >= db.readAccountBalance(senderKeyBS)) throw new BalanceTooLowException();
 	}
 
+	// Only the receiver's list sizes change: the sender's approved list already has the transfer since it was sent,
+	// and a transfer to oneself only stops being pending
 	public void receiveAmount(Transfer transfer, ByteString receiverSignature, Balance balance, ByteString balanceSignature,
-			ListSizes senderListSizes, ByteString senderSizesSignature, ListSizes receiverListSizes, ByteString receiverSizesSignature)
+			ListSizes receiverListSizes, ByteString receiverSizesSignature, ByteString receiverHeadSignature)
 			throws TransferNotFoundException, SQLException, NoSuchAlgorithmException, InvalidKeySpecException,
 			InvalidNewBalanceException, SignatureVerificationFailedException, InvalidTransferSignatureException,
 			InvalidNewListSizesException {
@@ -218,30 +399,97 @@ public class Server {
 		ByteString senderKeyBS = transfer.getSenderKey();
 		ByteString receiverKeyBS = transfer.getReceiverKey();
 		int amount = transfer.getAmount();
+		List<Transfer> newApproved = (senderKeyBS.equals(receiverKeyBS)) ? List.of() : List.of(transfer);
 
-		verifyReceiveAmount(timestamp, senderKeyBS, receiverKeyBS, amount);
 		verifyTransferSignature(receiverKeyBS, transfer, receiverSignature);
-		verifyNewBalance(receiverKeyBS, balance, balanceSignature, +amount);
-		verifyNewListSizesNewApproved(senderKeyBS, senderListSizes, senderSizesSignature, receiverKeyBS);
-		verifyNewListSizesPendingToApproved(receiverKeyBS, receiverListSizes, receiverSizesSignature, receiverKeyBS);
+		verifyBalanceSignature(receiverKeyBS, balance, balanceSignature);
+		verifyListSizesSignature(receiverKeyBS, receiverListSizes, receiverSizesSignature);
+		verifyApprovedHeadSignature(receiverKeyBS, receiverListSizes, receiverHeadSignature);
 
-		// TRANSACTION
-		db.updateTransferToApproved(timestamp, senderKeyBS, receiverKeyBS, receiverSignature);
-		db.updateAccountAll(receiverKeyBS, balance.getValue(), balance.getWts(), balanceSignature, receiverListSizes.getPendingSize(),
-				receiverListSizes.getApprovedSize(), receiverListSizes.getWts(), receiverSizesSignature, receiverKeyBS);
-		db.updateAccountListSizes(senderKeyBS, senderListSizes.getPendingSize(), senderListSizes.getApprovedSize(), senderListSizes.getWts(),
-				senderSizesSignature, receiverKeyBS);
+		try (StripedLock.Stripes stripes = accountLocks.lock(receiverKeyBS);
+		     DatabaseTransaction tx = db.beginTransaction()) {
+			verifyReceiveAmount(tx, timestamp, senderKeyBS, receiverKeyBS, amount);
+			verifyNewBalance(tx, receiverKeyBS, balance, +amount);
+			verifyNewListSizes(tx, receiverKeyBS, receiverListSizes, -1, newApproved);
+
+			tx.updateTransferToApproved(timestamp, senderKeyBS, receiverKeyBS, receiverSignature);
+			tx.appendApprovedTransfers(receiverKeyBS, newApproved);
+			tx.updateAccountAll(receiverKeyBS, balance.getValue(), balance.getWts(), balanceSignature, receiverListSizes,
+					receiverSizesSignature, receiverKeyBS, receiverHeadSignature);
+			tx.commit();
+		}
 	}
 
-	private void verifyReceiveAmount(long timestamp, ByteString senderKeyBS, ByteString receiverKeyBS, int amount)
+	// Approves every transfer of the batch or none of them. The balance and list sizes are only checked once,
+	// against their values after all the transfers are approved
+	public void receiveAmountBatch(List<Transfer> transfers, List<ByteString> receiverSignatures, Balance balance,
+			ByteString balanceSignature, ListSizes receiverListSizes, ByteString receiverSizesSignature,
+			ByteString receiverHeadSignature) throws TransferNotFoundException, SQLException, NoSuchAlgorithmException, InvalidKeySpecException,
+			InvalidNewBalanceException, SignatureVerificationFailedException, InvalidTransferSignatureException,
+			InvalidNewListSizesException, InvalidTransferBatchException {
+		if (transfers.isEmpty() || transfers.size() != receiverSignatures.size())
+			throw new InvalidTransferBatchException("Every transfer of the batch needs exactly one receiver signature");
+		ByteString receiverKeyBS = transfers.get(0).getReceiverKey();
+		// Transfers to oneself were chained when they were sent, the others join the list in the order of the batch
+		List<Transfer> newApproved = new ArrayList<>();
+		Set<Transfer> distinctTransfers = new HashSet<>();
+		long totalAmount = 0;
+		for (int i = 0; i < transfers.size(); i++) {
+			Transfer transfer = transfers.get(i);
+			if (!transfer.getReceiverKey().equals(receiverKeyBS))
+				throw new InvalidTransferBatchException("Every transfer of the batch must have the same receiver");
+			if (!distinctTransfers.add(transfer.toBuilder().setAmount(0).build()))
+				throw new InvalidTransferBatchException("The same transfer can't be approved twice");
+			verifyTransferSignature(receiverKeyBS, transfer, receiverSignatures.get(i));
+			if (!transfer.getSenderKey().equals(receiverKeyBS)) newApproved.add(transfer);
+			totalAmount += transfer.getAmount();
+		}
+		if (totalAmount > Integer.MAX_VALUE)
+			throw new InvalidNewBalanceException("New balance value does not match expected value");
+		verifyBalanceSignature(receiverKeyBS, balance, balanceSignature);
+		verifyListSizesSignature(receiverKeyBS, receiverListSizes, receiverSizesSignature);
+		verifyApprovedHeadSignature(receiverKeyBS, receiverListSizes, receiverHeadSignature);
+
+		try (StripedLock.Stripes stripes = accountLocks.lock(receiverKeyBS);
+		     DatabaseTransaction tx = db.beginTransaction()) {
+			verifyNewBalance(tx, receiverKeyBS, balance, (int) totalAmount);
+			verifyNewListSizes(tx, receiverKeyBS, receiverListSizes, -transfers.size(), newApproved);
+
+			// Only pending transfers are updated, so a missing one shows up in the count and the whole batch rolls back
+			if (tx.updateTransfersToApproved(receiverKeyBS, transfers, receiverSignatures) != transfers.size())
+				throw new TransferNotFoundException();
+			tx.appendApprovedTransfers(receiverKeyBS, newApproved);
+			tx.updateAccountAll(receiverKeyBS, balance.getValue(), balance.getWts(), balanceSignature, receiverListSizes,
+					receiverSizesSignature, receiverKeyBS, receiverHeadSignature);
+			tx.commit();
+		}
+	}
+
+	private void verifyReceiveAmount(DatabaseTransaction tx, long timestamp, ByteString senderKeyBS, ByteString receiverKeyBS, int amount)
 			throws SQLException, TransferNotFoundException {
-		if (!db.checkPendingTransferExists(timestamp, senderKeyBS, receiverKeyBS, amount))
+		if (!tx.checkPendingTransferExists(timestamp, senderKeyBS, receiverKeyBS, amount))
 			throw new TransferNotFoundException();
 	}
 
-	public TransfersRecord getApprovedTransfers(ByteString publicKey)
-			throws AccountDoesNotExistException, SQLException {
+	public ApprovedTransfersReader openApprovedTransfersReader(ByteString publicKey, int since, ByteString prefixHash)
+			throws AccountDoesNotExistException, SQLException, InvalidAuditCursorException {
+		if (!db.checkAccountExists(publicKey)) throw new AccountDoesNotExistException();
+		verifyAuditCursor(publicKey, since, prefixHash);
+		return db.openApprovedTransfersReader(publicKey, since);
+	}
+
+	public TransfersRecord getApprovedTransfers(ByteString publicKey, int since, ByteString prefixHash)
+			throws AccountDoesNotExistException, SQLException, InvalidAuditCursorException {
 		if (!db.checkAccountExists(publicKey)) throw new AccountDoesNotExistException();
-		return db.getApprovedTransfersOfAccount(publicKey);
+		verifyAuditCursor(publicKey, since, prefixHash);
+		return db.getApprovedTransfersOfAccount(publicKey, since);
+	}
+
+	// A prefix of the approved list never changes, so a cursor that doesn't match the chain at its position was taken
+	// against another history and only the transfers after it would not make a valid list
+	private void verifyAuditCursor(ByteString publicKey, int since, ByteString prefixHash)
+			throws SQLException, InvalidAuditCursorException {
+		if (since < 0 || !prefixHash.equals(db.getApprovedHeadAt(publicKey, since)))
+			throw new InvalidAuditCursorException();
 	}
 }
@@ -1,12 +1,26 @@
 package pt.tecnico.sec.bftb.server;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 import pt.tecnico.sec.bftb.server.exceptions.ServerInitializationFailedException;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ServerMain {
+	private static final int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
+	// Workers mostly wait on SQLite, so there are several per core
+	private static final int NUMBER_OF_WORKERS = Math.max(8, 4 * NUMBER_OF_CORES);
+	private static final int MAX_QUEUED_CALLS = 256;
+	private static final int MAX_VIRTUAL_CALLS = 4096;
 
 	public static void main(String[] args)
 			throws IOException, InterruptedException, ServerInitializationFailedException {
@@ -19,9 +33,9 @@ public class ServerMain {
 		}
 
 		// Check number of arguments
-		if (args.length != 3) {
+		if (args.length < 3 || args.length > 5) {
 			System.err.println("Invalid number of arguments. Aborting!");
-			System.err.println("Usage: ServerMain <port> <n> <f>");
+			System.err.println("Usage: ServerMain <port> <f> <n> [durability] [executor]");
 			return;
 		}
 
@@ -36,18 +50,80 @@ public class ServerMain {
 		int n = Integer.parseInt(args[2]); // Replica index
 		if (!((n >= 0) && (n < (3 * f + 1)))) {
 			System.err.println("Invalid replica index: n >= 0 && n < 3f + 1");
-			System.err.println("Usage: ServerMain <port> <n> <f>");
+			System.err.println("Usage: ServerMain <port> <f> <n> [durability] [executor]");
 			return;
 		}
 
 		port = port + n;
 
+		DurabilityMode durabilityMode = DurabilityMode.DEFAULT;
+		if (args.length >= 4 && !args[3].isBlank()) {
+			try {
+				durabilityMode = DurabilityMode.fromString(args[3]);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid durability mode: default, wal or group_commit");
+				return;
+			}
+		}
+		System.out.println("Durability mode: " + durabilityMode);
+
+		ExecutorMode executorMode = ExecutorMode.DEFAULT;
+		if (args.length == 5 && !args[4].isBlank()) {
+			try {
+				executorMode = ExecutorMode.fromString(args[4]);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Invalid executor mode: default, virtual, bounded or offload");
+				return;
+			}
+		}
+		System.out.println("Executor mode: " + executorMode);
+
 		// Create Service
-		final ServerServiceImpl service = new ServerServiceImpl(n);
+		final ServerServiceImpl service = new ServerServiceImpl(n, durabilityMode);
 		// Setup and start server
-		Server server = ServerBuilder.forPort(port).addService(service).build();
+		ServerBuilder<?> builder = ServerBuilder.forPort(port);
+		ServerServiceDefinition definition = ServerInterceptors.intercept(service, service.getLoadMonitor());
+		if (executorMode != ExecutorMode.DEFAULT) {
+			ExecutorService workers = createWorkers(executorMode);
+			if (workers == null) {
+				System.err.println("The virtual executor needs Java 21 or later");
+				return;
+			}
+			int maxCalls = (executorMode == ExecutorMode.VIRTUAL) ? MAX_VIRTUAL_CALLS : NUMBER_OF_WORKERS + MAX_QUEUED_CALLS;
+			if (workers instanceof ThreadPoolExecutor pool) service.getLoadMonitor().addQueue(() -> pool.getQueue().size());
+			if (executorMode == ExecutorMode.OFFLOAD)
+				service.getServerSignatureManager().offloadCryptoTo(Executors.newFixedThreadPool(NUMBER_OF_CORES, daemonThreads("crypto-%d")));
+			// Calls are handed to the workers by the admission control, not by gRPC
+			builder.directExecutor();
+			definition = ServerInterceptors.intercept(definition, new AdmissionControl(workers, maxCalls));
+		}
+		// Outermost, so calls rejected by the admission control are counted too
+		definition = ServerInterceptors.intercept(definition, new RpcMetrics(service.getMetrics()));
+		Server server = builder.addService(definition).build();
 		server.start();
 		System.out.println("Server started");
 		server.awaitTermination();
 	}
+
+	// Null if virtual threads are not available in this Java version
+	private static ExecutorService createWorkers(ExecutorMode executorMode) {
+		if (executorMode == ExecutorMode.VIRTUAL) {
+			try {
+				// Looked up at runtime, as the project is still built for Java 17
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+		// The admission control never lets more calls in than the queue has room for
+		return new ThreadPoolExecutor(NUMBER_OF_WORKERS, NUMBER_OF_WORKERS, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), daemonThreads("worker-%d"));
+	}
+
+	private static ThreadFactory daemonThreads(String nameFormat) {
+		return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+	}
 }
@@ -7,12 +7,11 @@ import pt.tecnico.sec.bftb.grpc.Server.*;
 import pt.tecnico.sec.bftb.grpc.ServerServiceGrpc;
 import pt.tecnico.sec.bftb.server.exceptions.*;
 
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import static io.grpc.Status.*;
@@ -20,27 +19,86 @@ import static io.grpc.Status.*;
 public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
 	public static final String INVALID_SIGNATURE = "Invalid signature";
+	public static final String INCORRECT_PUZZLE_SOLUTION = "Puzzle solution is incorrect";
 	private static final String DEADLINE_EXCEEDED_DESC = "Timed out!";
+	private static final byte[] EMPTY = new byte[0];
+	private static final int DEFAULT_AUDIT_PAGE_SIZE = 256;
+	private static final int MAX_AUDIT_PAGE_SIZE = 1024;
 	private final Server server;
 
 	public ServerServiceImpl(int replicaID) throws ServerInitializationFailedException {
-		this.server = new Server(replicaID);
+		this(replicaID, DurabilityMode.DEFAULT);
+	}
+
+	public ServerServiceImpl(int replicaID, DurabilityMode durabilityMode) throws ServerInitializationFailedException {
+		this.server = new Server(replicaID, durabilityMode);
+	}
+
+	public ServerServiceImpl(Server server) {
+		this.server = server;
 	}
 
 	SignatureManager getServerSignatureManager() {
 		return server.getSignatureManager();
 	}
 
-	private boolean checkRequestSignature(ByteString publicKeyBS, ByteString signature, byte[] content, StreamObserver<?> responseObserver)
-			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException {
-		PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyBS.toByteArray()));
-		if (getServerSignatureManager().isNonceSignatureInvalid(publicKey, signature.toByteArray(), content)) {
-			responseObserver.onError(INVALID_ARGUMENT.withDescription(INVALID_SIGNATURE).asRuntimeException());
+	// Installed as an interceptor of the service, so it sees every call the replica is handling
+	public LoadMonitor getLoadMonitor() {
+		return server.getLoadMonitor();
+	}
+
+	public Metrics getMetrics() {
+		return server.getMetrics();
+	}
+
+	// A request signed over a stale nonce is rejected with FAILED_PRECONDITION, so the client knows to ask for a new one.
+	// A request with a session counter is authenticated by the session's MAC instead of a signature
+	private boolean checkRequestSignature(ByteString publicKeyBS, ByteString signature, long sessionCounter, byte[] content,
+			StreamObserver<?> responseObserver)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, SignatureVerificationFailedException,
+			AccountDoesNotHaveNonceException, AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		boolean invalid;
+		if (sessionCounter != 0) {
+			invalid = server.getSessionManager().isRequestMacInvalid(publicKeyBS, sessionCounter, signature.toByteArray(), content);
+		}
+		else {
+			PublicKey publicKey = server.getPublicKeyCache().get(publicKeyBS);
+			invalid = getServerSignatureManager().isNonceSignatureInvalid(publicKey, signature.toByteArray(), content);
+		}
+		if (invalid) {
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(INVALID_SIGNATURE).asRuntimeException());
 			return false;
 		}
 		else return true;
 	}
 
+	// Also used by the FaultInjector, to sign the responses of a Byzantine replica
+	byte[] signResponse(ByteString publicKeyBS, long sessionCounter, byte[] cypheredNonceToServer, byte[] content)
+			throws CypherFailedException, AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		if (sessionCounter != 0) return server.getSessionManager().macResponse(publicKeyBS, sessionCounter, content);
+		long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
+		return getServerSignatureManager().sign(nonceToServer, content);
+	}
+
+	// Issued with every successful response, so the client's next request doesn't need a get_nonce round-trip.
+	// Session requests don't use nonces, so they only get the puzzle
+	private Challenge generateNextChallenge(ByteString publicKeyBS, long sessionCounter)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, CypherFailedException {
+		Challenge.Builder builder = Challenge.newBuilder();
+		if (sessionCounter == 0) {
+			PublicKey publicKey = server.getPublicKeyCache().get(publicKeyBS);
+			byte[] nonce = getServerSignatureManager().generateCypheredNonce(publicKey);
+			builder.setCypheredNonce(ByteString.copyFrom(nonce));
+		}
+		builder.setPuzzle(generatePuzzle(publicKeyBS));
+		return builder.build();
+	}
+
+	// The harder the replica is working, and the more requests the key has been making, the harder the puzzle
+	private Puzzle generatePuzzle(ByteString publicKeyBS) throws NoSuchAlgorithmException {
+		return getServerSignatureManager().generatePuzzle(publicKeyBS, server.getLoadMonitor().searchRangeFor(publicKeyBS));
+	}
+
 	@Override
 	public void openAccount(SignedOpenAccountRequest request, StreamObserver<SignedOpenAccountResponse> responseObserver) {
 		if (Context.current().isCancelled()) {
@@ -55,26 +113,32 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			ByteString balanceSignature = content.getBalanceSignature();
 			ListSizes listSizes = content.getListSizes();
 			ByteString listSizesSignature = content.getListSizesSignature();
+			ByteString approvedHeadSignature = content.getApprovedHeadSignature();
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature(publicKeyBS, request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature(publicKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute the request
-			server.openAccount(publicKeyBS, initialBalance, balanceSignature, listSizes, listSizesSignature);
+			server.openAccount(publicKeyBS, initialBalance, balanceSignature, listSizes, listSizesSignature, approvedHeadSignature);
 			// Build Signed Response
 			SignedOpenAccountResponse.Builder signedBuilder = SignedOpenAccountResponse.newBuilder();
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer);
+			byte[] serverSignature = signResponse(publicKeyBS, request.getSessionCounter(), cypheredNonceToServer, EMPTY);
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(publicKeyBS, request.getSessionCounter()));
 			SignedOpenAccountResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
 			responseObserver.onCompleted();
 		}
 		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
-		       SignatureVerificationFailedException | SQLException e) {
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 		catch (AccountAlreadyExistsException e) {
 			e.printStackTrace();
 			responseObserver.onError(ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
@@ -98,12 +162,16 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			ByteString receiverKeyBS = content.getReceiverKey();
 			boolean isSender = content.getIsSender();
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature((isSender) ? senderKeyBS : receiverKeyBS, request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature((isSender) ? senderKeyBS : receiverKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute the request
 			BalanceRecord balanceRecord = server.readBalance((isSender) ? senderKeyBS : receiverKeyBS);
 			ListSizesRecord senderListSizesRecord = server.readListSizes(senderKeyBS);
 			ListSizesRecord receiverListSizesRecord = server.readListSizes(receiverKeyBS);
+			List<ListSizesRecord> batchListSizesRecords = new ArrayList<>(content.getBatchAccountKeysCount());
+			for (ByteString batchAccountKeyBS : content.getBatchAccountKeysList()) {
+				batchListSizesRecords.add(server.readListSizes(batchAccountKeyBS));
+			}
 			// Build Response
 			ReadForWriteResponse.Builder builder = ReadForWriteResponse.newBuilder();
 			builder.setBalance(balanceRecord.getBalance());
@@ -114,23 +182,33 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			builder.setReceiverListSizes(receiverListSizesRecord.getListSizes());
 			builder.setReceiverListSizesSignature(receiverListSizesRecord.getSignature());
 			builder.setReceiverListSizesSigner(receiverListSizesRecord.getSignerPublicKeyBS());
+			for (ListSizesRecord record : batchListSizesRecords) {
+				builder.addBatchListSizes(record.getListSizes());
+				builder.addBatchListSizesSignatures(record.getSignature());
+				builder.addBatchListSizesSigners(record.getSignerPublicKeyBS());
+			}
 			ReadForWriteResponse response = builder.build();
 			// Build Signed Response
 			SignedReadForWriteResponse.Builder signedBuilder = SignedReadForWriteResponse.newBuilder();
 			signedBuilder.setContent(response);
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer, response.toByteArray());
+			byte[] serverSignature = signResponse((isSender) ? senderKeyBS : receiverKeyBS, request.getSessionCounter(), cypheredNonceToServer, response.toByteArray());
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge((isSender) ? senderKeyBS : receiverKeyBS, request.getSessionCounter()));
 			SignedReadForWriteResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
 			responseObserver.onCompleted();
 		}
 		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
-		       SignatureVerificationFailedException | SQLException e) {
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 		catch (AccountDoesNotExistException e) {
 			e.printStackTrace();
 			responseObserver.onError(ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
@@ -150,28 +228,37 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			ByteString senderTransferSignature = content.getSenderTransferSignature();
 			Balance newBalance = content.getNewBalance();
 			ByteString balanceSignature = content.getBalanceSignature();
+			ListSizes senderListSizes = content.getSenderListSizes();
+			ByteString senderSizesSignature = content.getSenderSizesSignature();
+			ByteString senderHeadSignature = content.getSenderHeadSignature();
 			ListSizes receiverListSizes = content.getReceiverListSizes();
 			ByteString receiverSizesSignature = content.getReceiverSizesSignature();
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature(newTransfer.getSenderKey(), request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature(newTransfer.getSenderKey(), request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute Request
-			server.sendAmount(newTransfer, senderTransferSignature, newBalance, balanceSignature, receiverListSizes, receiverSizesSignature);
+			server.sendAmount(newTransfer, senderTransferSignature, newBalance, balanceSignature, senderListSizes, senderSizesSignature,
+					senderHeadSignature, receiverListSizes, receiverSizesSignature);
 			// Build Signed Response
 			SignedSendAmountResponse.Builder signedBuilder = SignedSendAmountResponse.newBuilder();
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer);
+			byte[] serverSignature = signResponse(newTransfer.getSenderKey(), request.getSessionCounter(), cypheredNonceToServer, EMPTY);
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(newTransfer.getSenderKey(), request.getSessionCounter()));
 			SignedSendAmountResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
 			responseObserver.onCompleted();
 		}
 		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
-		       SignatureVerificationFailedException | SQLException e) {
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 		catch (AmountTooLowException | AccountDoesNotExistException | BalanceTooLowException |
 		       InvalidTimestampException | InvalidTransferSignatureException | InvalidNewBalanceException |
 		       InvalidNewListSizesException e) {
@@ -180,6 +267,53 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 		}
 	}
 
+	@Override
+	public void sendAmountBatch(SignedSendAmountBatchRequest request, StreamObserver<SignedSendAmountBatchResponse> responseObserver) {
+		if (Context.current().isCancelled()) {
+			responseObserver.onError(DEADLINE_EXCEEDED.withDescription(DEADLINE_EXCEEDED_DESC).asRuntimeException());
+			return;
+		}
+		try {
+			// Parse Request & Check its Validity
+			SendAmountBatchRequest content = request.getContent();
+			if (content.getTransfersCount() == 0) throw new InvalidTransferBatchException();
+			ByteString senderKeyBS = content.getTransfers(0).getSenderKey();
+			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
+			if (!checkRequestSignature(senderKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
+				return;
+			// Execute Request
+			server.sendAmountBatch(content.getTransfersList(), content.getSenderTransferSignaturesList(), content.getNewBalance(),
+					content.getBalanceSignature(), content.getSenderListSizes(), content.getSenderSizesSignature(),
+					content.getSenderHeadSignature(), content.getReceiverKeysList(), content.getReceiverListSizesList(),
+					content.getReceiverSizesSignaturesList());
+			// Build Signed Response
+			SignedSendAmountBatchResponse.Builder signedBuilder = SignedSendAmountBatchResponse.newBuilder();
+			byte[] serverSignature = signResponse(senderKeyBS, request.getSessionCounter(), cypheredNonceToServer, EMPTY);
+			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(senderKeyBS, request.getSessionCounter()));
+			SignedSendAmountBatchResponse signedResponse = signedBuilder.build();
+			// Send Response
+			responseObserver.onNext(signedResponse);
+			responseObserver.onCompleted();
+		}
+		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
+			e.printStackTrace();
+			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AmountTooLowException | AccountDoesNotExistException | BalanceTooLowException |
+		       InvalidTimestampException | InvalidTransferSignatureException | InvalidNewBalanceException |
+		       InvalidNewListSizesException | InvalidTransferBatchException e) {
+			e.printStackTrace();
+			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		}
+	}
+
 	@Override
 	public void checkAccount(SignedCheckAccountRequest request, StreamObserver<SignedCheckAccountResponse> responseObserver) {
 		if (Context.current().isCancelled()) {
@@ -193,11 +327,11 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			// Check if the puzzle solution is correct as soon as possible to avoid unnecessary computation
 			long puzzleSolution = content.getPuzzleSolution();
 			if (!getServerSignatureManager().isPuzzleSolutionCorrect(publicKeyBS, puzzleSolution)) {
-				responseObserver.onError(INVALID_ARGUMENT.withDescription("Puzzle solution is incorrect").asRuntimeException());
+				responseObserver.onError(FAILED_PRECONDITION.withDescription(INCORRECT_PUZZLE_SOLUTION).asRuntimeException());
 				return;
 			}
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature(publicKeyBS, request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature(publicKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute the request
 			BalanceRecord balanceRecord = server.readBalance(publicKeyBS);
@@ -223,19 +357,24 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			// Build Signed Response
 			SignedCheckAccountResponse.Builder signedBuilder = SignedCheckAccountResponse.newBuilder();
 			signedBuilder.setContent(response);
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer, signedBuilder.getContent().toByteArray());
+			byte[] serverSignature = signResponse(publicKeyBS, request.getSessionCounter(), cypheredNonceToServer, signedBuilder.getContent().toByteArray());
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(publicKeyBS, request.getSessionCounter()));
 			SignedCheckAccountResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
 			responseObserver.onCompleted();
 		}
 		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
-		       SignatureVerificationFailedException | SQLException | AccountDoesNotHavePuzzleException e) {
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException | AccountDoesNotHavePuzzleException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 		catch (AccountDoesNotExistException e) {
 			e.printStackTrace();
 			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
@@ -255,30 +394,35 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			ByteString receiverTransferSignature = content.getReceiverTransferSignature();
 			Balance newBalance = content.getNewBalance();
 			ByteString balanceSignature = content.getBalanceSignature();
-			ListSizes senderListSizes = content.getSenderListSizes();
-			ByteString senderSizesSignature = content.getSenderSizesSignature();
 			ListSizes receiverListSizes = content.getReceiverListSizes();
 			ByteString receiverSizesSignature = content.getReceiverSizesSignature();
+			ByteString receiverHeadSignature = content.getReceiverHeadSignature();
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature(transfer.getReceiverKey(), request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature(transfer.getReceiverKey(), request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute Request
-			server.receiveAmount(transfer, receiverTransferSignature, newBalance, balanceSignature, senderListSizes, senderSizesSignature, receiverListSizes, receiverSizesSignature);
+			server.receiveAmount(transfer, receiverTransferSignature, newBalance, balanceSignature, receiverListSizes, receiverSizesSignature,
+					receiverHeadSignature);
 			// Build Signed Response
 			SignedReceiveAmountResponse.Builder signedBuilder = SignedReceiveAmountResponse.newBuilder();
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer);
+			byte[] serverSignature = signResponse(transfer.getReceiverKey(), request.getSessionCounter(), cypheredNonceToServer, EMPTY);
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(transfer.getReceiverKey(), request.getSessionCounter()));
 			SignedReceiveAmountResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
 			responseObserver.onCompleted();
 		}
 		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
-		       SignatureVerificationFailedException | SQLException e) {
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 		catch (TransferNotFoundException | InvalidNewBalanceException | InvalidTransferSignatureException |
 		       InvalidNewListSizesException e) {
 			e.printStackTrace();
@@ -286,6 +430,51 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 		}
 	}
 
+	@Override
+	public void receiveAmountBatch(SignedReceiveAmountBatchRequest request, StreamObserver<SignedReceiveAmountBatchResponse> responseObserver) {
+		if (Context.current().isCancelled()) {
+			responseObserver.onError(DEADLINE_EXCEEDED.withDescription(DEADLINE_EXCEEDED_DESC).asRuntimeException());
+			return;
+		}
+		try {
+			// Parse Request & Check its Validity
+			ReceiveAmountBatchRequest content = request.getContent();
+			if (content.getTransfersCount() == 0) throw new InvalidTransferBatchException();
+			ByteString receiverKeyBS = content.getTransfers(0).getReceiverKey();
+			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
+			if (!checkRequestSignature(receiverKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
+				return;
+			// Execute Request
+			server.receiveAmountBatch(content.getTransfersList(), content.getReceiverTransferSignaturesList(), content.getNewBalance(),
+					content.getBalanceSignature(), content.getReceiverListSizes(), content.getReceiverSizesSignature(),
+					content.getReceiverHeadSignature());
+			// Build Signed Response
+			SignedReceiveAmountBatchResponse.Builder signedBuilder = SignedReceiveAmountBatchResponse.newBuilder();
+			byte[] serverSignature = signResponse(receiverKeyBS, request.getSessionCounter(), cypheredNonceToServer, EMPTY);
+			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(receiverKeyBS, request.getSessionCounter()));
+			SignedReceiveAmountBatchResponse signedResponse = signedBuilder.build();
+			// Send Response
+			responseObserver.onNext(signedResponse);
+			responseObserver.onCompleted();
+		}
+		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
+		       SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
+			e.printStackTrace();
+			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (TransferNotFoundException | InvalidNewBalanceException | InvalidTransferSignatureException |
+		       InvalidNewListSizesException | InvalidTransferBatchException e) {
+			e.printStackTrace();
+			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		}
+	}
+
 	@Override
 	public void audit(SignedAuditRequest request, StreamObserver<SignedAuditResponse> responseObserver) {
 		if (Context.current().isCancelled()) {
@@ -299,17 +488,17 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			// Check if the puzzle solution is correct as soon as possible to avoid unnecessary computation
 			long puzzleSolution = content.getPuzzleSolution();
 			if (!getServerSignatureManager().isPuzzleSolutionCorrect(publicKeyBS, puzzleSolution)) {
-				responseObserver.onError(INVALID_ARGUMENT.withDescription("Puzzle solution is incorrect").asRuntimeException());
+				responseObserver.onError(FAILED_PRECONDITION.withDescription(INCORRECT_PUZZLE_SOLUTION).asRuntimeException());
 				return;
 			}
 			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
-			if (!checkRequestSignature(publicKeyBS, request.getSignature(), content.toByteArray(), responseObserver))
+			if (!checkRequestSignature(publicKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
 				return;
 			// Execute the request
-			TransfersRecord transfersRecord = server.getApprovedTransfers(publicKeyBS);
+			// Only the transfers after the client's cursor are sent, the cursor is echoed so the signature covers it
+			TransfersRecord transfersRecord = server.getApprovedTransfers(publicKeyBS, content.getSince().getApprovedSize(),
+					content.getSince().getPrefixHash());
 			List<Transfer> approvedTransfers = transfersRecord.getTransfers();
-			List<ByteString> senderSignatures = transfersRecord.getSenderSignatures();
-			List<ByteString> receiverSignatures = transfersRecord.getReceiverSignatures();
 			ListSizesRecord listSizesRecord = server.readListSizes(publicKeyBS);
 			ListSizes listSizes = listSizesRecord.getListSizes();
 			ByteString sizesSignature = listSizesRecord.getSignature();
@@ -317,18 +506,24 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			// Build Response
 			AuditResponse.Builder builder = AuditResponse.newBuilder();
 			builder.addAllApprovedTransfers(approvedTransfers);
-			builder.addAllSenderTransferSignatures(senderSignatures);
-			builder.addAllReceiverTransferSignatures(receiverSignatures);
+			// The signed head of the approved list already vouches for every transfer in it, so their own
+			// signatures are only sent to clients that still check them one by one
+			if (content.getWithTransferSignatures()) {
+				builder.addAllSenderTransferSignatures(transfersRecord.getSenderSignatures());
+				builder.addAllReceiverTransferSignatures(transfersRecord.getReceiverSignatures());
+			}
 			builder.setListSizes(listSizes);
 			builder.setListSizesSignature(sizesSignature);
 			builder.setListSizesSigner(sizesSigner);
+			builder.setApprovedHeadSignature(listSizesRecord.getApprovedHeadSignature());
+			if (content.hasSince()) builder.setSince(content.getSince());
 			AuditResponse response = builder.build();
 			// Build Signed Response
 			SignedAuditResponse.Builder signedBuilder = SignedAuditResponse.newBuilder();
 			signedBuilder.setContent(response);
-			long nonceToServer = getServerSignatureManager().decypherNonce(cypheredNonceToServer);
-			byte[] serverSignature = getServerSignatureManager().sign(nonceToServer, signedBuilder.getContent().toByteArray());
+			byte[] serverSignature = signResponse(publicKeyBS, request.getSessionCounter(), cypheredNonceToServer, signedBuilder.getContent().toByteArray());
 			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(publicKeyBS, request.getSessionCounter()));
 			SignedAuditResponse signedResponse = signedBuilder.build();
 			// Send Response
 			responseObserver.onNext(signedResponse);
@@ -336,10 +531,92 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 		}
 		catch (AccountDoesNotExistException | CypherFailedException | InvalidKeySpecException |
 		       NoSuchAlgorithmException | SignatureVerificationFailedException | SQLException |
-		       AccountDoesNotHavePuzzleException e) {
+		       SessionEstablishmentFailedException e) {
 			e.printStackTrace();
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException | AccountDoesNotHavePuzzleException |
+		       InvalidAuditCursorException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
+	}
+
+	// Sends the history in signed pages read from a single snapshot, each one chained to the hash of the previous
+	// one, so neither side ever needs the whole history in memory. Only the last page carries the list sizes.
+	// With a cursor only the transfers after it are sent, so repeated audits cost as much as what changed since
+	@Override
+	public void auditStream(SignedAuditStreamRequest request, StreamObserver<SignedAuditPage> responseObserver) {
+		if (Context.current().isCancelled()) {
+			responseObserver.onError(DEADLINE_EXCEEDED.withDescription(DEADLINE_EXCEEDED_DESC).asRuntimeException());
+			return;
+		}
+		try {
+			// Parse Request & Check its Validity
+			AuditStreamRequest content = request.getContent();
+			ByteString publicKeyBS = content.getPublicKey();
+			// Check if the puzzle solution is correct as soon as possible to avoid unnecessary computation
+			long puzzleSolution = content.getPuzzleSolution();
+			if (!getServerSignatureManager().isPuzzleSolutionCorrect(publicKeyBS, puzzleSolution)) {
+				responseObserver.onError(FAILED_PRECONDITION.withDescription(INCORRECT_PUZZLE_SOLUTION).asRuntimeException());
+				return;
+			}
+			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
+			if (!checkRequestSignature(publicKeyBS, request.getSignature(), request.getSessionCounter(), content.toByteArray(), responseObserver))
+				return;
+			int pageSize = (content.getPageSize() > 0) ? Math.min(content.getPageSize(), MAX_AUDIT_PAGE_SIZE) : DEFAULT_AUDIT_PAGE_SIZE;
+			// Execute the request
+			try (ApprovedTransfersReader reader = server.openApprovedTransfersReader(publicKeyBS, content.getSince().getApprovedSize(),
+					content.getSince().getPrefixHash())) {
+				ListSizesRecord listSizesRecord = reader.readListSizes();
+				ByteString previousPageHash = ByteString.EMPTY;
+				boolean lastPage = false;
+				while (!lastPage) {
+					if (Context.current().isCancelled()) return;
+					TransfersRecord transfersRecord = reader.nextPage(pageSize);
+					lastPage = transfersRecord.getTransfers().size() < pageSize;
+					// Build Page
+					AuditPage.Builder builder = AuditPage.newBuilder();
+					builder.addAllApprovedTransfers(transfersRecord.getTransfers());
+					if (content.getWithTransferSignatures()) {
+						builder.addAllSenderTransferSignatures(transfersRecord.getSenderSignatures());
+						builder.addAllReceiverTransferSignatures(transfersRecord.getReceiverSignatures());
+					}
+					builder.setPreviousPageHash(previousPageHash);
+					builder.setLastPage(lastPage);
+					if (content.hasSince()) builder.setSince(content.getSince());
+					if (lastPage) {
+						builder.setListSizes(listSizesRecord.getListSizes());
+						builder.setListSizesSignature(listSizesRecord.getSignature());
+						builder.setListSizesSigner(listSizesRecord.getSignerPublicKeyBS());
+						builder.setApprovedHeadSignature(listSizesRecord.getApprovedHeadSignature());
+					}
+					AuditPage page = builder.build();
+					byte[] pageBytes = page.toByteArray();
+					// Build Signed Page
+					SignedAuditPage.Builder signedBuilder = SignedAuditPage.newBuilder();
+					signedBuilder.setContent(page);
+					byte[] serverSignature = signResponse(publicKeyBS, request.getSessionCounter(), cypheredNonceToServer, pageBytes);
+					signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+					if (lastPage) signedBuilder.setNextChallenge(generateNextChallenge(publicKeyBS, request.getSessionCounter()));
+					// Send Page
+					responseObserver.onNext(signedBuilder.build());
+					previousPageHash = ByteString.copyFrom(getServerSignatureManager().hash(pageBytes));
+				}
+			}
+			responseObserver.onCompleted();
+		}
+		catch (AccountDoesNotExistException | CypherFailedException | InvalidKeySpecException |
+		       NoSuchAlgorithmException | SignatureVerificationFailedException | SQLException |
+		       SessionEstablishmentFailedException e) {
+			e.printStackTrace();
+			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException | AccountDoesNotHavePuzzleException |
+		       InvalidAuditCursorException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
 	}
 
 	@Override
@@ -351,10 +628,10 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 		try {
 			// Parse Request
 			ByteString publicKeyBS = request.getPublicKey();
-			PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyBS.toByteArray()));
+			PublicKey publicKey = server.getPublicKeyCache().get(publicKeyBS);
 			// Execute the request
 			byte[] nonce = getServerSignatureManager().generateCypheredNonce(publicKey);
-			Puzzle puzzle = getServerSignatureManager().generatePuzzle(publicKeyBS);
+			Puzzle puzzle = generatePuzzle(publicKeyBS);
 			// Build Response
 			GetNonceResponse.Builder builder = GetNonceResponse.newBuilder();
 			builder.setCypheredNonce(ByteString.copyFrom(nonce));
@@ -368,4 +645,57 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
+
+	@Override
+	public void openSession(SignedOpenSessionRequest request, StreamObserver<SignedOpenSessionResponse> responseObserver) {
+		if (Context.current().isCancelled()) {
+			responseObserver.onError(DEADLINE_EXCEEDED.withDescription(DEADLINE_EXCEEDED_DESC).asRuntimeException());
+			return;
+		}
+		try {
+			// Parse Request & Check its Validity
+			OpenSessionRequest content = request.getContent();
+			ByteString publicKeyBS = content.getPublicKey();
+			byte[] cypheredNonceToServer = content.getCypheredNonce().toByteArray();
+			// Sessions are only ever opened with a signed request
+			if (!checkRequestSignature(publicKeyBS, request.getSignature(), 0, content.toByteArray(), responseObserver))
+				return;
+			// Execute the request
+			ByteString ephemeralKey = server.openSession(publicKeyBS, content.getEphemeralKey());
+			// Build Response
+			OpenSessionResponse.Builder builder = OpenSessionResponse.newBuilder();
+			builder.setEphemeralKey(ephemeralKey);
+			OpenSessionResponse response = builder.build();
+			// Build Signed Response
+			SignedOpenSessionResponse.Builder signedBuilder = SignedOpenSessionResponse.newBuilder();
+			signedBuilder.setContent(response);
+			byte[] serverSignature = signResponse(publicKeyBS, 0, cypheredNonceToServer, response.toByteArray());
+			signedBuilder.setSignature(ByteString.copyFrom(serverSignature));
+			signedBuilder.setNextChallenge(generateNextChallenge(publicKeyBS, 0));
+			SignedOpenSessionResponse signedResponse = signedBuilder.build();
+			// Send Response
+			responseObserver.onNext(signedResponse);
+			responseObserver.onCompleted();
+		}
+		catch (CypherFailedException | InvalidKeySpecException | NoSuchAlgorithmException |
+		       SignatureVerificationFailedException | SessionEstablishmentFailedException | SQLException e) {
+			e.printStackTrace();
+			responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AccountDoesNotHaveNonceException | AccountDoesNotHaveSessionException e) {
+			e.printStackTrace();
+			responseObserver.onError(FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+		}
+		catch (AccountDoesNotExistException e) {
+			e.printStackTrace();
+			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		}
+	}
+
+	// Meant for operators, so it is neither signed nor protected by a puzzle
+	@Override
+	public void getMetrics(GetMetricsRequest request, StreamObserver<GetMetricsResponse> responseObserver) {
+		responseObserver.onNext(getMetrics().toResponse(server.replicaID));
+		responseObserver.onCompleted();
+	}
 }
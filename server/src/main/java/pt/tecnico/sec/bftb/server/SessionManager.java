@@ -0,0 +1,162 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.server.exceptions.AccountDoesNotHaveSessionException;
+import pt.tecnico.sec.bftb.server.exceptions.SessionEstablishmentFailedException;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SessionManager {
+	private static final String KEY_AGREEMENT_ALGORITHM = "X25519";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final byte[] KEY_DERIVATION_LABEL = "bftb session key".getBytes(StandardCharsets.UTF_8);
+	private static final byte REQUEST_LABEL = 0;
+	private static final byte RESPONSE_LABEL = 1;
+	// Counters this far below the highest one accepted in a session are rejected even if they were never used
+	private static final int REPLAY_WINDOW = 1024;
+	private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(SessionManager::newMac);
+	private final Map<ByteString, Session> sessions;
+
+	public SessionManager(int capacity) {
+		// Only the most recently used sessions are kept, an evicted client just opens a new one
+		this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteString, Session> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	private static Mac newMac() {
+		try {
+			return Mac.getInstance(MAC_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] mac(byte[] key, byte label, long counter, byte[] content) throws InvalidKeyException {
+		Mac mac = MAC.get();
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		mac.update(label);
+		mac.update(ByteBuffer.allocate(Long.BYTES).putLong(counter).array());
+		return mac.doFinal(content);
+	}
+
+	// Answers the client's ephemeral key with one of our own and keeps the key derived from both, replacing any
+	// previous session of the client. Returns our ephemeral key, which the client needs to derive the same key
+	public ByteString openSession(ByteString peerPublicKeyBS, ByteString peerEphemeralKeyBS)
+			throws SessionEstablishmentFailedException {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_AGREEMENT_ALGORITHM);
+			KeyPair ephemeralKeyPair = generator.generateKeyPair();
+			PublicKey peerEphemeralKey = KeyFactory.getInstance(KEY_AGREEMENT_ALGORITHM)
+					.generatePublic(new X509EncodedKeySpec(peerEphemeralKeyBS.toByteArray()));
+			KeyAgreement agreement = KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+			agreement.init(ephemeralKeyPair.getPrivate());
+			agreement.doPhase(peerEphemeralKey, true);
+			byte[] sharedSecret = agreement.generateSecret();
+			ByteString ephemeralKeyBS = ByteString.copyFrom(ephemeralKeyPair.getPublic().getEncoded());
+			// Both ephemeral keys go into the derivation, so the session key is bound to this exchange
+			Mac mac = MAC.get();
+			mac.init(new SecretKeySpec(sharedSecret, MAC_ALGORITHM));
+			mac.update(KEY_DERIVATION_LABEL);
+			mac.update(peerEphemeralKeyBS.toByteArray());
+			byte[] sessionKey = mac.doFinal(ephemeralKeyBS.toByteArray());
+			putSession(peerPublicKeyBS, new Session(sessionKey));
+			return ephemeralKeyBS;
+		}
+		catch (GeneralSecurityException e) {
+			throw new SessionEstablishmentFailedException(e);
+		}
+	}
+
+	// Each counter is only accepted once per session, so replays are rejected, but requests sent concurrently may
+	// arrive out of order as long as they are within the replay window of the highest counter seen
+	public boolean isRequestMacInvalid(ByteString peerPublicKeyBS, long counter, byte[] requestMac, byte[] content)
+			throws AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		Session session = getSession(peerPublicKeyBS);
+		try {
+			if (!MessageDigest.isEqual(mac(session.key, REQUEST_LABEL, counter, content), requestMac)) return true;
+		}
+		catch (InvalidKeyException e) {
+			throw new SessionEstablishmentFailedException(e);
+		}
+		return !session.advanceCounter(counter);
+	}
+
+	public byte[] macResponse(ByteString peerPublicKeyBS, long counter, byte[] content)
+			throws AccountDoesNotHaveSessionException, SessionEstablishmentFailedException {
+		Session session = getSession(peerPublicKeyBS);
+		try {
+			return mac(session.key, RESPONSE_LABEL, counter, content);
+		}
+		catch (InvalidKeyException e) {
+			throw new SessionEstablishmentFailedException(e);
+		}
+	}
+
+	private synchronized void putSession(ByteString peerPublicKeyBS, Session session) {
+		sessions.put(peerPublicKeyBS, session);
+	}
+
+	private synchronized Session getSession(ByteString peerPublicKeyBS) throws AccountDoesNotHaveSessionException {
+		Session session = sessions.get(peerPublicKeyBS);
+		if (session == null) throw new AccountDoesNotHaveSessionException();
+		return session;
+	}
+
+	public synchronized int size() {
+		return sessions.size();
+	}
+
+	private static class Session {
+		private final byte[] key;
+		// Bitmap of the counters seen in the window, each counter kept in the bit of its value modulo the window
+		private final long[] seen;
+		private long highestCounter;
+
+		private Session(byte[] key) {
+			this.key = key;
+			this.seen = new long[REPLAY_WINDOW / Long.SIZE];
+			this.highestCounter = 0;
+		}
+
+		private synchronized boolean advanceCounter(long counter) {
+			if (counter <= 0 || counter <= highestCounter - REPLAY_WINDOW) return false;
+			if (counter > highestCounter) {
+				// The counters skipped over take the place of ones that just left the window, and were never seen
+				if (counter - highestCounter >= REPLAY_WINDOW) Arrays.fill(seen, 0);
+				else for (long skipped = highestCounter + 1; skipped < counter; skipped++) setSeen(skipped, false);
+				highestCounter = counter;
+			}
+			else if (isSeen(counter)) {
+				return false;
+			}
+			setSeen(counter, true);
+			return true;
+		}
+
+		private boolean isSeen(long counter) {
+			int bit = (int) (counter % REPLAY_WINDOW);
+			return (seen[bit / Long.SIZE] & (1L << (bit % Long.SIZE))) != 0;
+		}
+
+		private void setSeen(long counter, boolean value) {
+			int bit = (int) (counter % REPLAY_WINDOW);
+			if (value) seen[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+			else seen[bit / Long.SIZE] &= ~(1L << (bit % Long.SIZE));
+		}
+	}
+}
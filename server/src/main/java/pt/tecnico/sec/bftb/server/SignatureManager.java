@@ -2,65 +2,124 @@ package pt.tecnico.sec.bftb.server;
 
 import com.google.protobuf.ByteString;
 import pt.tecnico.sec.bftb.grpc.Server.Balance;
+import pt.tecnico.sec.bftb.grpc.Server.ApprovedHead;
 import pt.tecnico.sec.bftb.grpc.Server.ListSizes;
 import pt.tecnico.sec.bftb.grpc.Server.Puzzle;
 import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+import pt.tecnico.sec.bftb.server.exceptions.AccountDoesNotHaveNonceException;
 import pt.tecnico.sec.bftb.server.exceptions.AccountDoesNotHavePuzzleException;
 import pt.tecnico.sec.bftb.server.exceptions.CypherFailedException;
 import pt.tecnico.sec.bftb.server.exceptions.PrivateKeyLoadingFailedException;
 import pt.tecnico.sec.bftb.server.exceptions.SignatureVerificationFailedException;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class SignatureManager {
-	public static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+	private static final byte[] EMPTY = new byte[0];
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(SignatureManager::newDigest);
 	private static final int PUZZLE_SALT_LENGTH = 10;
-	private static final long PUZZLE_SEARCH_RANGE = 100000;
 	private final Random randomGenerator;
 	private final PrivateKey privateKey;
+	private final SignatureScheme signatureScheme;
 	private final Map<PublicKey, Long> currentNonces;
 	private final Map<ByteString, Long> currentPuzzleSolutions;
+	private final Metrics metrics;
+	private volatile Executor cryptoExecutor;
 
 
 	public SignatureManager(int replicaID) throws PrivateKeyLoadingFailedException {
+		this(replicaID, new Metrics());
+	}
+
+	public SignatureManager(int replicaID, Metrics metrics) throws PrivateKeyLoadingFailedException {
+		this(Resources.getPrivateKey(replicaID), metrics);
+	}
+
+	public SignatureManager(PrivateKey privateKey, Metrics metrics) throws PrivateKeyLoadingFailedException {
+		this.metrics = metrics;
 		this.randomGenerator = new SecureRandom();
-		this.privateKey = Resources.getPrivateKey(replicaID);
+		this.privateKey = privateKey;
+		try {
+			this.signatureScheme = SignatureScheme.forKey(this.privateKey);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new PrivateKeyLoadingFailedException(e);
+		}
 		this.currentNonces = new ConcurrentHashMap<>();
 		this.currentPuzzleSolutions = new ConcurrentHashMap<>();
 	}
 
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface CryptoTask<T> {
+		T run() throws GeneralSecurityException;
+	}
+
+	// Signing, verifying and nonce ciphers run on this executor from now on, with the calling thread waiting for them.
+	// Keeps the CPU-bound work to as many threads as there are cores, however many threads are serving requests
+	public void offloadCryptoTo(Executor executor) {
+		this.cryptoExecutor = executor;
+	}
+
+	// Timed as the caller sees it, so the time spent waiting for the crypto executor counts too
+	private <T> T runCrypto(String metric, CryptoTask<T> task) throws GeneralSecurityException {
+		return metrics.timed(metric, () -> runCrypto(task));
+	}
+
+	private <T> T runCrypto(CryptoTask<T> task) throws GeneralSecurityException {
+		Executor executor = cryptoExecutor;
+		if (executor == null) return task.run();
+		FutureTask<T> future = new FutureTask<>(task::run);
+		executor.execute(future);
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GeneralSecurityException("Interrupted while waiting for the crypto executor", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof GeneralSecurityException gse) throw gse;
+			if (e.getCause() instanceof RuntimeException re) throw re;
+			throw new GeneralSecurityException(e.getCause());
+		}
+	}
+
+	private static byte[] nonceToBytes(long nonce) {
+		return ByteBuffer.allocate(Long.BYTES).putLong(nonce).array();
+	}
+
 	public byte[] cypherNonce(PublicKey peerPublicKey, long nonce) throws CypherFailedException {
 		try {
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.ENCRYPT_MODE, peerPublicKey);
-			byte[] nonceBytes = ByteBuffer.allocate(Long.BYTES).putLong(nonce).array();
-			return cipher.doFinal(nonceBytes);
+			return runCrypto("crypto.seal_nonce", () -> SignatureScheme.forKey(peerPublicKey).sealNonce(peerPublicKey, nonceToBytes(nonce)));
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException e) {
 			throw new CypherFailedException(e);
 		}
 	}
 
 	public long decypherNonce(byte[] cypheredNonce) throws CypherFailedException {
 		try {
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, this.privateKey);
-			byte[] nonceBytes = cipher.doFinal(cypheredNonce);
+			byte[] nonceBytes = runCrypto("crypto.open_nonce", () -> signatureScheme.openNonce(this.privateKey, cypheredNonce));
 			return ByteBuffer.wrap(nonceBytes).getLong();
 		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new CypherFailedException(e);
 		}
 	}
@@ -75,52 +134,35 @@ public class SignatureManager {
 	}
 
 	public boolean isNonceSignatureInvalid(PublicKey peerPublicKey, byte[] signature, byte[] content) throws
-			SignatureVerificationFailedException {
+			SignatureVerificationFailedException, AccountDoesNotHaveNonceException {
 		try {
-			if (!currentNonces.containsKey(peerPublicKey))
-				throw new SignatureVerificationFailedException("Account does not have a currently usable nonce");
 			// Get nonce
-			long nonce = currentNonces.get(peerPublicKey);
-			// Concatenate nonce and content
-			byte[] request = ByteBuffer.allocate(Long.BYTES + content.length).putLong(nonce).put(content).array();
-			// Hash it with SHA-256
-			byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(request);
-			// Decrypt CLIENT's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, peerPublicKey);
-			byte[] receivedHash = cipher.doFinal(signature);
-			// Compare the received hash with the expected one
-			if (Arrays.equals(expectedHash, receivedHash)) {
+			Long nonce = currentNonces.get(peerPublicKey);
+			if (nonce == null) throw new AccountDoesNotHaveNonceException();
+			// Verify CLIENT's signature of the nonce followed by the content
+			SignatureScheme peerScheme = SignatureScheme.forKey(peerPublicKey);
+			if (runCrypto("crypto.verify", () -> peerScheme.verify(peerPublicKey, signature, nonceToBytes(nonce), content))) {
 				currentNonces.remove(peerPublicKey);
 				return false;
 			}
 			else return true;
 		}
-		catch (NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException |
-		       NoSuchPaddingException | BufferUnderflowException e) {
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new SignatureVerificationFailedException(e);
 		}
 	}
 
 	public boolean isNonceSignatureInvalid(PublicKey peerPublicKey, byte[] signature) throws
-			SignatureVerificationFailedException {
-		return isNonceSignatureInvalid(peerPublicKey, signature, new byte[0]);
+			SignatureVerificationFailedException, AccountDoesNotHaveNonceException {
+		return isNonceSignatureInvalid(peerPublicKey, signature, EMPTY);
 	}
 
 	public boolean isSignatureValid(PublicKey peerPublicKey, byte[] signature, byte[] content) throws
 			SignatureVerificationFailedException {
 		try {
-			// Hash it with SHA-256
-			byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(content);
-			// Decrypt SERVER's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.DECRYPT_MODE, peerPublicKey);
-			byte[] receivedHash = cipher.doFinal(signature);
-			// Compare the received hash with the expected one
-			return Arrays.equals(expectedHash, receivedHash);
-		}
-		catch (NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException |
-		       NoSuchPaddingException | BufferUnderflowException e) {
+			return runCrypto("crypto.verify", () -> SignatureScheme.forKey(peerPublicKey).verify(peerPublicKey, signature, EMPTY, content));
+		}
+		catch (GeneralSecurityException | BufferUnderflowException e) {
 			throw new SignatureVerificationFailedException(e);
 		}
 	}
@@ -140,32 +182,38 @@ public class SignatureManager {
 		return isSignatureValid(publicKey, signature, listSizes.toByteArray());
 	}
 
+	// Only covers the approved part of the list sizes, so the owner's signature outlives changes to the pending part
+	public boolean isApprovedHeadSignatureValid(PublicKey publicKey, byte[] signature, ListSizes listSizes) throws
+			SignatureVerificationFailedException {
+		ApprovedHead approvedHead = ApprovedHead.newBuilder().setApprovedSize(listSizes.getApprovedSize())
+				.setApprovedHead(listSizes.getApprovedHead()).build();
+		return isSignatureValid(publicKey, signature, approvedHead.toByteArray());
+	}
+
 	public byte[] sign(long nonce, byte[] content) throws CypherFailedException {
 		try {
-			// Concatenate nonce and content (which might be empty)
-			byte[] request = ByteBuffer.allocate(Long.BYTES + content.length).putLong(nonce).put(content).array();
-			// Hash it with SHA-256
-			byte[] hash = MessageDigest.getInstance("SHA-256").digest(request);
-			// Encrypt SERVER's signature
-			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-			cipher.init(Cipher.ENCRYPT_MODE, this.privateKey);
-			return cipher.doFinal(hash);
-		}
-		catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | NoSuchAlgorithmException |
-		       NoSuchPaddingException e) {
+			// Sign the nonce followed by the content (which might be empty)
+			return runCrypto("crypto.sign", () -> signatureScheme.sign(this.privateKey, nonceToBytes(nonce), content));
+		}
+		catch (GeneralSecurityException e) {
 			throw new CypherFailedException(e);
 		}
 	}
 
 	public byte[] sign(long nonce) throws CypherFailedException {
-		return sign(nonce, new byte[0]);
+		return sign(nonce, EMPTY);
+	}
+
+	public byte[] hash(byte[] content) {
+		return DIGEST.get().digest(content);
 	}
 
-	public Puzzle generatePuzzle(ByteString peerPublicKeyBS) throws NoSuchAlgorithmException {
+	// The search range is sent along with the puzzle, so the client knows how far it may have to search
+	public Puzzle generatePuzzle(ByteString peerPublicKeyBS, long searchRange) throws NoSuchAlgorithmException {
 		// Remove old nonce if it exists
 		currentPuzzleSolutions.remove(peerPublicKeyBS);
 		// Generate new nonce, store it and return it
-		long puzzleSolution = randomGenerator.nextLong(0, PUZZLE_SEARCH_RANGE);
+		long puzzleSolution = randomGenerator.nextLong(0, searchRange);
 		currentPuzzleSolutions.put(peerPublicKeyBS, puzzleSolution);
 
 		byte[] puzzleSalt = new byte[PUZZLE_SALT_LENGTH];
@@ -175,21 +223,24 @@ public class SignatureManager {
 		return Puzzle.newBuilder()
 				.setPuzzle(ByteString.copyFrom(puzzle))
 				.setPuzzleSalt(ByteString.copyFrom(puzzleSalt))
+				.setSearchRange(searchRange)
 				.build();
 	}
 
 	public byte[] createPuzzle(long solution, byte[] salt) throws NoSuchAlgorithmException {
-		byte[] rawPuzzle = ByteBuffer.allocate(Long.BYTES + salt.length).putLong(solution).put(salt).array();
-		return MessageDigest.getInstance("SHA-256").digest(rawPuzzle);
+		MessageDigest digest = DIGEST.get();
+		digest.update(nonceToBytes(solution));
+		return digest.digest(salt);
 	}
 
 	public boolean isPuzzleSolutionCorrect(ByteString peerPublicKeyBS, long solution)
 			throws AccountDoesNotHavePuzzleException {
-		if (!currentPuzzleSolutions.containsKey(peerPublicKeyBS)) {
+		Long currentSolution = currentPuzzleSolutions.get(peerPublicKeyBS);
+		if (currentSolution == null) {
 			throw new AccountDoesNotHavePuzzleException();
 		}
-		long currentSolution = currentPuzzleSolutions.get(peerPublicKeyBS);
-		System.out.println("Current solution: " + currentSolution + ", received solution: " + solution);
-		return currentSolution == solution;
+		boolean correct = currentSolution == solution;
+		metrics.increment(correct ? "puzzle.correct" : "puzzle.incorrect");
+		return correct;
 	}
 }
@@ -0,0 +1,35 @@
+package pt.tecnico.sec.bftb.server;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+public interface SignatureScheme {
+	SignatureScheme RSA_LEGACY = new RsaSignatureScheme();
+	SignatureScheme ED25519 = new JcaSignatureScheme("Ed25519");
+	SignatureScheme ECDSA_P256 = new JcaSignatureScheme("SHA256withECDSA");
+
+	// Signs the prefix followed by the content, the prefix (which might be empty) binds the signature to a nonce
+	byte[] sign(PrivateKey privateKey, byte[] prefix, byte[] content) throws GeneralSecurityException;
+
+	boolean verify(PublicKey publicKey, byte[] signature, byte[] prefix, byte[] content)
+			throws GeneralSecurityException;
+
+	// Nonces are only encrypted if the key supports it, otherwise they are sent in the clear and are only used to
+	// bind signatures to a request
+	byte[] sealNonce(PublicKey peerPublicKey, byte[] nonce) throws GeneralSecurityException;
+
+	byte[] openNonce(PrivateKey privateKey, byte[] sealedNonce) throws GeneralSecurityException;
+
+	// The scheme of an account is given by the type of its key, so each account can use a different one
+	static SignatureScheme forKey(Key key) throws NoSuchAlgorithmException {
+		return switch (key.getAlgorithm()) {
+			case "RSA" -> RSA_LEGACY;
+			case "EdDSA", "Ed25519" -> ED25519;
+			case "EC", "ECDSA" -> ECDSA_P256;
+			default -> throw new NoSuchAlgorithmException("Unsupported key algorithm: " + key.getAlgorithm());
+		};
+	}
+}
@@ -0,0 +1,83 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StripedLock {
+	private final ReentrantLock[] stripes;
+	private final AtomicLongArray contentionCounters;
+
+	public StripedLock(int numberOfStripes) {
+		this.stripes = new ReentrantLock[numberOfStripes];
+		for (int i = 0; i < numberOfStripes; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		this.contentionCounters = new AtomicLongArray(numberOfStripes);
+	}
+
+	public int getNumberOfStripes() {
+		return stripes.length;
+	}
+
+	public int stripeOf(ByteString key) {
+		return Math.floorMod(key.hashCode(), stripes.length);
+	}
+
+	// Number of times a thread had to wait for the stripe because another thread was holding it
+	public long getContentionCount(int stripe) {
+		return contentionCounters.get(stripe);
+	}
+
+	// Number of threads currently waiting for any of the stripes, an estimate as it changes while being counted
+	public int getQueueLength() {
+		int queueLength = 0;
+		for (ReentrantLock stripe : stripes) queueLength += stripe.getQueueLength();
+		return queueLength;
+	}
+
+	// Blocks until the stripes of every key are held. Stripes are always taken in ascending order, so two threads
+	// locking the same accounts in a different order can't deadlock
+	public Stripes lock(ByteString... keys) {
+		int[] indexes = Arrays.stream(keys).mapToInt(this::stripeOf).sorted().distinct().toArray();
+		int acquired = 0;
+		try {
+			for (int index : indexes) {
+				if (!stripes[index].tryLock()) {
+					contentionCounters.incrementAndGet(index);
+					stripes[index].lock();
+				}
+				acquired++;
+			}
+		}
+		finally {
+			if (acquired < indexes.length) unlock(indexes, acquired);
+		}
+		return new Stripes(indexes);
+	}
+
+	private void unlock(int[] indexes, int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			stripes[indexes[i]].unlock();
+		}
+	}
+
+	public class Stripes implements AutoCloseable {
+		private final int[] indexes;
+		private boolean released;
+
+		private Stripes(int[] indexes) {
+			this.indexes = indexes;
+			this.released = false;
+		}
+
+		@Override
+		public void close() {
+			if (released) return;
+			released = true;
+			unlock(indexes, indexes.length);
+		}
+	}
+}
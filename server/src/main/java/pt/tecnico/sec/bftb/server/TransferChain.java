@@ -0,0 +1,41 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sec.bftb.grpc.Server.Transfer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+// Hash chain over the approved transfers of an account, in the order its owner signed them. Each link hashes the
+// previous one together with the next transfer, so the head stands for the whole list and a single signature on it,
+// made along with the list sizes, covers every transfer
+public class TransferChain {
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(TransferChain::newDigest);
+
+	private TransferChain() { /* empty */ }
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// The head of an account without approved transfers is empty
+	public static ByteString extend(ByteString head, Transfer transfer) {
+		MessageDigest digest = DIGEST.get();
+		digest.update(head.toByteArray());
+		return ByteString.copyFrom(digest.digest(transfer.toByteArray()));
+	}
+
+	public static ByteString extend(ByteString head, List<Transfer> transfers) {
+		for (Transfer transfer : transfers) {
+			head = extend(head, transfer);
+		}
+		return head;
+	}
+}
@@ -6,7 +6,6 @@ import pt.tecnico.sec.bftb.grpc.Server.Transfer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 
 public class TransfersRecord {
@@ -25,8 +24,8 @@ public class TransfersRecord {
 		this.receiverSignatures = new ArrayList<>();
 		while (rs.next()) {
 			long timestamp = rs.getLong("timestamp");
-			byte[] sourceKeyBytes = Base64.getDecoder().decode(rs.getString("sender_pubkey"));
-			byte[] destinationKeyBytes = Base64.getDecoder().decode(rs.getString("receiver_pubkey"));
+			byte[] sourceKeyBytes = rs.getBytes("sender_pubkey");
+			byte[] destinationKeyBytes = rs.getBytes("receiver_pubkey");
 			int amount = rs.getInt("amount");
 
 			Transfer.Builder builder = Transfer.newBuilder();
@@ -35,16 +34,11 @@ public class TransfersRecord {
 			builder.setReceiverKey(ByteString.copyFrom(destinationKeyBytes));
 			builder.setAmount(amount);
 			transfers.add(builder.build());
-			ByteString senderSignature = ByteString.copyFrom(Base64.getDecoder().decode(rs.getString("sender_signature")));
+			ByteString senderSignature = ByteString.copyFrom(rs.getBytes("sender_signature"));
 			senderSignatures.add(senderSignature);
-			String receiverSignatureB64 = rs.getString("receiver_signature");
-			if (receiverSignatureB64 != null) {
-				ByteString receiverSignature = ByteString.copyFrom(Base64.getDecoder().decode(rs.getString("receiver_signature")));
-				receiverSignatures.add(receiverSignature);
-			}
-			else {
-				receiverSignatures.add(null);
-			}
+			// Empty while the transfer is pending, which an account's own outgoing transfers can be in its approved list
+			byte[] receiverSignatureBytes = rs.getBytes("receiver_signature");
+			receiverSignatures.add((receiverSignatureBytes != null) ? ByteString.copyFrom(receiverSignatureBytes) : ByteString.EMPTY);
 		}
 	}
 
@@ -0,0 +1,21 @@
+package pt.tecnico.sec.bftb.server.exceptions;
+
+public class AccountDoesNotHaveNonceException extends Exception {
+	private static final String DEFAULT_MESSAGE = "Account does not have a currently usable nonce";
+
+	public AccountDoesNotHaveNonceException() {
+		super(DEFAULT_MESSAGE);
+	}
+
+	public AccountDoesNotHaveNonceException(String message) {
+		super(message);
+	}
+
+	public AccountDoesNotHaveNonceException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public AccountDoesNotHaveNonceException(Throwable cause) {
+		super(DEFAULT_MESSAGE, cause);
+	}
+}
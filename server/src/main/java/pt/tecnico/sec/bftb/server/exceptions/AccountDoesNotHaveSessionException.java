@@ -0,0 +1,21 @@
+package pt.tecnico.sec.bftb.server.exceptions;
+
+public class AccountDoesNotHaveSessionException extends Exception {
+	private static final String DEFAULT_MESSAGE = "Account does not have an open session";
+
+	public AccountDoesNotHaveSessionException() {
+		super(DEFAULT_MESSAGE);
+	}
+
+	public AccountDoesNotHaveSessionException(String message) {
+		super(message);
+	}
+
+	public AccountDoesNotHaveSessionException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public AccountDoesNotHaveSessionException(Throwable cause) {
+		super(DEFAULT_MESSAGE, cause);
+	}
+}
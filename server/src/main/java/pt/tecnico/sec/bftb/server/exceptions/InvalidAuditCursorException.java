@@ -0,0 +1,21 @@
+package pt.tecnico.sec.bftb.server.exceptions;
+
+public class InvalidAuditCursorException extends Exception {
+	private static final String DEFAULT_MESSAGE = "Audit cursor does not match the approved transfers list";
+
+	public InvalidAuditCursorException() {
+		super(DEFAULT_MESSAGE);
+	}
+
+	public InvalidAuditCursorException(String message) {
+		super(message);
+	}
+
+	public InvalidAuditCursorException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public InvalidAuditCursorException(Throwable cause) {
+		super(DEFAULT_MESSAGE, cause);
+	}
+}
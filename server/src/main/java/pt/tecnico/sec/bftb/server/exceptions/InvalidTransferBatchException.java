@@ -0,0 +1,21 @@
+package pt.tecnico.sec.bftb.server.exceptions;
+
+public class InvalidTransferBatchException extends Exception {
+	private static final String DEFAULT_MESSAGE = "Invalid transfer batch";
+
+	public InvalidTransferBatchException() {
+		super(DEFAULT_MESSAGE);
+	}
+
+	public InvalidTransferBatchException(String message) {
+		super(message);
+	}
+
+	public InvalidTransferBatchException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public InvalidTransferBatchException(Throwable cause) {
+		super(DEFAULT_MESSAGE, cause);
+	}
+}
@@ -0,0 +1,21 @@
+package pt.tecnico.sec.bftb.server.exceptions;
+
+public class SessionEstablishmentFailedException extends Exception {
+	private static final String DEFAULT_MESSAGE = "Session establishment failed";
+
+	public SessionEstablishmentFailedException() {
+		super(DEFAULT_MESSAGE);
+	}
+
+	public SessionEstablishmentFailedException(String message) {
+		super(message);
+	}
+
+	public SessionEstablishmentFailedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public SessionEstablishmentFailedException(Throwable cause) {
+		super(DEFAULT_MESSAGE, cause);
+	}
+}
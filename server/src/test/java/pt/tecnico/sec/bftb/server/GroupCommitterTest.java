@@ -0,0 +1,56 @@
+package pt.tecnico.sec.bftb.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+
+class GroupCommitterTest {
+	private Path directory;
+	private String databasePath;
+	private SQLiteDatabase db;
+
+	@BeforeEach
+	void openDatabase() throws IOException, SQLException {
+		directory = Files.createTempDirectory("group-commit");
+		databasePath = directory.resolve("replica.db").toString();
+		db = new SQLiteDatabase(databasePath, DurabilityMode.GROUP_COMMIT, new Metrics());
+	}
+
+	@AfterEach
+	void closeDatabase() throws IOException, SQLException {
+		db.close();
+		try (var files = Files.list(directory)) {
+			for (Path file : files.toList()) Files.delete(file);
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	void rolledBackUnitDoesNotKeepTheWriteLock() throws SQLException {
+		db.beginTransaction().close();
+		assertWriteLockIsFree();
+		// The next unit of work opens a new batch
+		db.beginTransaction().close();
+		assertWriteLockIsFree();
+	}
+
+	// Another connection can only take the write lock if the shared transaction was ended
+	private void assertWriteLockIsFree() throws SQLException {
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+		     Statement stmt = conn.createStatement()) {
+			stmt.execute("PRAGMA busy_timeout = 0");
+			assertDoesNotThrow(() -> stmt.execute("BEGIN IMMEDIATE"));
+			stmt.execute("ROLLBACK");
+		}
+	}
+}
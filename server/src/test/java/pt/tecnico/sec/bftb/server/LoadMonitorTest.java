@@ -0,0 +1,63 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadMonitorTest {
+	private static final int CAPACITY = 64;
+	private static final long IDLE_RANGE = 1L << 10;
+	private static final long SATURATED_RANGE = 1L << 18;
+	private static final long MAX_RANGE = 1L << 24;
+	private static final ByteString KEY = ByteString.copyFromUtf8("key");
+	private static final ByteString FLOODING_KEY = ByteString.copyFromUtf8("flooding-key");
+	private LoadTraceReplayer replayer;
+
+	@BeforeEach
+	void createReplayer() {
+		replayer = new LoadTraceReplayer(CAPACITY);
+	}
+
+	@Test
+	void idleReplicaHandsOutCheapestPuzzles() {
+		assertEquals(IDLE_RANGE, replayer.request(KEY));
+		// A key within its fair share pays nothing extra
+		assertEquals(IDLE_RANGE, replayer.request(KEY, 5, 10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void saturatedReplicaRaisesEveryPuzzle() {
+		replayer.start(CAPACITY);
+		assertEquals(SATURATED_RANGE, replayer.request(KEY));
+		// Overloaded, every doubling of the load costs a little more
+		replayer.start(CAPACITY);
+		long overloadedRange = replayer.request(KEY);
+		assertTrue(overloadedRange > SATURATED_RANGE && overloadedRange < MAX_RANGE);
+		// Back to idle once the requests are done
+		replayer.finish(2 * CAPACITY);
+		replayer.advance(10, TimeUnit.SECONDS);
+		assertEquals(IDLE_RANGE, replayer.request(KEY));
+	}
+
+	@Test
+	void floodingKeyReachesTheCeiling() {
+		assertEquals(MAX_RANGE, replayer.request(FLOODING_KEY, 2000, 5, TimeUnit.SECONDS));
+		// The others are not punished for it
+		assertEquals(IDLE_RANGE, replayer.request(KEY));
+		// Once the key stops, its rate decays and its puzzles get cheap again
+		replayer.advance(30, TimeUnit.SECONDS);
+		assertEquals(IDLE_RANGE, replayer.request(FLOODING_KEY));
+	}
+
+	@Test
+	void floodingKeyOnSaturatedReplicaReachesTheCeilingSooner() {
+		replayer.start(CAPACITY);
+		assertEquals(MAX_RANGE, replayer.request(FLOODING_KEY, 100, 5, TimeUnit.SECONDS));
+		assertEquals(SATURATED_RANGE, replayer.request(KEY));
+	}
+}
@@ -0,0 +1,49 @@
+package pt.tecnico.sec.bftb.server;
+
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.TimeUnit;
+
+// Replays a load trace through a LoadMonitor on a simulated clock, so a trace of many seconds runs in milliseconds
+class LoadTraceReplayer {
+	private final LoadMonitor monitor;
+	private long now;
+
+	LoadTraceReplayer(int capacity) {
+		this.monitor = new LoadMonitor(capacity, () -> now);
+		this.now = 0;
+	}
+
+	LoadMonitor getMonitor() {
+		return monitor;
+	}
+
+	void advance(long duration, TimeUnit unit) {
+		now += unit.toNanos(duration);
+	}
+
+	void start(int requests) {
+		for (int i = 0; i < requests; i++) monitor.requestStarted();
+	}
+
+	void finish(int requests) {
+		for (int i = 0; i < requests; i++) monitor.requestFinished();
+	}
+
+	long request(ByteString publicKeyBS) {
+		return monitor.searchRangeFor(publicKeyBS);
+	}
+
+	// Requests of the key at a steady rate for the given duration, returns the search range of the last one
+	long request(ByteString publicKeyBS, double requestsPerSecond, long duration, TimeUnit unit) {
+		long interval = Math.round(TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		long end = now + unit.toNanos(duration);
+		long searchRange = request(publicKeyBS);
+		while (now + interval <= end) {
+			now += interval;
+			searchRange = request(publicKeyBS);
+		}
+		now = end;
+		return searchRange;
+	}
+}